@@ -3,16 +3,19 @@ package net.epconsortium.cryptomarket;
 import me.clip.placeholderapi.expansion.PlaceholderExpansion;
 import net.epconsortium.cryptomarket.database.dao.Investor;
 import net.epconsortium.cryptomarket.database.dao.InvestorDao;
+import net.epconsortium.cryptomarket.finances.CoinRegistry;
 import net.epconsortium.cryptomarket.finances.ExchangeRate;
 import net.epconsortium.cryptomarket.finances.ExchangeRates;
 import net.epconsortium.cryptomarket.util.Formatter;
 import org.bukkit.OfflinePlayer;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
+import java.math.BigDecimal;
 import java.time.LocalDate;
 import java.util.Arrays;
 import java.util.List;
-import java.util.Locale;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -21,15 +24,20 @@ public class CMExpansion extends PlaceholderExpansion {
     private static final Pattern INVESTOR_BALANCE_PATTERN = Pattern.compile("balance_(?<coin>\\w+)");
     private static final Pattern COIN_PRICE_PATTERN = Pattern.compile("price_(?<coin>\\w+)");
     private static final Pattern INVESTOR_PATRIMONY_PATTERN = Pattern.compile("investor_patrimony");
+    private static final Pattern INVESTOR_RANK_PATTERN = Pattern.compile("investor_rank");
 
     private final CryptoMarket plugin;
     private final InvestorDao investorDao;
     private final ExchangeRates exchangeRates;
+    private final CoinRegistry registry;
+    private volatile PriceCache priceCache;
 
     public CMExpansion(CryptoMarket plugin) {
         this.plugin = plugin;
         investorDao = plugin.getInvestorDao();
         exchangeRates = plugin.getExchangeRates();
+        registry = plugin.getCoinRegistry();
+        priceCache = new PriceCache(-1, -1, registry.size());
     }
 
     @Override
@@ -54,23 +62,23 @@ public class CMExpansion extends PlaceholderExpansion {
 
     @Override
     public @NotNull List<String> getPlaceholders() {
-        return Arrays.asList("%cryptomarket_investor_patrimony%", "%cryptomarket_balance_<coin>%",
-                "%cryptomarket_price_<coin>%");
+        return Arrays.asList("%cryptomarket_investor_patrimony%", "%cryptomarket_investor_rank%",
+                "%cryptomarket_balance_<coin>%", "%cryptomarket_price_<coin>%");
     }
 
     @Override
     public String onRequest(OfflinePlayer player, @NotNull String params) {
         Matcher priceMatcher = COIN_PRICE_PATTERN.matcher(params);
         if (priceMatcher.matches()) {
-            String coin = priceMatcher.group("coin");
-            ExchangeRate exchangeRate = exchangeRates.getExchangeRate(LocalDate.now());
-            if (exchangeRate != null) {
-                return Formatter.formatServerCurrency(exchangeRate.getCoinValue(coin.toUpperCase(Locale.ROOT)));
+            int coin = registry.getId(priceMatcher.group("coin"));
+            String price = coin == -1 ? null : getPrice(coin);
+            if (price != null) {
+                return price;
             }
         }
-        Investor investor = investorDao.getInvestor(player);
+        // offline investors are read in the background, the placeholder is empty until they are cached
+        Investor investor = investorDao.getCachedInvestor(player);
         if (investor == null) {
-            plugin.getLogger().info(String.format("%s is offline", player.getName()));
             return "";
         }
         if (INVESTOR_PATRIMONY_PATTERN.matcher(params).matches()) {
@@ -79,11 +87,56 @@ public class CMExpansion extends PlaceholderExpansion {
                 return Formatter.formatServerCurrency(investor.getConvertedPatrimony(exchangeRate));
             }
         }
+        if (INVESTOR_RANK_PATTERN.matcher(params).matches()) {
+            int rank = plugin.getEconomy().getRank(investor);
+            return rank == -1 ? "" : String.valueOf(rank);
+        }
         Matcher balanceMatcher = INVESTOR_BALANCE_PATTERN.matcher(params);
         if (balanceMatcher.matches()) {
-            String coin = balanceMatcher.group("coin");
-            return Formatter.formatCryptocoin(investor.getBalance(coin.toUpperCase(Locale.ROOT)).getValue());
+            int coin = registry.getId(balanceMatcher.group("coin"));
+            if (coin == -1) {
+                return Formatter.formatCryptocoin(BigDecimal.ZERO);
+            }
+            return Formatter.formatCryptocoin(investor.getBalance(coin).getValue());
         }
         return "";
     }
+
+    /**
+     * Returns the formatted price of the coin, formatting it only once per published rates version
+     *
+     * @param coin coin id
+     * @return the price or null if there is no rate for today
+     */
+    private @Nullable String getPrice(int coin) {
+        LocalDate today = LocalDate.now();
+        long version = exchangeRates.getVersion();
+        PriceCache cache = priceCache;
+        if (cache.version != version || cache.epochDay != today.toEpochDay()) {
+            cache = new PriceCache(version, today.toEpochDay(), registry.size());
+            priceCache = cache;
+        }
+        String price = cache.prices.get(coin);
+        if (price == null) {
+            ExchangeRate exchangeRate = exchangeRates.getExchangeRate(today);
+            if (exchangeRate == null) {
+                return null;
+            }
+            price = Formatter.formatServerCurrency(exchangeRate.getCoinValue(coin));
+            cache.prices.set(coin, price);
+        }
+        return price;
+    }
+
+    private static class PriceCache {
+        private final long version;
+        private final long epochDay;
+        private final AtomicReferenceArray<String> prices;
+
+        private PriceCache(long version, long epochDay, int coins) {
+            this.version = version;
+            this.epochDay = epochDay;
+            prices = new AtomicReferenceArray<>(coins);
+        }
+    }
 }
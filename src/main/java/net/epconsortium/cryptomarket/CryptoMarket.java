@@ -1,10 +1,18 @@
 package net.epconsortium.cryptomarket;
 
 import net.epconsortium.cryptomarket.commands.CryptoMarketCommand;
+import net.epconsortium.cryptomarket.database.ConnectionFactory;
 import net.epconsortium.cryptomarket.database.dao.InvestorDao;
+import net.epconsortium.cryptomarket.database.dao.OrderDao;
+import net.epconsortium.cryptomarket.finances.CoinRegistry;
 import net.epconsortium.cryptomarket.finances.Economy;
 import net.epconsortium.cryptomarket.finances.ExchangeRates;
+import net.epconsortium.cryptomarket.finances.OrderBooks;
+import net.epconsortium.cryptomarket.finances.Triggers;
 import net.epconsortium.cryptomarket.listeners.PlayerListeners;
+import net.epconsortium.cryptomarket.task.DeliverTradesTask;
+import net.epconsortium.cryptomarket.task.EvictIdleConnectionsTask;
+import net.epconsortium.cryptomarket.task.FlushRatesCacheTask;
 import net.epconsortium.cryptomarket.task.SaveInvestorsTask;
 import net.epconsortium.cryptomarket.task.UpdateExchangeRatesTask;
 import net.epconsortium.cryptomarket.task.UpdateRichersListTask;
@@ -62,6 +70,8 @@ public class CryptoMarket extends JavaPlugin {
                 getLogger().info("Database configured successfuly!");
 
                 getExchangeRates().updateAll();
+                getOrderBooks().load();
+                getTriggers().load();
                 startTasks();
                 if (Bukkit.getPluginManager().getPlugin("PlaceholderAPI") != null) {
                     new CMExpansion(this).register();
@@ -69,7 +79,7 @@ public class CryptoMarket extends JavaPlugin {
                 Collection<? extends Player> onlinePlayers = getServer().getOnlinePlayers();
                 if (!onlinePlayers.isEmpty()) {
                     getLogger().info("Found players online (did you reload?), loading their data...");
-                    onlinePlayers.forEach(getInvestorDao()::loadInvestor);
+                    getInvestorDao().loadInvestors(onlinePlayers);
                 }
             }
         });
@@ -79,12 +89,20 @@ public class CryptoMarket extends JavaPlugin {
         new UpdateExchangeRatesTask(this).start();
         new SaveInvestorsTask(this).start();
         new UpdateRichersListTask(this).start();
+        new FlushRatesCacheTask(this).start();
+        new EvictIdleConnectionsTask(this).start();
+        new DeliverTradesTask(this).start();
     }
 
     @Override
     public void onDisable() {
+        // the callbacks of the pending trades deposit and refund money, so they run before the tasks are cancelled
+        getEconomy().shutdown();
     	getServer().getScheduler().cancelTasks(this);
-        getInvestorDao().saveAll();
+        getExchangeRates().shutdown();
+        getInvestorDao().shutdown();
+        getOrderDao().shutdown();
+        getConnectionFactory().close();
     }
 
     /**
@@ -129,6 +147,24 @@ public class CryptoMarket extends JavaPlugin {
         return InvestorDao.getInstance(this);
     }
 
+    /**
+     * Returns the DAO of the resting orders
+     *
+     * @return the order DAO
+     */
+    public OrderDao getOrderDao() {
+        return OrderDao.getInstance(this);
+    }
+
+    /**
+     * Returns the factory of pooled database connections
+     *
+     * @return the connection factory
+     */
+    public ConnectionFactory getConnectionFactory() {
+        return ConnectionFactory.getInstance(this);
+    }
+
     public ExchangeRates getExchangeRates() {
         return ExchangeRates.getInstance(this);
     }
@@ -146,6 +182,33 @@ public class CryptoMarket extends JavaPlugin {
         return Economy.getInstance(this);
     }
 
+    /**
+     * Returns the order books, where the players trade with each other
+     *
+     * @return the order books
+     */
+    public OrderBooks getOrderBooks() {
+        return OrderBooks.getInstance(this);
+    }
+
+    /**
+     * Returns the stop-loss and take-profit triggers of the players
+     *
+     * @return the triggers
+     */
+    public Triggers getTriggers() {
+        return Triggers.getInstance(this);
+    }
+
+    /**
+     * Returns the registry of the configured coins
+     *
+     * @return the coin registry
+     */
+    public CoinRegistry getCoinRegistry() {
+        return CoinRegistry.getInstance(this);
+    }
+
     /**
      * Returns the instance of CryptoMarket
      *
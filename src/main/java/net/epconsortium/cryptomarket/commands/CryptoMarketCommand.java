@@ -1,21 +1,37 @@
 package net.epconsortium.cryptomarket.commands;
 
 import net.epconsortium.cryptomarket.CryptoMarket;
+import net.epconsortium.cryptomarket.database.ConnectionPool;
 import net.epconsortium.cryptomarket.database.dao.Investor;
+import net.epconsortium.cryptomarket.database.dao.InvestorDao;
+import net.epconsortium.cryptomarket.database.dao.InvestorLocks;
+import net.epconsortium.cryptomarket.database.dao.OfflineInvestorCache;
+import net.epconsortium.cryptomarket.database.dao.PreloadCache;
+import net.epconsortium.cryptomarket.database.dao.WriteBehindQueue;
 import net.epconsortium.cryptomarket.finances.Economy;
 import net.epconsortium.cryptomarket.finances.ExchangeRate;
 import net.epconsortium.cryptomarket.finances.ExchangeRates;
+import net.epconsortium.cryptomarket.finances.MarketEngine;
+import net.epconsortium.cryptomarket.finances.Money;
+import net.epconsortium.cryptomarket.finances.Negotiation;
+import net.epconsortium.cryptomarket.finances.Order;
+import net.epconsortium.cryptomarket.finances.OrderBook;
+import net.epconsortium.cryptomarket.finances.OrderBooks;
+import net.epconsortium.cryptomarket.finances.Trigger;
+import net.epconsortium.cryptomarket.finances.Triggers;
 import net.epconsortium.cryptomarket.ui.InventoryDrawer;
 import net.epconsortium.cryptomarket.ui.frames.MenuFrame;
 import net.epconsortium.cryptomarket.util.Configuration;
 import net.epconsortium.cryptomarket.util.Formatter;
 import org.bukkit.Bukkit;
+import org.bukkit.OfflinePlayer;
 import org.bukkit.command.Command;
 import org.bukkit.command.CommandExecutor;
 import org.bukkit.command.CommandSender;
 import org.bukkit.command.TabCompleter;
 import org.bukkit.entity.Player;
 import org.bukkit.scheduler.BukkitRunnable;
+import org.jetbrains.annotations.Nullable;
 
 import java.math.BigDecimal;
 import java.text.MessageFormat;
@@ -24,6 +40,7 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Objects;
+import java.util.function.Consumer;
 
 /**
  * Class used to process the commands of the plugin
@@ -58,6 +75,8 @@ public class CryptoMarketCommand implements CommandExecutor, TabCompleter {
                 return processTodayCommand(commandSender);
             case "update":
                 return processUpdateCommand(commandSender);
+            case "stats":
+                return processStatsCommand(commandSender, args);
         }
 
         if (commandSender instanceof Player) {
@@ -67,6 +86,10 @@ public class CryptoMarketCommand implements CommandExecutor, TabCompleter {
                     return processMenuCommand(player);
                 case "balance":
                     return processBalanceCommand(player);
+                case "order":
+                    return processOrderCommand(player, args);
+                case "trigger":
+                    return processTriggerCommand(player, args);
             }
         } else {
             commandSender.sendMessage("§4Only players can use this command!");
@@ -111,6 +134,94 @@ public class CryptoMarketCommand implements CommandExecutor, TabCompleter {
         return true;
     }
 
+    /**
+     * Process the stats command, shows the statistics of one area or of all of them
+     *
+     * @param sender sender
+     * @param args args
+     * @return true if the syntax is ok
+     */
+    private boolean processStatsCommand(CommandSender sender, String[] args) {
+        if (!sender.hasPermission("cryptomarket.stats")) {
+            sender.sendMessage(config.getMessageErrorNoPermission());
+            return true;
+        }
+        if (args.length > 2) {
+            return false;
+        }
+        String area = args.length == 2 ? args[1].toLowerCase() : "";
+        switch (area) {
+            case "":
+                sendDatabaseStats(sender);
+                sendInvestorStats(sender);
+                sendMarketStats(sender);
+                return true;
+            case "database":
+                sendDatabaseStats(sender);
+                return true;
+            case "investors":
+                sendInvestorStats(sender);
+                return true;
+            case "market":
+                sendMarketStats(sender);
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    private void sendDatabaseStats(CommandSender sender) {
+        ConnectionPool.Statistics stats = plugin.getConnectionFactory().getStatistics();
+        sender.sendMessage(config.getMessageStatsDatabase());
+        sender.sendMessage(MessageFormat.format(config.getMessageStatsConnections(), stats.getActive(),
+                stats.getIdle(), stats.getMaximumSize(), stats.getWaiting()));
+        sender.sendMessage(MessageFormat.format(config.getMessageStatsBorrowed(), stats.getBorrowCount(),
+                toMillis(stats.getAverageWaitNanos()), toMillis(stats.getMaxWaitNanos())));
+        sender.sendMessage(MessageFormat.format(config.getMessageStatsUsage(),
+                toMillis(stats.getAverageUsageNanos())));
+        sender.sendMessage(MessageFormat.format(config.getMessageStatsConnectionsLifecycle(),
+                stats.getCreatedCount(), stats.getEvictedCount(), stats.getTimeoutCount(), stats.getLeakCount()));
+        WriteBehindQueue.Statistics queue = plugin.getInvestorDao().getQueueStatistics();
+        sender.sendMessage(MessageFormat.format(config.getMessageStatsQueue(), queue.getSize(),
+                queue.getEnqueued(), queue.getCoalesced()));
+        sender.sendMessage(MessageFormat.format(config.getMessageStatsFlushes(), queue.getFlushes(),
+                toMillis(queue.getAverageFlushNanos()), queue.getFailures()));
+        sender.sendMessage(MessageFormat.format(config.getMessageStatsWritten(), queue.getInvestorsWritten(),
+                queue.getBalancesWritten(), String.format("%.1f", queue.getThroughput())));
+    }
+
+    private void sendInvestorStats(CommandSender sender) {
+        InvestorDao investorDao = plugin.getInvestorDao();
+        sender.sendMessage(config.getMessageStatsInvestors());
+        PreloadCache.Statistics preload = investorDao.getPreloadStatistics();
+        sender.sendMessage(MessageFormat.format(config.getMessageStatsPreloaded(), preload.getHits(),
+                preload.getMisses(), preload.getExpired(), preload.getStaged()));
+        sender.sendMessage(MessageFormat.format(config.getMessageStatsReady(),
+                toMillis(preload.getAverageReadyNanos()), toMillis(preload.getMaxReadyNanos())));
+        OfflineInvestorCache.Statistics offline = investorDao.getOfflineCacheStatistics();
+        sender.sendMessage(MessageFormat.format(config.getMessageStatsOfflineCache(), offline.getSize(),
+                offline.getMaximumSize(), offline.getHits(), offline.getMisses(), offline.getEvictions()));
+        InvestorLocks.Statistics locks = investorDao.getLocks().getStatistics();
+        sender.sendMessage(MessageFormat.format(config.getMessageStatsLocks(), locks.getAcquisitions(),
+                locks.getContended(), toMillis(locks.getAverageWaitNanos()), toMillis(locks.getMaxWaitNanos())));
+    }
+
+    private void sendMarketStats(CommandSender sender) {
+        MarketEngine.Statistics market = plugin.getEconomy().getMarketStatistics();
+        sender.sendMessage(config.getMessageStatsMarket());
+        sender.sendMessage(MessageFormat.format(config.getMessageStatsTrades(), market.getSettled(),
+                market.getFailed(), market.getPending(), market.getRejected()));
+        sender.sendMessage(MessageFormat.format(config.getMessageStatsBatches(), market.getBatches(),
+                String.format("%.1f", market.getAverageBatchSize()), String.format("%.0f", market.getThroughput())));
+        Triggers.Statistics triggers = plugin.getTriggers().getStatistics();
+        sender.sendMessage(MessageFormat.format(config.getMessageStatsTriggers(), triggers.getWaiting(),
+                triggers.getFired(), triggers.getUpdates(), toMillis(triggers.getAverageEvaluationNanos())));
+    }
+
+    private static String toMillis(long nanos) {
+        return String.format("%.2f", nanos / 1_000_000D);
+    }
+
     /**
      * Process the today command
      *
@@ -140,7 +251,7 @@ public class CryptoMarketCommand implements CommandExecutor, TabCompleter {
     public List<String> onTabComplete(CommandSender commandSender,
             Command command, String label, String[] args) {
         List<String> subCommands = Arrays.asList("set", "give", "take", "save",
-                "balance", "update", "today", "help");
+                "balance", "order", "trigger", "update", "today", "stats", "help");
         if (args.length == 0) {
             return subCommands;
         }
@@ -155,6 +266,36 @@ public class CryptoMarketCommand implements CommandExecutor, TabCompleter {
             return combinations;
         }
 
+        if (args.length == 2 && args[0].equalsIgnoreCase("order")) {
+            List<String> combinations = new ArrayList<>();
+            for (String action : Arrays.asList("buy", "sell", "cancel", "list", "book")) {
+                if (action.startsWith(args[1].toLowerCase())) {
+                    combinations.add(action);
+                }
+            }
+            return combinations;
+        }
+
+        if (args.length == 2 && args[0].equalsIgnoreCase("stats")) {
+            List<String> combinations = new ArrayList<>();
+            for (String area : Arrays.asList("database", "investors", "market")) {
+                if (area.startsWith(args[1].toLowerCase())) {
+                    combinations.add(area);
+                }
+            }
+            return combinations;
+        }
+
+        if (args.length == 2 && args[0].equalsIgnoreCase("trigger")) {
+            List<String> combinations = new ArrayList<>();
+            for (String action : Arrays.asList("stoploss", "takeprofit", "cancel", "list")) {
+                if (action.startsWith(args[1].toLowerCase())) {
+                    combinations.add(action);
+                }
+            }
+            return combinations;
+        }
+
         return null;
     }
 
@@ -187,6 +328,250 @@ public class CryptoMarketCommand implements CommandExecutor, TabCompleter {
         return true;
     }
 
+    /**
+     * Process the order command
+     *
+     * @param player player
+     * @param args args
+     * @return true if the syntax is ok
+     */
+    private boolean processOrderCommand(Player player, String[] args) {
+        if (!player.hasPermission("cryptomarket.order")) {
+            player.sendMessage(config.getMessageErrorNoPermission());
+            return true;
+        }
+        OrderBooks orderBooks = plugin.getOrderBooks();
+        if (!orderBooks.isLoaded()) {
+            player.sendMessage(config.getMessageOrdersUnavailable());
+            return true;
+        }
+        String action = args.length > 1 ? args[1].toLowerCase() : "";
+        switch (action) {
+            case "buy":
+                return processPlaceOrderCommand(player, args, Negotiation.PURCHASE);
+            case "sell":
+                return processPlaceOrderCommand(player, args, Negotiation.SELL);
+            case "cancel":
+                //cm order cancel id
+                if (args.length < 3) {
+                    return false;
+                }
+                long id;
+                try {
+                    id = Long.parseLong(args[2].startsWith("#") ? args[2].substring(1) : args[2]);
+                } catch (NumberFormatException ex) {
+                    player.sendMessage(config.getMessageOrderNotFound());
+                    return true;
+                }
+                Order cancelled = orderBooks.cancel(player.getUniqueId(), id);
+                if (cancelled == null) {
+                    player.sendMessage(config.getMessageOrderNotFound());
+                } else {
+                    player.sendMessage(MessageFormat.format(config.getMessageOrderCancelled(),
+                            String.valueOf(cancelled.getId())));
+                }
+                return true;
+            case "list":
+                player.sendMessage(config.getMessageOrderList());
+                for (Order order : orderBooks.getOrders(player.getUniqueId())) {
+                    player.sendMessage(MessageFormat.format(config.getMessageOrderListEntry(),
+                            String.valueOf(order.getId()), order.isBid() ? "buy" : "sell",
+                            Formatter.formatCryptocoin(Money.toCrypto(order.getRemaining())), order.getCoin(),
+                            Formatter.formatServerCurrency(Money.toCurrency(order.getPrice())),
+                            Formatter.formatCryptocoin(Money.toCrypto(order.getAmount()))));
+                }
+                return true;
+            case "book":
+                //cm order book coin
+                if (args.length < 3) {
+                    return false;
+                }
+                String coin = parseCoin(player, args[2]);
+                if (coin == null) {
+                    return true;
+                }
+                OrderBook.Depth depth = orderBooks.getBook(coin).getDepth(config.getOrderBookDepth());
+                player.sendMessage(MessageFormat.format(config.getMessageOrderBook(), coin));
+                long[][] asks = depth.getAsks();
+                // the asks are shown above the bids, the best ones in the middle
+                for (int i = asks.length - 1; i >= 0; i--) {
+                    sendLevel(player, config.getMessageOrderBookAsk(), asks[i]);
+                }
+                for (long[] bid : depth.getBids()) {
+                    sendLevel(player, config.getMessageOrderBookBid(), bid);
+                }
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Process the order buy and order sell commands
+     *
+     * @param player player
+     * @param args args
+     * @param side the side of the order
+     * @return true if the syntax is ok
+     */
+    private boolean processPlaceOrderCommand(Player player, String[] args, Negotiation side) {
+        //cm order buy|sell coin amount price
+        if (args.length < 5) {
+            return false;
+        }
+        final String coin = parseCoin(player, args[2]);
+        final BigDecimal amount = parseAmount(player, args[3], false);
+        final BigDecimal price = parseAmount(player, args[4], false);
+        if (coin == null || amount == null || price == null) {
+            return true;
+        }
+        Investor investor = plugin.getInvestorDao().getInvestor(player);
+        if (investor == null) {
+            player.sendMessage(config.getMessageErrorConnectingToDatabase());
+            return true;
+        }
+        OrderBooks orderBooks = plugin.getOrderBooks();
+        int max = config.getOrderBookMaxOrdersPerPlayer();
+        if (orderBooks.getOrders(player.getUniqueId()).size() >= max) {
+            player.sendMessage(MessageFormat.format(config.getMessageOrderLimit(), max));
+            return true;
+        }
+        Order order;
+        try {
+            long fixedAmount = Money.ofCrypto(amount);
+            long fixedPrice = Money.ofCurrency(price);
+            if (fixedAmount <= 0 || fixedPrice <= 0) {
+                player.sendMessage(config.getMessageErrorInvalidAmount());
+                return true;
+            }
+            order = orderBooks.place(player, investor, coin, side, fixedAmount, fixedPrice);
+        } catch (ArithmeticException ex) {
+            player.sendMessage(config.getMessageErrorInvalidAmount());
+            return true;
+        }
+        if (order == null) {
+            player.sendMessage(config.getMessageOrderInsufficientBalance());
+        } else if (order.getRemaining() > 0) {
+            player.sendMessage(MessageFormat.format(config.getMessageOrderPlaced(), String.valueOf(order.getId())));
+        }
+        return true;
+    }
+
+    /**
+     * Process the trigger command
+     *
+     * @param player player
+     * @param args args
+     * @return true if the syntax is ok
+     */
+    private boolean processTriggerCommand(Player player, String[] args) {
+        if (!player.hasPermission("cryptomarket.trigger")) {
+            player.sendMessage(config.getMessageErrorNoPermission());
+            return true;
+        }
+        Triggers triggers = plugin.getTriggers();
+        if (!triggers.isLoaded()) {
+            player.sendMessage(config.getMessageTriggersUnavailable());
+            return true;
+        }
+        String action = args.length > 1 ? args[1].toLowerCase() : "";
+        switch (action) {
+            case "stoploss":
+                return processCreateTriggerCommand(player, args, Trigger.Type.STOP_LOSS);
+            case "takeprofit":
+                return processCreateTriggerCommand(player, args, Trigger.Type.TAKE_PROFIT);
+            case "cancel":
+                //cm trigger cancel id
+                if (args.length < 3) {
+                    return false;
+                }
+                long id;
+                try {
+                    id = Long.parseLong(args[2].startsWith("#") ? args[2].substring(1) : args[2]);
+                } catch (NumberFormatException ex) {
+                    player.sendMessage(config.getMessageTriggerNotFound());
+                    return true;
+                }
+                Trigger cancelled = triggers.cancel(player.getUniqueId(), id);
+                if (cancelled == null) {
+                    player.sendMessage(config.getMessageTriggerNotFound());
+                } else {
+                    player.sendMessage(MessageFormat.format(config.getMessageTriggerCancelled(),
+                            String.valueOf(cancelled.getId())));
+                }
+                return true;
+            case "list":
+                player.sendMessage(config.getMessageTriggerList());
+                for (Trigger trigger : triggers.getTriggers(player.getUniqueId())) {
+                    player.sendMessage(MessageFormat.format(config.getMessageTriggerListEntry(),
+                            String.valueOf(trigger.getId()),
+                            trigger.getType() == Trigger.Type.STOP_LOSS ? "stop-loss" : "take-profit",
+                            Formatter.formatCryptocoin(Money.toCrypto(trigger.getAmount())), trigger.getCoin(),
+                            Formatter.formatServerCurrency(Money.toCurrency(trigger.getPrice()))));
+                }
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Process the trigger stoploss and trigger takeprofit commands
+     *
+     * @param player player
+     * @param args args
+     * @param type the type of the trigger
+     * @return true if the syntax is ok
+     */
+    private boolean processCreateTriggerCommand(Player player, String[] args, Trigger.Type type) {
+        //cm trigger stoploss|takeprofit coin amount price
+        if (args.length < 5) {
+            return false;
+        }
+        final String coin = parseCoin(player, args[2]);
+        final BigDecimal amount = parseAmount(player, args[3], false);
+        final BigDecimal price = parseAmount(player, args[4], false);
+        if (coin == null || amount == null || price == null) {
+            return true;
+        }
+        Investor investor = plugin.getInvestorDao().getInvestor(player);
+        if (investor == null) {
+            player.sendMessage(config.getMessageErrorConnectingToDatabase());
+            return true;
+        }
+        Triggers triggers = plugin.getTriggers();
+        int max = config.getTriggersMaxPerPlayer();
+        if (triggers.getTriggers(player.getUniqueId()).size() >= max) {
+            player.sendMessage(MessageFormat.format(config.getMessageTriggerLimit(), max));
+            return true;
+        }
+        long fixedAmount;
+        long fixedPrice;
+        try {
+            fixedAmount = Money.ofCrypto(amount);
+            fixedPrice = Money.ofCurrency(price);
+        } catch (ArithmeticException ex) {
+            player.sendMessage(config.getMessageErrorInvalidAmount());
+            return true;
+        }
+        if (fixedAmount <= 0 || fixedPrice <= 0) {
+            player.sendMessage(config.getMessageErrorInvalidAmount());
+            return true;
+        }
+        if (!plugin.getEconomy().has(coin, investor, amount)) {
+            player.sendMessage(config.getMessageTriggerInsufficientBalance());
+            return true;
+        }
+        Trigger trigger = triggers.create(player.getUniqueId(), coin, type, fixedAmount, fixedPrice);
+        player.sendMessage(MessageFormat.format(config.getMessageTriggerCreated(), String.valueOf(trigger.getId())));
+        return true;
+    }
+
+    private static void sendLevel(Player player, String message, long[] level) {
+        player.sendMessage(MessageFormat.format(message, Formatter.formatServerCurrency(Money.toCurrency(level[0])),
+                Formatter.formatCryptocoin(Money.toCrypto(level[1])), level[2]));
+    }
+
     /**
      * Process the save command
      *
@@ -221,35 +606,21 @@ public class CryptoMarketCommand implements CommandExecutor, TabCompleter {
             if (args.length < 4) {
                 return false;
             }
-            Player target = Bukkit.getPlayer(args[1]);
-            if (target == null) {
-                sender.sendMessage(config.getMessageErrorPlayerNotFound());
+            final BigDecimal amount = parseAmount(sender, args[2], false);
+            final String coin = parseCoin(sender, args[3]);
+            if (amount == null || coin == null) {
                 return false;
             }
-            final BigDecimal amount;
-            try {
-                amount = new BigDecimal(args[2]);
-                if (amount.doubleValue() <= 0) {
-                    throw new NumberFormatException();
+            withInvestor(sender, args[1], investor -> {
+                try {
+                    plugin.getEconomy().deposit(coin, investor, amount);
+                } catch (ArithmeticException ex) {
+                    sender.sendMessage(config.getMessageErrorInvalidAmount());
+                    return;
                 }
-            } catch (NumberFormatException ex) {
-                sender.sendMessage(config.getMessageErrorInvalidAmount());
-                return false;
-            }
-            final String coin = args[3].toUpperCase();
-            if (!config.getCoins().contains(coin)) {
-                sender.sendMessage(config.getMessageErrorInvalidCoin());
-                return false;
-            }
-            Investor investor = plugin.getInvestorDao().getInvestor(target);
-            if (investor == null) {
-                sender.sendMessage(config.getMessageErrorConnectingToDatabase());
-                return true;
-            }
-            plugin.getEconomy().deposit(coin, investor, amount);
-            sender.sendMessage(MessageFormat.format(config.getMessagePlayerBalanceUpdated(), target.getName()));
-
-
+                sender.sendMessage(MessageFormat.format(config.getMessagePlayerBalanceUpdated(),
+                        investor.getPlayer().getName()));
+            });
         } else {
             sender.sendMessage(config.getMessageErrorNoPermission());
         }
@@ -270,39 +641,26 @@ public class CryptoMarketCommand implements CommandExecutor, TabCompleter {
             if (args.length < 4) {
                 return false;
             }
-            Player target = Bukkit.getPlayer(args[1]);
-            if (target == null) {
-                sender.sendMessage(config.getMessageErrorPlayerNotFound());
+            final BigDecimal amount = parseAmount(sender, args[2], false);
+            final String coin = parseCoin(sender, args[3]);
+            if (amount == null || coin == null) {
                 return false;
             }
-            final BigDecimal amount;
-            try {
-                amount = new BigDecimal(args[2]);
-                if (amount.doubleValue() <= 0) {
-                    throw new NumberFormatException();
+            withInvestor(sender, args[1], investor -> {
+                Economy economy = plugin.getEconomy();
+                try {
+                    if (!economy.has(coin, investor, amount)) {
+                        sender.sendMessage(config.getMessageErrorInsufficientBalance());
+                        return;
+                    }
+                    economy.withdraw(coin, investor, amount);
+                } catch (ArithmeticException ex) {
+                    sender.sendMessage(config.getMessageErrorInvalidAmount());
+                    return;
                 }
-            } catch (NumberFormatException ex) {
-                sender.sendMessage(config.getMessageErrorInvalidAmount());
-                return false;
-            }
-            final String coin = args[3].toUpperCase();
-            if (!config.getCoins().contains(coin)) {
-                sender.sendMessage(config.getMessageErrorInvalidCoin());
-                return false;
-            }
-            Investor investor = plugin.getInvestorDao().getInvestor(target);
-
-            if (investor == null) {
-                sender.sendMessage(config.getMessageErrorConnectingToDatabase());
-                return true;
-            }
-            Economy economy = plugin.getEconomy();
-            if (economy.has(coin, investor, amount)) {
-                economy.withdraw(coin, investor, amount);
-                sender.sendMessage(MessageFormat.format(config.getMessagePlayerBalanceUpdated(), target.getName()));
-            } else {
-                sender.sendMessage(config.getMessageErrorInsufficientBalance());
-            }
+                sender.sendMessage(MessageFormat.format(config.getMessagePlayerBalanceUpdated(),
+                        investor.getPlayer().getName()));
+            });
         } else {
             sender.sendMessage(config.getMessageErrorNoPermission());
         }
@@ -323,33 +681,21 @@ public class CryptoMarketCommand implements CommandExecutor, TabCompleter {
             if (args.length < 4) {
                 return false;
             }
-            Player target = Bukkit.getPlayer(args[1]);
-            if (target == null) {
-                sender.sendMessage(config.getMessageErrorPlayerNotFound());
+            final BigDecimal amount = parseAmount(sender, args[2], true);
+            final String coin = parseCoin(sender, args[3]);
+            if (amount == null || coin == null) {
                 return false;
             }
-            final BigDecimal amount;
-            try {
-                amount = new BigDecimal(args[2]);
-                if (amount.doubleValue() < 0) {
-                    throw new NumberFormatException();
+            withInvestor(sender, args[1], investor -> {
+                try {
+                    plugin.getEconomy().set(coin, investor, amount);
+                } catch (ArithmeticException ex) {
+                    sender.sendMessage(config.getMessageErrorInvalidAmount());
+                    return;
                 }
-            } catch (NumberFormatException ex) {
-                sender.sendMessage(config.getMessageErrorInvalidAmount());
-                return false;
-            }
-            final String coin = args[3].toUpperCase();
-            if (!config.getCoins().contains(coin)) {
-                sender.sendMessage(config.getMessageErrorInvalidCoin());
-                return false;
-            }
-            Investor investor = plugin.getInvestorDao().getInvestor(target);
-            if (investor == null) {
-                sender.sendMessage(config.getMessageErrorConnectingToDatabase());
-                return true;
-            }
-            plugin.getEconomy().set(coin, investor, amount);
-            sender.sendMessage(MessageFormat.format(config.getMessagePlayerBalanceUpdated(), target.getName()));
+                sender.sendMessage(MessageFormat.format(config.getMessagePlayerBalanceUpdated(),
+                        investor.getPlayer().getName()));
+            });
         } else {
             sender.sendMessage(config.getMessageErrorNoPermission());
         }
@@ -357,6 +703,72 @@ public class CryptoMarketCommand implements CommandExecutor, TabCompleter {
         return true;
     }
 
+    /**
+     * Parses the amount argument
+     *
+     * @param sender sender
+     * @param arg the argument
+     * @param allowZero if zero is valid
+     * @return the amount or null if invalid
+     */
+    private @Nullable BigDecimal parseAmount(CommandSender sender, String arg, boolean allowZero) {
+        try {
+            BigDecimal amount = new BigDecimal(arg);
+            if (amount.signum() < 0 || (!allowZero && amount.signum() == 0)) {
+                throw new NumberFormatException();
+            }
+            return amount;
+        } catch (NumberFormatException ex) {
+            sender.sendMessage(config.getMessageErrorInvalidAmount());
+            return null;
+        }
+    }
+
+    /**
+     * Parses the coin argument
+     *
+     * @param sender sender
+     * @param arg the argument
+     * @return the coin or null if it is not configured
+     */
+    private @Nullable String parseCoin(CommandSender sender, String arg) {
+        final String coin = arg.toUpperCase();
+        if (!config.getCoins().contains(coin)) {
+            sender.sendMessage(config.getMessageErrorInvalidCoin());
+            return null;
+        }
+        return coin;
+    }
+
+    /**
+     * Runs the action on the main thread with the target's investor, see {@link InvestorDao#withInvestor}. The
+     * names of offline targets are looked up asynchronously
+     *
+     * @param sender sender
+     * @param name the target's name
+     * @param action the action
+     */
+    private void withInvestor(CommandSender sender, String name, Consumer<Investor> action) {
+        Runnable failure = () -> sender.sendMessage(config.getMessageErrorConnectingToDatabase());
+        Player online = Bukkit.getPlayer(name);
+        if (online != null) {
+            plugin.getInvestorDao().withInvestor(online.getUniqueId(), action, failure);
+            return;
+        }
+        Bukkit.getScheduler().runTaskAsynchronously(plugin, () -> {
+            // may look up the name on Mojang's servers
+            @SuppressWarnings("deprecation")
+            OfflinePlayer target = Bukkit.getOfflinePlayer(name);
+            Bukkit.getScheduler().runTask(plugin, () -> {
+                if (!target.hasPlayedBefore() && !target.isOnline()) {
+                    sender.sendMessage(config.getMessageErrorPlayerNotFound());
+                    return;
+                }
+                plugin.getInvestorDao().withInvestor(target.getUniqueId(), action, failure);
+            });
+        });
+    }
+
     /**
      * Process the help command
      *
@@ -2,6 +2,7 @@ package net.epconsortium.cryptomarket.conversation;
 
 import net.epconsortium.cryptomarket.CryptoMarket;
 import net.epconsortium.cryptomarket.conversation.prompt.ExitWarningPrompt;
+import net.epconsortium.cryptomarket.conversation.prompt.SettlementPrompt;
 import net.epconsortium.cryptomarket.database.dao.Investor;
 import net.epconsortium.cryptomarket.finances.Negotiation;
 import net.epconsortium.cryptomarket.util.Configuration;
@@ -61,7 +62,7 @@ public class NegotiationConversation implements ConversationPrefix {
         data.put("negotiation", negotiation);
         data.put("investor", investor);
 
-        return new ConversationFactory(plugin)
+        Conversation conversation = new ConversationFactory(plugin)
                 .withFirstPrompt(new ExitWarningPrompt())
                 .withLocalEcho(true)
                 .withInitialSessionData(data)
@@ -69,6 +70,9 @@ public class NegotiationConversation implements ConversationPrefix {
                 .withEscapeSequence(ChatColor.stripColor(
                         config.getConversationWordOfExit()))
                 .buildConversation(player);
+        // used to resume it when the trade is settled
+        conversation.getContext().setSessionData(SettlementPrompt.CONVERSATION, conversation);
+        return conversation;
     }
 
     @Override
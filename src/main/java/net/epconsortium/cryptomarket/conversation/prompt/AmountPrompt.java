@@ -22,8 +22,14 @@ public class AmountPrompt extends NumericPrompt {
         String coin = ((String) context.getSessionData("coin"));
         BigDecimal amount = new BigDecimal(number.toString());
 
-        if (plugin.getEconomy().convert(coin, amount).doubleValue() < 0) {
-            return new OutdatedDataPrompt();
+        try {
+            if (plugin.getEconomy().convert(coin, amount).doubleValue() < 0) {
+                return new OutdatedDataPrompt();
+            }
+        } catch (ArithmeticException ex) {
+            // too big for the fixed-point balances
+            context.getForWhom().sendRawMessage(config.getMessageErrorInvalidAmount());
+            return this;
         }
         context.setSessionData("amount", amount);
 
@@ -2,6 +2,7 @@ package net.epconsortium.cryptomarket.conversation.prompt;
 
 import net.epconsortium.cryptomarket.CryptoMarket;
 import net.epconsortium.cryptomarket.finances.Economy;
+import net.epconsortium.cryptomarket.finances.MarketEngine;
 import net.epconsortium.cryptomarket.finances.Negotiation;
 import net.epconsortium.cryptomarket.database.dao.Investor;
 import net.epconsortium.cryptomarket.util.Configuration;
@@ -39,21 +40,19 @@ public class ConfirmationPrompt extends FixedSetPrompt {
         
         BigDecimal value = (BigDecimal) context.getSessionData("amount");
 
+        context.setSessionData(SettlementPrompt.RESULT, null);
+        MarketEngine.TradeCallback callback = success -> SettlementPrompt.settled(context, success);
         Negotiation negotiation = getNegotiation(context);
         switch (negotiation) {
             case PURCHASE:
-                if (!economy.buy(coin, investor, value)) {
-                    return new ErrorPrompt();
-                }
+                economy.buy(coin, investor, value, callback);
                 break;
             case SELL:
-                if (!economy.sell(coin, investor, value)) {
-                    return new ErrorPrompt();
-                }
+                economy.sell(coin, investor, value, callback);
                 break;
         }
 
-        return new SuccessPrompt();
+        return new SettlementPrompt();
     }
 
     @Override
@@ -0,0 +1,61 @@
+package net.epconsortium.cryptomarket.conversation.prompt;
+
+import org.bukkit.conversations.Conversation;
+import org.bukkit.conversations.ConversationContext;
+import org.bukkit.conversations.Prompt;
+
+/**
+ * Prompt used while the market engine settles the negotiation. The conversation is resumed by the trade callback
+ *
+ * @author roinujnosde
+ */
+public class SettlementPrompt implements Prompt {
+
+    public static final String RESULT = "settlement-result";
+    public static final String CONVERSATION = "conversation";
+    private static final String AWAITING = "awaiting-settlement";
+
+    /**
+     * Stores the result of the trade and resumes the conversation, if it is waiting for it
+     *
+     * @param context the conversation context
+     * @param success the result
+     */
+    static void settled(ConversationContext context, boolean success) {
+        context.setSessionData(RESULT, success);
+        Conversation conversation = (Conversation) context.getSessionData(CONVERSATION);
+        if (context.getSessionData(AWAITING) == null || conversation == null) {
+            // settled before this prompt was shown, it does not block then
+            return;
+        }
+        context.setSessionData(AWAITING, null);
+        boolean echo = conversation.isLocalEchoEnabled();
+        conversation.setLocalEchoEnabled(false);
+        conversation.acceptInput("");
+        conversation.setLocalEchoEnabled(echo);
+    }
+
+    @Override
+    public String getPromptText(ConversationContext context) {
+        return Helper.getConfiguration(context).getMessageProcessingNegotiation();
+    }
+
+    @Override
+    public boolean blocksForInput(ConversationContext context) {
+        if (context.getSessionData(RESULT) != null) {
+            return false;
+        }
+        context.setSessionData(AWAITING, true);
+        return true;
+    }
+
+    @Override
+    public Prompt acceptInput(ConversationContext context, String input) {
+        Boolean result = (Boolean) context.getSessionData(RESULT);
+        if (result == null) {
+            return this;
+        }
+        context.setSessionData(RESULT, null);
+        return result ? new SuccessPrompt() : new ErrorPrompt();
+    }
+}
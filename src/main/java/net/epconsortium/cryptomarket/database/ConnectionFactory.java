@@ -10,29 +10,77 @@ import java.util.Properties;
 
 import net.epconsortium.cryptomarket.CryptoMarket;
 import net.epconsortium.cryptomarket.util.Configuration;
+import org.jetbrains.annotations.NotNull;
 
 /**
- * Class used to create a Connection object
+ * Class used to get Connection objects from a pool
  * 
  * @author roinujnosde
  */
 public class ConnectionFactory {
 
+    private static ConnectionFactory instance;
     private final CryptoMarket plugin;
     private final Configuration config;
+    private final ConnectionPool pool;
 
-    public ConnectionFactory(CryptoMarket plugin) {
+    private ConnectionFactory(CryptoMarket plugin) {
         this.plugin = Objects.requireNonNull(plugin);
         config = new Configuration(plugin);
+        // SQLite allows only one writer, more connections would just fail with SQLITE_BUSY
+        int maximumSize = config.isMySQLEnabled() ? config.getDatabasePoolMaximumSize() : 1;
+        pool = new ConnectionPool(this::openConnection, maximumSize,
+                config.getDatabasePoolConnectionTimeoutInMillis(), config.getDatabasePoolIdleTimeoutInMillis(),
+                config.getDatabasePoolLeakDetectionThresholdInMillis());
     }
-    
+
+    public static synchronized ConnectionFactory getInstance(@NotNull CryptoMarket plugin) {
+        if (instance == null) {
+            instance = new ConnectionFactory(plugin);
+        }
+        return instance;
+    }
+
     /**
-     * Connects to the database and returns a connection
+     * Borrows a connection from the pool, closing it returns the connection to the pool
      * 
      * @return the connection
-     * @throws java.sql.SQLException
+     * @throws java.sql.SQLException if no connection is available
      */
     public Connection getConnection() throws SQLException {
+        return pool.getConnection();
+    }
+
+    /**
+     * Closes the idle connections and reports the leaked ones
+     */
+    public void evictIdleConnections() {
+        pool.evictIdle();
+    }
+
+    /**
+     * Returns the connection pool metrics
+     *
+     * @return the statistics
+     */
+    public @NotNull ConnectionPool.Statistics getStatistics() {
+        return pool.getStatistics();
+    }
+
+    /**
+     * Closes the connection pool
+     */
+    public void close() {
+        pool.close();
+    }
+
+    /**
+     * Opens a new connection to the database
+     *
+     * @return the connection
+     * @throws SQLException if the connection fails
+     */
+    private @NotNull Connection openConnection() throws SQLException {
         Connection connection;
         if (config.isMySQLEnabled()) {
             connection = getMySQLConnection();
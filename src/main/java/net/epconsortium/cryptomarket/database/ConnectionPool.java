@@ -0,0 +1,454 @@
+package net.epconsortium.cryptomarket.database;
+
+import net.epconsortium.cryptomarket.CryptoMarket;
+import org.jetbrains.annotations.NotNull;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.SQLTimeoutException;
+import java.sql.Statement;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+
+/**
+ * Bounded pool of JDBC connections.
+ * Borrowed connections are proxies, closing them returns the real connection to the pool (and closes the statements
+ * created with it). Connections that were idle for a while are validated before they are handed out, the ones idle
+ * for longer than the idle timeout are closed by {@link #evictIdle()}, which also warns about connections held for
+ * longer than the leak detection threshold.
+ *
+ * @author roinujnosde
+ */
+public final class ConnectionPool {
+
+    /**
+     * Connections used more recently than this are not validated again
+     */
+    private static final long VALIDATION_BYPASS_MILLIS = 500;
+    private static final int VALIDATION_TIMEOUT_SECONDS = 2;
+
+    private final ConnectionSupplier supplier;
+    private final int maximumSize;
+    private final long connectionTimeout;
+    private final long idleTimeout;
+    private final long leakDetectionThreshold;
+
+    private final Semaphore permits;
+    private final Deque<PooledConnection> idle = new ArrayDeque<>();
+    private final Set<PooledConnection> borrowed = ConcurrentHashMap.newKeySet();
+    private volatile boolean closed;
+
+    private final AtomicLong borrowCount = new AtomicLong();
+    private final AtomicLong totalWaitNanos = new AtomicLong();
+    private final AtomicLong maxWaitNanos = new AtomicLong();
+    private final AtomicLong totalUsageNanos = new AtomicLong();
+    private final AtomicLong timeoutCount = new AtomicLong();
+    private final AtomicLong createdCount = new AtomicLong();
+    private final AtomicLong evictedCount = new AtomicLong();
+    private final AtomicLong leakCount = new AtomicLong();
+
+    /**
+     * Creates a pool
+     *
+     * @param supplier opens the real connections
+     * @param maximumSize maximum number of open connections
+     * @param connectionTimeout milliseconds to wait for a free connection
+     * @param idleTimeout milliseconds an unused connection is kept open
+     * @param leakDetectionThreshold milliseconds a connection can be held before a warning, 0 to disable
+     */
+    public ConnectionPool(@NotNull ConnectionSupplier supplier, int maximumSize, long connectionTimeout,
+                          long idleTimeout, long leakDetectionThreshold) {
+        if (maximumSize < 1) {
+            throw new IllegalArgumentException("maximumSize must be at least 1");
+        }
+        this.supplier = supplier;
+        this.maximumSize = maximumSize;
+        this.connectionTimeout = connectionTimeout;
+        this.idleTimeout = idleTimeout;
+        this.leakDetectionThreshold = leakDetectionThreshold;
+        permits = new Semaphore(maximumSize, true);
+    }
+
+    /**
+     * Borrows a connection, waiting up to the connection timeout if all of them are in use
+     *
+     * @return the connection, it must be closed to return it to the pool
+     * @throws SQLTimeoutException if no connection was available in time
+     * @throws SQLException if a connection could not be opened or the pool is closed
+     */
+    public @NotNull Connection getConnection() throws SQLException {
+        if (closed) {
+            throw new SQLException("the connection pool is closed");
+        }
+        long start = System.nanoTime();
+        try {
+            if (!permits.tryAcquire(connectionTimeout, TimeUnit.MILLISECONDS)) {
+                timeoutCount.incrementAndGet();
+                throw new SQLTimeoutException("no database connection available after " + connectionTimeout
+                        + "ms (" + borrowed.size() + " in use)");
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("interrupted while waiting for a database connection", ex);
+        }
+        try {
+            PooledConnection pooled = takeIdle();
+            if (pooled == null) {
+                pooled = new PooledConnection(supplier.get());
+                createdCount.incrementAndGet();
+            }
+            long now = System.nanoTime();
+            recordWait(now - start);
+            pooled.borrowedAt = now;
+            pooled.borrowSite = leakDetectionThreshold > 0 ? new Exception("Connection borrowed here") : null;
+            pooled.leakReported = false;
+            borrowed.add(pooled);
+            return pooled.newProxy();
+        } catch (SQLException | RuntimeException ex) {
+            permits.release();
+            throw ex;
+        }
+    }
+
+    /**
+     * Closes the connections idle for longer than the idle timeout and reports the ones borrowed for longer than
+     * the leak detection threshold
+     */
+    public void evictIdle() {
+        long now = System.nanoTime();
+        List<PooledConnection> expired = new ArrayList<>();
+        synchronized (idle) {
+            Iterator<PooledConnection> iterator = idle.descendingIterator();
+            while (iterator.hasNext()) {
+                PooledConnection pooled = iterator.next();
+                if (TimeUnit.NANOSECONDS.toMillis(now - pooled.lastUsed) >= idleTimeout) {
+                    iterator.remove();
+                    expired.add(pooled);
+                }
+            }
+        }
+        for (PooledConnection pooled : expired) {
+            evictedCount.incrementAndGet();
+            closeQuietly(pooled.connection);
+        }
+
+        if (leakDetectionThreshold <= 0) {
+            return;
+        }
+        for (PooledConnection pooled : borrowed) {
+            Exception site = pooled.borrowSite;
+            long held = TimeUnit.NANOSECONDS.toMillis(now - pooled.borrowedAt);
+            if (!pooled.leakReported && site != null && held >= leakDetectionThreshold) {
+                pooled.leakReported = true;
+                leakCount.incrementAndGet();
+                CryptoMarket.getInstance().getLogger().log(Level.WARNING, "A database connection has been in use for "
+                        + held + "ms, it may have leaked", site);
+            }
+        }
+    }
+
+    /**
+     * Closes the idle connections and the pool. Borrowed connections are closed when they are returned
+     */
+    public void close() {
+        closed = true;
+        List<PooledConnection> connections;
+        synchronized (idle) {
+            connections = new ArrayList<>(idle);
+            idle.clear();
+        }
+        connections.forEach(pooled -> closeQuietly(pooled.connection));
+    }
+
+    /**
+     * Returns a snapshot of the pool metrics
+     *
+     * @return the statistics
+     */
+    public @NotNull Statistics getStatistics() {
+        int idleSize;
+        synchronized (idle) {
+            idleSize = idle.size();
+        }
+        return new Statistics(maximumSize, borrowed.size(), idleSize, permits.getQueueLength(), borrowCount.get(),
+                totalWaitNanos.get(), maxWaitNanos.get(), totalUsageNanos.get(), timeoutCount.get(),
+                createdCount.get(), evictedCount.get(), leakCount.get());
+    }
+
+    private PooledConnection takeIdle() {
+        while (true) {
+            PooledConnection pooled;
+            synchronized (idle) {
+                pooled = idle.pollFirst();
+            }
+            if (pooled == null) {
+                return null;
+            }
+            if (isAlive(pooled)) {
+                return pooled;
+            }
+            evictedCount.incrementAndGet();
+            closeQuietly(pooled.connection);
+        }
+    }
+
+    private boolean isAlive(PooledConnection pooled) {
+        if (TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - pooled.lastUsed) < VALIDATION_BYPASS_MILLIS) {
+            return true;
+        }
+        try {
+            return pooled.connection.isValid(VALIDATION_TIMEOUT_SECONDS);
+        } catch (SQLException ex) {
+            return false;
+        }
+    }
+
+    private void recordWait(long nanos) {
+        borrowCount.incrementAndGet();
+        totalWaitNanos.addAndGet(nanos);
+        maxWaitNanos.accumulateAndGet(nanos, Math::max);
+    }
+
+    private void release(PooledConnection pooled) {
+        long now = System.nanoTime();
+        borrowed.remove(pooled);
+        totalUsageNanos.addAndGet(now - pooled.borrowedAt);
+        pooled.borrowSite = null;
+        pooled.lastUsed = now;
+        boolean reusable = !closed && !pooled.broken && reset(pooled.connection);
+        if (reusable) {
+            synchronized (idle) {
+                idle.addFirst(pooled);
+            }
+        } else {
+            closeQuietly(pooled.connection);
+        }
+        permits.release();
+    }
+
+    /**
+     * Discards uncommitted changes so the next borrower gets a clean connection
+     */
+    private static boolean reset(Connection connection) {
+        try {
+            if (connection.isClosed()) {
+                return false;
+            }
+            if (!connection.getAutoCommit()) {
+                connection.rollback();
+                connection.setAutoCommit(true);
+            }
+            connection.clearWarnings();
+            return true;
+        } catch (SQLException ex) {
+            return false;
+        }
+    }
+
+    private static void closeQuietly(AutoCloseable closeable) {
+        try {
+            closeable.close();
+        } catch (Exception ignored) {
+        }
+    }
+
+    /**
+     * Opens the real connections
+     */
+    @FunctionalInterface
+    public interface ConnectionSupplier {
+
+        @NotNull Connection get() throws SQLException;
+    }
+
+    /**
+     * A real connection and its pool state
+     */
+    private final class PooledConnection {
+
+        private final Connection connection;
+        private volatile long lastUsed = System.nanoTime();
+        private volatile long borrowedAt;
+        private volatile Exception borrowSite;
+        private volatile boolean leakReported;
+        private volatile boolean broken;
+
+        private PooledConnection(Connection connection) {
+            this.connection = connection;
+        }
+
+        private Connection newProxy() {
+            return (Connection) Proxy.newProxyInstance(ConnectionPool.class.getClassLoader(),
+                    new Class<?>[]{Connection.class}, new Handle(this));
+        }
+    }
+
+    /**
+     * Handle given to a borrower, it is invalidated when closed so a returned connection can't be used by mistake
+     */
+    private final class Handle implements InvocationHandler {
+
+        private PooledConnection pooled;
+        private final List<Statement> statements = new ArrayList<>();
+
+        private Handle(PooledConnection pooled) {
+            this.pooled = pooled;
+        }
+
+        @Override
+        public synchronized Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            switch (method.getName()) {
+                case "close":
+                    if (pooled != null) {
+                        statements.forEach(ConnectionPool::closeQuietly);
+                        statements.clear();
+                        PooledConnection returned = pooled;
+                        pooled = null;
+                        release(returned);
+                    }
+                    return null;
+                case "isClosed":
+                    if (pooled == null) {
+                        return true;
+                    }
+                    break;
+                case "equals":
+                    return proxy == args[0];
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                case "toString":
+                    return "Pooled" + (pooled == null ? "Connection[closed]" : pooled.connection);
+            }
+            if (pooled == null) {
+                throw new SQLException("the connection is closed");
+            }
+            try {
+                Object result = method.invoke(pooled.connection, args);
+                if (result instanceof Statement) {
+                    statements.add((Statement) result);
+                }
+                return result;
+            } catch (InvocationTargetException ex) {
+                Throwable cause = ex.getCause();
+                if (cause instanceof SQLException) {
+                    String state = ((SQLException) cause).getSQLState();
+                    // SQLState class 08 means the connection itself failed
+                    if (state != null && state.startsWith("08")) {
+                        pooled.broken = true;
+                    }
+                }
+                throw cause;
+            }
+        }
+    }
+
+    /**
+     * Snapshot of the pool metrics. Times are in nanoseconds
+     */
+    public static final class Statistics {
+
+        private final int maximumSize;
+        private final int active;
+        private final int idle;
+        private final int waiting;
+        private final long borrowCount;
+        private final long totalWaitNanos;
+        private final long maxWaitNanos;
+        private final long totalUsageNanos;
+        private final long timeoutCount;
+        private final long createdCount;
+        private final long evictedCount;
+        private final long leakCount;
+
+        private Statistics(int maximumSize, int active, int idle, int waiting, long borrowCount, long totalWaitNanos,
+                           long maxWaitNanos, long totalUsageNanos, long timeoutCount, long createdCount,
+                           long evictedCount, long leakCount) {
+            this.maximumSize = maximumSize;
+            this.active = active;
+            this.idle = idle;
+            this.waiting = waiting;
+            this.borrowCount = borrowCount;
+            this.totalWaitNanos = totalWaitNanos;
+            this.maxWaitNanos = maxWaitNanos;
+            this.totalUsageNanos = totalUsageNanos;
+            this.timeoutCount = timeoutCount;
+            this.createdCount = createdCount;
+            this.evictedCount = evictedCount;
+            this.leakCount = leakCount;
+        }
+
+        public int getMaximumSize() {
+            return maximumSize;
+        }
+
+        /**
+         * @return connections borrowed right now
+         */
+        public int getActive() {
+            return active;
+        }
+
+        /**
+         * @return open connections waiting to be borrowed
+         */
+        public int getIdle() {
+            return idle;
+        }
+
+        /**
+         * @return threads waiting for a connection right now
+         */
+        public int getWaiting() {
+            return waiting;
+        }
+
+        public long getBorrowCount() {
+            return borrowCount;
+        }
+
+        public long getAverageWaitNanos() {
+            return borrowCount == 0 ? 0 : totalWaitNanos / borrowCount;
+        }
+
+        public long getMaxWaitNanos() {
+            return maxWaitNanos;
+        }
+
+        /**
+         * @return average time a connection is held by a borrower
+         */
+        public long getAverageUsageNanos() {
+            long returned = borrowCount - active;
+            return returned <= 0 ? 0 : totalUsageNanos / returned;
+        }
+
+        public long getTimeoutCount() {
+            return timeoutCount;
+        }
+
+        public long getCreatedCount() {
+            return createdCount;
+        }
+
+        public long getEvictedCount() {
+            return evictedCount;
+        }
+
+        public long getLeakCount() {
+            return leakCount;
+        }
+    }
+}
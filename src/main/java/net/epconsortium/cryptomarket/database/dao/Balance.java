@@ -1,25 +1,41 @@
 package net.epconsortium.cryptomarket.database.dao;
 
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+import net.epconsortium.cryptomarket.finances.Money;
+
+import java.io.IOException;
 import java.math.BigDecimal;
 import java.math.RoundingMode;
 import java.util.Objects;
 
 /**
  * Class used to represent the Balance of one coin
- * 
+ * The amounts are kept in fixed-point, see {@link Money}, and converted to BigDecimal only when they are persisted
+ * or displayed
+ *
  * @author roinujnosde
  */
 public class Balance {
 
-    private BigDecimal totalPurchased;
-    private BigDecimal totalPaid;
+    private long totalPurchased;
+    private long totalPaid;
+    /**
+     * Incremented on every change, so the saving code can tell if the balance changed since it was last written
+     */
+    private volatile long version;
+    private volatile long savedVersion;
 
     Balance(BigDecimal totalPurchased, BigDecimal totalPaid)
             throws IllegalArgumentException {
-        Objects.requireNonNull(totalPaid);
-        Objects.requireNonNull(totalPurchased);
+        this(Money.ofCrypto(Objects.requireNonNull(totalPurchased)),
+                Money.ofCurrency(Objects.requireNonNull(totalPaid)));
+    }
 
-        if (totalPaid.doubleValue() < 0 || totalPurchased.doubleValue() < 0) {
+    Balance(long totalPurchased, long totalPaid) throws IllegalArgumentException {
+        if (totalPaid < 0 || totalPurchased < 0) {
             throw new IllegalArgumentException("amounts cannot be less than 0");
         }
 
@@ -33,20 +49,42 @@ public class Balance {
      * @return the value
      */
     public BigDecimal getValue() {
+        return Money.toCrypto(totalPurchased);
+    }
+
+    /**
+     * Returns the balance value
+     *
+     * @return the fixed-point value
+     */
+    public long getFixedPointValue() {
         return totalPurchased;
     }
 
+    /**
+     * Returns the total paid for this balance
+     *
+     * @return the fixed-point amount in server coin
+     */
+    long getFixedPointPaid() {
+        return totalPaid;
+    }
+
     /**
      * Returns the purchase average
      *
      * @return the average (totalPaid / totalPurchased)
      */
     public BigDecimal getPurchaseAverage() {
-        if (totalPurchased.compareTo(BigDecimal.ZERO) == 0) {
-            return BigDecimal.ZERO;
+        return Money.toCurrency(getFixedPointPurchaseAverage());
+    }
+
+    private long getFixedPointPurchaseAverage() {
+        if (totalPurchased == 0) {
+            return 0;
         }
 
-        return totalPaid.divide(totalPurchased, RoundingMode.FLOOR);
+        return Money.divide(totalPaid, totalPurchased, Money.CRYPTO_SCALE, RoundingMode.FLOOR);
     }
 
     /**
@@ -59,17 +97,29 @@ public class Balance {
      */
     public void setValue(BigDecimal value) throws IllegalArgumentException {
         Objects.requireNonNull(value);
+        setValue(Money.ofCrypto(value));
+    }
 
-        if (value.doubleValue() < 0) {
+    /**
+     * Sets the value of the balance and maintains the average purchase returned
+     * by {@link #getPurchaseAverage()}
+     *
+     * @param value the new fixed-point value
+     * @throws IllegalArgumentException if value is less than 0
+     */
+    public void setValue(long value) throws IllegalArgumentException {
+        if (value < 0) {
             throw new IllegalArgumentException("value cannot be less than 0");
         }
 
-        if (value.compareTo(BigDecimal.ZERO) == 0) {
-            totalPaid = BigDecimal.ZERO;
+        if (value == 0) {
+            totalPaid = 0;
         } else {
-            totalPaid = value.multiply(getPurchaseAverage());
+            totalPaid = Money.multiply(value, getFixedPointPurchaseAverage(), Money.CRYPTO_SCALE,
+                    RoundingMode.HALF_UP);
         }
         totalPurchased = value;
+        version++;
     }
 
     /**
@@ -84,23 +134,35 @@ public class Balance {
             throws IllegalArgumentException {
         Objects.requireNonNull(sold);
         Objects.requireNonNull(received);
+        decrease(Money.ofCrypto(sold), Money.ofCurrency(received));
+    }
 
-        if (sold.doubleValue() <= 0 || received.doubleValue() <= 0) {
+    /**
+     * Decreases the balance value
+     *
+     * @param sold fixed-point cryptocoin sold amount
+     * @param received fixed-point amount received in server coin
+     * @throws IllegalArgumentException if sold is bigger than
+     * {@link #getValue()}; if sold or received are less or equal to 0
+     */
+    public void decrease(long sold, long received) throws IllegalArgumentException {
+        if (sold <= 0 || received <= 0) {
             throw new IllegalArgumentException("sold and received cannot be"
                     + "less or equal to 0");
         }
 
-        if (sold.doubleValue() > totalPurchased.doubleValue()) {
+        if (sold > totalPurchased) {
             throw new IllegalArgumentException("sold cannot be bigger than the"
                     + "purchased amount");
         }
 
-        if (received.doubleValue() >= totalPaid.doubleValue()) {
-            totalPaid = new BigDecimal(0);
+        if (received >= totalPaid) {
+            totalPaid = 0;
         } else {
-            totalPaid = totalPaid.subtract(received);
+            totalPaid -= received;
         }
-        totalPurchased = totalPurchased.subtract(sold);
+        totalPurchased -= sold;
+        version++;
     }
 
     /**
@@ -114,14 +176,54 @@ public class Balance {
             throws IllegalArgumentException {
         Objects.requireNonNull(paid);
         Objects.requireNonNull(purchased);
+        increase(Money.ofCrypto(purchased), Money.ofCurrency(paid));
+    }
 
-        if (purchased.doubleValue() <= 0 || paid.doubleValue() <= 0) {
+    /**
+     * Increases the balance value
+     *
+     * @param purchased fixed-point cryptocoin purchased amount
+     * @param paid fixed-point amount paid in server coin
+     * @throws IllegalArgumentException if purchased or paid are not positive
+     * @throws ArithmeticException if the balance overflows
+     */
+    public void increase(long purchased, long paid) throws IllegalArgumentException {
+        if (purchased <= 0 || paid <= 0) {
             throw new IllegalArgumentException("the parameters cannot be "
                     + "less or equal to 0");
         }
 
-        totalPaid = totalPaid.add(paid);
-        totalPurchased = totalPurchased.add(purchased);
+        long newPaid = Math.addExact(totalPaid, paid);
+        totalPurchased = Math.addExact(totalPurchased, purchased);
+        totalPaid = newPaid;
+        version++;
+    }
+
+    /**
+     * Returns the modification version, it changes every time the balance changes
+     *
+     * @return the version
+     */
+    long getVersion() {
+        return version;
+    }
+
+    /**
+     * Checks if the balance changed since it was last saved
+     *
+     * @return true if changed
+     */
+    boolean isDirty() {
+        return version != savedVersion;
+    }
+
+    /**
+     * Marks the balance as saved up to the version
+     *
+     * @param version the version that was written, read before the amounts
+     */
+    void markSaved(long version) {
+        savedVersion = version;
     }
 
     /**
@@ -133,19 +235,74 @@ public class Balance {
      */
     public BigDecimal getProfitPercentage(BigDecimal exchangeRate) {
         Objects.requireNonNull(exchangeRate);
+        return BigDecimal.valueOf(getProfitPercentage(Money.ofCrypto(exchangeRate)), 2);
+    }
 
-        BigDecimal sell = exchangeRate.multiply(totalPurchased);
+    /**
+     * Returns the profit percentage if the investor sells his balance at this
+     * exchange rate. This can return a negative value meaning a loss.
+     *
+     * @param exchangeRate the fixed-point exchange rate
+     * @return the percentage with two decimal places (10000 = 100%)
+     */
+    public long getProfitPercentage(long exchangeRate) {
+        if (exchangeRate <= 0 || totalPurchased == 0) {
+            return 0;
+        }
+        long sell = Money.convert(exchangeRate, totalPurchased);
+        if (sell <= 0) {
+            return 0;
+        }
 
-        if (sell.compareTo(BigDecimal.ZERO) <= 0) {
-            return BigDecimal.ZERO;
+        long divisor = totalPaid;
+        if (divisor == 0) {
+            divisor = Money.ofCurrency(BigDecimal.ONE);
         }
-        
-        BigDecimal divisor = totalPaid;
-        if (totalPaid.doubleValue() == 0) {
-            divisor = BigDecimal.ONE;
+
+        // (sell / divisor - 1) * 100, with two decimal places
+        return Money.divide(Math.subtractExact(sell, divisor), divisor, 4, RoundingMode.FLOOR);
+    }
+
+    /**
+     * Reads and writes the amounts as decimal numbers, the format used before they were fixed-point
+     */
+    static class Adapter extends TypeAdapter<Balance> {
+
+        @Override
+        public void write(JsonWriter out, Balance balance) throws IOException {
+            if (balance == null) {
+                out.nullValue();
+                return;
+            }
+            out.beginObject();
+            out.name("totalPurchased").jsonValue(Money.toCrypto(balance.totalPurchased).toPlainString());
+            out.name("totalPaid").jsonValue(Money.toCurrency(balance.totalPaid).toPlainString());
+            out.endObject();
         }
 
-        return sell.divide(divisor, RoundingMode.FLOOR)
-                .subtract(new BigDecimal(1)).multiply(new BigDecimal(100));
+        @Override
+        public Balance read(JsonReader in) throws IOException {
+            if (in.peek() == JsonToken.NULL) {
+                in.nextNull();
+                return null;
+            }
+            BigDecimal totalPurchased = BigDecimal.ZERO;
+            BigDecimal totalPaid = BigDecimal.ZERO;
+            in.beginObject();
+            while (in.hasNext()) {
+                switch (in.nextName()) {
+                    case "totalPurchased":
+                        totalPurchased = new BigDecimal(in.nextString());
+                        break;
+                    case "totalPaid":
+                        totalPaid = new BigDecimal(in.nextString());
+                        break;
+                    default:
+                        in.skipValue();
+                }
+            }
+            in.endObject();
+            return new Balance(totalPurchased, totalPaid);
+        }
     }
 }
@@ -1,26 +1,46 @@
 package net.epconsortium.cryptomarket.database.dao;
 
+import net.epconsortium.cryptomarket.finances.CoinRegistry;
 import net.epconsortium.cryptomarket.finances.ExchangeRate;
+import net.epconsortium.cryptomarket.finances.Money;
+import net.epconsortium.cryptomarket.finances.RateHistory;
 import org.bukkit.OfflinePlayer;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
 import java.math.BigDecimal;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Class representing an Investor
  * It contains a reference to the OfflinePlayer and to the Balance objects
+ * The balances must only be changed holding the investor's lock, see {@link InvestorLocks}
  * 
  * @author roinujnosde
  */
 public class Investor {
     private final OfflinePlayer player;
     private final Map<String, Balance> balances;
+    private final CoinRegistry registry;
+    private final Balance[] indexedBalances;
 
-    Investor(OfflinePlayer player, Map<String, Balance> balances) {
+    Investor(OfflinePlayer player, Map<String, Balance> balances, CoinRegistry registry) {
         this.player = Objects.requireNonNull(player);
-        this.balances = Objects.requireNonNull(balances);
+        // saved asynchronously while the main thread adds balances
+        this.balances = new ConcurrentHashMap<>();
+        this.registry = Objects.requireNonNull(registry);
+        indexedBalances = new Balance[registry.size()];
+        for (Map.Entry<String, Balance> entry : balances.entrySet()) {
+            if (entry.getValue() == null) {
+                continue;
+            }
+            this.balances.put(entry.getKey(), entry.getValue());
+            int id = registry.getId(entry.getKey());
+            if (id != -1) {
+                indexedBalances[id] = entry.getValue();
+            }
+        }
     }
 
     /**
@@ -39,6 +59,10 @@ public class Investor {
      * @return balance
      */
     public Balance getBalance(String coin) {
+        int id = registry.getId(coin);
+        if (id != -1) {
+            return getBalance(id);
+        }
         Balance balance = balances.get(coin);
         if (balance == null) {
             balance = new Balance(BigDecimal.ZERO, BigDecimal.ZERO);
@@ -48,6 +72,23 @@ public class Investor {
         return balance;
     }
 
+    /**
+     * Returns the balance of the Investor in this coin
+     *
+     * @param coin coin id
+     * @return balance
+     */
+    public Balance getBalance(int coin) {
+        Balance balance = indexedBalances[coin];
+        if (balance == null) {
+            balance = new Balance(BigDecimal.ZERO, BigDecimal.ZERO);
+            balances.put(registry.getSymbol(coin), balance);
+            indexedBalances[coin] = balance;
+        }
+
+        return balance;
+    }
+
     /**
      * Converts this Investor's balance in cryptocoins to the server's currency
      *
@@ -58,9 +99,28 @@ public class Investor {
         if (rate == null) {
             return new BigDecimal(-1);
         }
-        BigDecimal patrimony = BigDecimal.ZERO;
-        for (Map.Entry<String, Balance> entry : getBalances().entrySet()) {
-            patrimony = patrimony.add(rate.getCoinValue(entry.getKey()).multiply(entry.getValue().getValue()));
+        return Money.toCurrency(getPatrimony(rate));
+    }
+
+    /**
+     * Converts this Investor's balance in cryptocoins to the server's currency, without allocating.
+     * Coins without an exchange rate are not counted
+     *
+     * @param rate the {@link ExchangeRate} used to calculate the patrimony
+     * @return the fixed-point converted patrimony or -1 if the rate is null
+     * @throws ArithmeticException if the patrimony overflows
+     */
+    public long getPatrimony(@Nullable ExchangeRate rate) {
+        if (rate == null) {
+            return -1;
+        }
+        long patrimony = 0;
+        for (int id = 0; id < indexedBalances.length; id++) {
+            Balance balance = indexedBalances[id];
+            long coinValue = rate.getFixedPointValue(id);
+            if (balance != null && coinValue != RateHistory.MISSING) {
+                patrimony = Math.addExact(patrimony, Money.convert(coinValue, balance.getFixedPointValue()));
+            }
         }
 
         return patrimony;
@@ -71,7 +131,7 @@ public class Investor {
     }
 
     public int compareTo(@NotNull Investor other, @NotNull ExchangeRate rate) {
-        return getConvertedPatrimony(rate).compareTo(other.getConvertedPatrimony(rate));
+        return Long.compare(getPatrimony(rate), other.getPatrimony(rate));
     }
 
     @Override
@@ -89,6 +149,33 @@ public class Investor {
         return player.getUniqueId().hashCode();
     }
 
+    /**
+     * Returns the modification version, it changes every time one of the balances changes
+     *
+     * @return the version
+     */
+    long getVersion() {
+        long version = 0;
+        for (Balance balance : balances.values()) {
+            version += balance.getVersion();
+        }
+        return version;
+    }
+
+    /**
+     * Checks if any balance changed since it was last saved
+     *
+     * @return true if changed
+     */
+    boolean isDirty() {
+        for (Balance balance : balances.values()) {
+            if (balance.isDirty()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     /**
      * Returns an unmodifiable Map of the Investor's balances
      * 
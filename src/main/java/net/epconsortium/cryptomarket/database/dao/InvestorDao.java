@@ -1,40 +1,78 @@
 package net.epconsortium.cryptomarket.database.dao;
 
-import com.google.gson.Gson;
-import com.google.gson.reflect.TypeToken;
 import net.epconsortium.cryptomarket.CryptoMarket;
 import net.epconsortium.cryptomarket.database.ConnectionFactory;
+import net.epconsortium.cryptomarket.finances.CoinRegistry;
+import net.epconsortium.cryptomarket.finances.ExchangeRate;
+import net.epconsortium.cryptomarket.finances.Holdings;
+import net.epconsortium.cryptomarket.finances.RateHistory;
+import net.epconsortium.cryptomarket.util.Configuration;
 import org.bukkit.Bukkit;
 import org.bukkit.OfflinePlayer;
 import org.bukkit.scheduler.BukkitRunnable;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
-import java.lang.reflect.Type;
+import java.nio.ByteBuffer;
 import java.sql.*;
 import java.util.*;
-import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.function.Consumer;
 
 import static net.epconsortium.cryptomarket.CryptoMarket.debug;
 
 /**
  * Class used to manage the Investors
+ * The balances are stored one row per investor and coin, keyed by (uuid, coin), with the amounts in the
+ * fixed-point representation of {@link net.epconsortium.cryptomarket.finances.Money}
  *
  * @author roinujnosde
  */
 public class InvestorDao {
 
+    static final String BALANCES_TABLE = "investor_balances";
+    /**
+     * Rows per multi-row REPLACE, small enough for SQLite's limit of 999 parameters
+     */
+    private static final int ROWS_PER_STATEMENT = 200;
+    /**
+     * Time the data read during the pre-login waits for the join
+     */
+    private static final long PRELOAD_TTL_MILLIS = 30_000;
+    /**
+     * Investors read per query by the bulk loader, small enough for SQLite's limit of 999 parameters
+     */
+    private static final int BULK_LOAD_CHUNK = 500;
+    /**
+     * Rows fetched per round trip when streaming the balances from SQLite
+     */
+    private static final int STREAM_FETCH_SIZE = 1000;
     private static InvestorDao instance;
-    private static final List<Investor> ONLINE_INVESTORS = new CopyOnWriteArrayList<>();
-    private static ConnectionFactory connectionFactory;
-    private final Gson gson = new Gson();
-    private static final Type BALANCES_TYPE = TypeToken.getParameterized(Map.class, String.class, Balance.class)
-            .getType();
+    private final ConnectionFactory connectionFactory;
+    private final LegacyBalancesMigrator migrator;
+    private final WriteBehindQueue queue;
+    private final OfflineInvestorCache offlineCache;
+    private final InvestorRegistry registry;
+    private final Map<UUID, CompletableFuture<Investor>> offlineLoads = new ConcurrentHashMap<>();
+    private final PreloadCache preloads = new PreloadCache(PRELOAD_TTL_MILLIS);
+    private final InvestorLocks locks = new InvestorLocks();
     private final CryptoMarket plugin;
+    private final boolean mysql;
 
     private InvestorDao(CryptoMarket plugin) {
         this.plugin = Objects.requireNonNull(plugin);
-        connectionFactory = new ConnectionFactory(plugin);
+        connectionFactory = plugin.getConnectionFactory();
+        Configuration config = new Configuration(plugin);
+        mysql = config.isMySQLEnabled();
+        migrator = new LegacyBalancesMigrator(plugin, connectionFactory, mysql);
+        queue = new WriteBehindQueue(this::write, config.getWriteBehindBatchSize(),
+                config.getWriteBehindFlushIntervalInMillis());
+        offlineCache = new OfflineInvestorCache(config.getOfflineCacheMaximumSize(),
+                config.getOfflineCacheExpireAfterInMillis());
+        registry = new InvestorRegistry(offlineCache);
     }
 
     public static InvestorDao getInstance(@NotNull CryptoMarket plugin) {
@@ -45,7 +83,7 @@ public class InvestorDao {
     }
 
     /**
-     * Creates the table if it does not exist
+     * Creates the table if it does not exist and starts the migration of the legacy data, if there is any
      */
     public void configureDatabase(CryptoMarket plugin, DatabaseConfigurationCallback callback) {
         Objects.requireNonNull(plugin);
@@ -54,14 +92,22 @@ public class InvestorDao {
             @Override
             public void run() {
                 boolean success;
-                try (Connection connection = connectionFactory.getConnection()) {
-                    connection.createStatement().execute("CREATE TABLE IF NOT EXISTS investors (uuid VARCHAR(255), balances TEXT);");
+                boolean migrate = false;
+                try (Connection connection = connectionFactory.getConnection();
+                     Statement statement = connection.createStatement()) {
+                    statement.execute("CREATE TABLE IF NOT EXISTS " + BALANCES_TABLE + " (uuid BINARY(16) NOT NULL, "
+                            + "coin VARCHAR(16) NOT NULL, purchased BIGINT NOT NULL, paid BIGINT NOT NULL, "
+                            + "PRIMARY KEY (uuid, coin));");
+                    migrate = migrator.prepare(connection);
                     success = true;
                 } catch (SQLException ex) {
                     CryptoMarket.warn("Error configuring the database:");
                     ex.printStackTrace();
                     success = false;
                 }
+                if (migrate) {
+                    Bukkit.getScheduler().runTaskAsynchronously(plugin, migrator::run);
+                }
                 boolean finalSuccess = success;
                 Bukkit.getScheduler().runTask(plugin, () -> callback.onDatabaseConfigured(finalSuccess));
             }
@@ -69,123 +115,765 @@ public class InvestorDao {
     }
 
     /**
-     * Inserts the Investor data into the database
+     * Returns the investor if it is online and loaded
      *
-     * @param investor investor to insert
+     * @param player player
+     * @return the investor or null
      */
-    private void insert(@NotNull Investor investor) {
-        try (Connection connection = new ConnectionFactory(plugin).getConnection()) {
-            PreparedStatement s = connection.prepareStatement("INSERT INTO investors (uuid, balances) VALUES (?,?);");
-            s.setString(1, investor.getPlayer().getUniqueId().toString());
-            s.setString(2, gson.toJson(investor.getBalances(), BALANCES_TYPE));
+    public @Nullable Investor getInvestor(@NotNull final OfflinePlayer player) {
+        return registry.getOnline(player.getUniqueId());
+    }
 
-            s.execute();
-            ONLINE_INVESTORS.add(investor);
-        } catch (SQLException ex) {
-            CryptoMarket.warn("Error saving the Investor to the database: " + investor);
-            ex.printStackTrace();
+    /**
+     * Returns the investor if it is online or cached offline. If it is neither, it starts loading it into the
+     * offline cache, so a later call finds it
+     *
+     * @param player player
+     * @return the investor or null if it is not available yet
+     */
+    public @Nullable Investor getCachedInvestor(@NotNull final OfflinePlayer player) {
+        Investor investor = registry.getOnlineOrCached(player.getUniqueId());
+        if (investor == null && registry.getState(player.getUniqueId()) == InvestorRegistry.State.UNLOADED) {
+            loadOfflineInvestor(player);
         }
+        return investor;
     }
 
-    public @Nullable Investor getInvestor(@NotNull final OfflinePlayer player) {
-        for (Investor investor : ONLINE_INVESTORS) {
-            if (investor.getUniqueId().equals(player.getUniqueId())) {
-                return investor;
+    /**
+     * Returns the investor, online or not, reading it from the database into the offline cache if needed.
+     * Concurrent requests for the same investor share one read
+     *
+     * @param player player
+     * @return a future completed with the investor, or exceptionally if it could not be read
+     */
+    public @NotNull CompletableFuture<Investor> loadOfflineInvestor(@NotNull final OfflinePlayer player) {
+        UUID uuid = player.getUniqueId();
+        Investor investor = registry.getOnlineOrCached(uuid);
+        if (investor != null) {
+            return CompletableFuture.completedFuture(investor);
+        }
+        CompletableFuture<Investor> loading = registry.getFuture(uuid);
+        if (loading != null) {
+            return loading;
+        }
+        CompletableFuture<Investor> future = new CompletableFuture<>();
+        CompletableFuture<Investor> existing = offlineLoads.putIfAbsent(uuid, future);
+        if (existing != null) {
+            return existing;
+        }
+        Bukkit.getScheduler().runTaskAsynchronously(plugin, () -> {
+            try (Connection connection = connectionFactory.getConnection()) {
+                Map<String, Balance> balances = readBalances(connection, uuid, player.getName());
+                Investor cached = registry.cacheOffline(new Investor(player, balances, plugin.getCoinRegistry()));
+                if (cached != null) {
+                    future.complete(cached);
+                } else {
+                    // joined meanwhile
+                    getInvestorFuture(player).whenComplete((online, error) -> {
+                        if (error != null) {
+                            future.completeExceptionally(error);
+                        } else {
+                            future.complete(online);
+                        }
+                    });
+                }
+            } catch (SQLException ex) {
+                CryptoMarket.warn("An error occurred while retrieving data for " + player.getName());
+                ex.printStackTrace();
+                future.completeExceptionally(ex);
+            } finally {
+                offlineLoads.remove(uuid, future);
             }
+        });
+        return future;
+    }
+
+    /**
+     * Runs the action on the main thread with the investor, online or not, reading it into the offline cache if
+     * needed. Must be called on the main thread
+     *
+     * @param uuid the investor's unique id
+     * @param action the action
+     * @param failure called on the main thread if the investor could not be read
+     */
+    public void withInvestor(@NotNull UUID uuid, @NotNull Consumer<Investor> action, @NotNull Runnable failure) {
+        OfflinePlayer player = Bukkit.getOfflinePlayer(uuid);
+        Investor online = getInvestor(player);
+        if (online != null) {
+            action.accept(online);
+            return;
         }
-        return null;
+        loadOfflineInvestor(player).whenComplete((investor, error) -> Bukkit.getScheduler().runTask(plugin, () -> {
+            if (investor != null) {
+                action.accept(investor);
+            } else if (error == null) {
+                // quit while loading, try again from the offline cache
+                withInvestor(uuid, action, failure);
+            } else {
+                failure.run();
+            }
+        }));
+    }
+
+    /**
+     * Returns the metrics of the offline investors cache
+     *
+     * @return the statistics
+     */
+    public @NotNull OfflineInvestorCache.Statistics getOfflineCacheStatistics() {
+        return offlineCache.getStatistics();
     }
 
+    /**
+     * Returns a future completed when the investor is loaded, with null if the player quit meanwhile
+     *
+     * @param player player
+     * @return the future, completed with null if the investor is not loaded nor loading
+     */
+    public @NotNull CompletableFuture<Investor> getInvestorFuture(@NotNull final OfflinePlayer player) {
+        CompletableFuture<Investor> future = registry.getFuture(player.getUniqueId());
+        return future != null ? future : CompletableFuture.completedFuture(null);
+    }
+
+    /**
+     * Returns the lifecycle state of the investor
+     *
+     * @param player player
+     * @return the state
+     */
+    public @NotNull InvestorRegistry.State getState(@NotNull final OfflinePlayer player) {
+        return registry.getState(player.getUniqueId());
+    }
+
+    /**
+     * Unloads the investor, queueing it to be saved if it has changes
+     *
+     * @param player player
+     */
     public void unloadInvestor(@NotNull final OfflinePlayer player) {
-        Investor investor = getInvestor(player);
-        if (investor == null) { //not loaded
+        Investor investor = registry.unload(player.getUniqueId());
+        if (investor != null) {
+            queue.enqueue(investor);
+        }
+    }
+
+    /**
+     * Reads the investor's data while the player is logging in, so it is ready when they join.
+     * Must be called asynchronously, usually from the AsyncPlayerPreLoginEvent
+     *
+     * @param uuid the player's unique id
+     * @param name the player's name
+     */
+    public void preloadInvestor(@NotNull UUID uuid, @NotNull String name) {
+        if (registry.getState(uuid) != InvestorRegistry.State.UNLOADED || registry.getLoaded(uuid) != null) {
+            // still loaded or cached, maybe with unsaved changes, the database is outdated
             return;
         }
-        Bukkit.getScheduler().runTaskAsynchronously(plugin, () -> save(investor));
-        ONLINE_INVESTORS.removeIf(i -> i.getUniqueId().equals(player.getUniqueId()));
+        try (Connection connection = connectionFactory.getConnection()) {
+            preloads.put(uuid, readBalances(connection, uuid, name));
+        } catch (SQLException ex) {
+            CryptoMarket.warn("An error occurred while preloading data for " + name);
+            ex.printStackTrace();
+        }
     }
 
-    public void loadInvestor(@NotNull final OfflinePlayer player) {
-        try (Connection connection = new ConnectionFactory(plugin).getConnection()) {
-            PreparedStatement statement = connection.prepareStatement("SELECT * FROM investors WHERE uuid = ?;");
-            statement.setString(1, player.getUniqueId().toString());
-            ResultSet set = statement.executeQuery();
-            Investor investor;
-            if (set.next()) {
-                Map<String, Balance> balances = gson.fromJson(set.getString("balances"), BALANCES_TYPE);
+    /**
+     * Discards the data read during the pre-login of a player that was not allowed to join
+     *
+     * @param uuid the player's unique id
+     */
+    public void discardPreloaded(@NotNull UUID uuid) {
+        preloads.discard(uuid);
+    }
 
-                investor = new Investor(player, balances);
-                debug("Successfully retrieved data for " + player.getName());
-                ONLINE_INVESTORS.add(investor);
+    /**
+     * Loads the investor. The data read during the pre-login is used if available, otherwise it is read
+     * asynchronously. An investor still being saved is brought back without reading the database, which is
+     * outdated
+     *
+     * @param player player
+     * @return a future completed when the investor is online
+     */
+    public @NotNull CompletableFuture<Investor> loadInvestor(@NotNull final OfflinePlayer player) {
+        long start = System.nanoTime();
+        CompletableFuture<Investor> future = registry.load(player.getUniqueId(), uuid -> {
+            Map<String, Balance> preloaded = preloads.take(uuid);
+            if (preloaded != null) {
+                registry.completeLoading(uuid, new Investor(player, preloaded, plugin.getCoinRegistry()));
             } else {
-                debug(player.getName() + " was not an Investor. Creating data...");
-                investor = new Investor(player, new HashMap<>());
-                insert(investor);
+                Bukkit.getScheduler().runTaskAsynchronously(plugin, () -> readInvestor(player));
+            }
+        });
+        // not used if the investor was still loaded or cached
+        preloads.discard(player.getUniqueId());
+        future.thenAccept(investor -> {
+            if (investor != null) {
+                long elapsed = System.nanoTime() - start;
+                preloads.recordReady(elapsed);
+                debug(String.format("%s's data was ready in %.2fms", player.getName(), elapsed / 1_000_000D));
+            }
+        });
+        return future;
+    }
+
+    /**
+     * Loads many investors at once, like the players online when the plugin is enabled. They are read in chunks,
+     * with one query per chunk, in parallel when the pool has free connections, and published together when all
+     * the chunks are read. Nothing runs on the calling thread besides creating the LOADING entries
+     *
+     * @param players players
+     * @return a future completed when all the investors were published or failed
+     */
+    public @NotNull CompletableFuture<Void> loadInvestors(@NotNull Collection<? extends OfflinePlayer> players) {
+        long start = System.nanoTime();
+        Map<UUID, OfflinePlayer> toRead = new LinkedHashMap<>();
+        List<CompletableFuture<Investor>> futures = new ArrayList<>(players.size());
+        for (OfflinePlayer player : players) {
+            futures.add(registry.load(player.getUniqueId(), uuid -> toRead.put(uuid, player)));
+        }
+
+        Executor async = runnable -> Bukkit.getScheduler().runTaskAsynchronously(plugin, runnable);
+        List<UUID> uuids = new ArrayList<>(toRead.keySet());
+        List<CompletableFuture<Map<UUID, Map<String, Balance>>>> chunks = new ArrayList<>();
+        for (int i = 0; i < uuids.size(); i += BULK_LOAD_CHUNK) {
+            List<UUID> chunk = new ArrayList<>(uuids.subList(i, Math.min(i + BULK_LOAD_CHUNK, uuids.size())));
+            chunks.add(CompletableFuture.supplyAsync(() -> readChunk(chunk), async).handle((balances, error) -> {
+                if (error != null) {
+                    CryptoMarket.warn("An error occurred while loading " + chunk.size() + " investors");
+                    error.printStackTrace();
+                    chunk.forEach(uuid -> registry.failLoading(uuid, error));
+                    return Collections.<UUID, Map<String, Balance>>emptyMap();
+                }
+                return balances;
+            }));
+        }
+
+        CompletableFuture.allOf(chunks.toArray(new CompletableFuture[0])).thenRun(() -> {
+            for (CompletableFuture<Map<UUID, Map<String, Balance>>> chunk : chunks) {
+                for (Map.Entry<UUID, Map<String, Balance>> entry : chunk.join().entrySet()) {
+                    OfflinePlayer player = toRead.get(entry.getKey());
+                    registry.completeLoading(entry.getKey(), new Investor(player, entry.getValue(),
+                            plugin.getCoinRegistry()));
+                }
+            }
+            debug(String.format("Loaded %d investors in %.2fms", uuids.size(), (System.nanoTime() - start) / 1_000_000D));
+        });
+        return CompletableFuture.allOf(futures.toArray(new CompletableFuture[0]));
+    }
+
+    private Map<UUID, Map<String, Balance>> readChunk(List<UUID> uuids) {
+        try (Connection connection = connectionFactory.getConnection()) {
+            return readChunk(connection, uuids);
+        } catch (SQLException ex) {
+            throw new CompletionException(ex);
+        }
+    }
+
+    private Map<UUID, Map<String, Balance>> readChunk(Connection connection, List<UUID> uuids) throws SQLException {
+        Map<UUID, Map<String, Balance>> balancesByInvestor = new HashMap<>();
+        uuids.forEach(uuid -> balancesByInvestor.put(uuid, new HashMap<>()));
+        StringBuilder sql = new StringBuilder("SELECT uuid, coin, purchased, paid FROM ").append(BALANCES_TABLE)
+                .append(" WHERE uuid IN (");
+        for (int i = 0; i < uuids.size(); i++) {
+            sql.append(i == 0 ? "?" : ",?");
+        }
+        sql.append(");");
+        try (PreparedStatement statement = connection.prepareStatement(sql.toString())) {
+            for (int i = 0; i < uuids.size(); i++) {
+                statement.setBytes(i + 1, toBytes(uuids.get(i)));
             }
+            try (ResultSet set = statement.executeQuery()) {
+                while (set.next()) {
+                    balancesByInvestor.get(toUuid(set.getBytes("uuid"))).put(set.getString("coin"),
+                            readBalance(set));
+                }
+            }
+        }
+        if (migrator.isPending()) {
+            for (Map.Entry<UUID, Map<String, Balance>> entry : balancesByInvestor.entrySet()) {
+                if (entry.getValue().isEmpty()) {
+                    Map<String, Balance> legacy = migrator.migrate(connection, entry.getKey());
+                    if (legacy != null) {
+                        entry.getValue().putAll(legacy);
+                    }
+                }
+            }
+        }
+        return balancesByInvestor;
+    }
+
+    /**
+     * Returns the metrics of the pre-login loading
+     *
+     * @return the statistics
+     */
+    public @NotNull PreloadCache.Statistics getPreloadStatistics() {
+        return preloads.getStatistics();
+    }
+
+    private void readInvestor(@NotNull final OfflinePlayer player) {
+        try (Connection connection = connectionFactory.getConnection()) {
+            Map<String, Balance> balances = readBalances(connection, player.getUniqueId(), player.getName());
+            registry.completeLoading(player.getUniqueId(), new Investor(player, balances, plugin.getCoinRegistry()));
         } catch (SQLException ex) {
             CryptoMarket.warn("An error occurred while retrieving data for " + player.getName());
             ex.printStackTrace();
+            registry.failLoading(player.getUniqueId(), ex);
         }
     }
 
-    public @Nullable List<Investor> getInvestors() {
-        List<Investor> investors = new ArrayList<>();
-        try (Connection connection = new ConnectionFactory(plugin).getConnection()) {
-            Statement statement = connection.createStatement();
-            ResultSet set = statement.executeQuery("SELECT * FROM investors;");
-            while (set.next()) {
-                Map<String, Balance> balances = gson.fromJson(set.getString("balances"), BALANCES_TYPE);
-                UUID uuid = UUID.fromString(set.getString("uuid"));
-                OfflinePlayer player = Bukkit.getOfflinePlayer(uuid);
-                Investor investor = getInvestor(player);
-                if (investor == null) {
-                    investor = new Investor(player, balances);
+    private Map<String, Balance> readBalances(Connection connection, UUID uuid, String name) throws SQLException {
+        Map<String, Balance> balances = new HashMap<>();
+        try (PreparedStatement statement = connection.prepareStatement("SELECT coin, purchased, paid FROM "
+                + BALANCES_TABLE + " WHERE uuid = ?;")) {
+            statement.setBytes(1, toBytes(uuid));
+            try (ResultSet set = statement.executeQuery()) {
+                while (set.next()) {
+                    balances.put(set.getString("coin"), readBalance(set));
                 }
-                investors.add(investor);
+            }
+        }
+        if (balances.isEmpty()) {
+            Map<String, Balance> legacy = migrator.migrate(connection, uuid);
+            if (legacy != null) {
+                debug("Migrated the legacy data of " + name);
+                balances.putAll(legacy);
+            } else {
+                debug(name + " was not an Investor. Creating data...");
+            }
+        } else {
+            debug("Successfully retrieved data for " + name);
+        }
+        return balances;
+    }
+
+    /**
+     * Reads all the investors for a ranking refresh. Loaded investors are counted with their balances in memory,
+     * which may not be saved yet
+     *
+     * @param refresh counts the amounts read
+     * @return the investors or null if an error occurred
+     */
+    public @Nullable List<Investor> getInvestors(@NotNull Holdings.Refresh refresh) {
+        Map<UUID, Map<String, Balance>> balancesByInvestor = new LinkedHashMap<>();
+        try (Connection connection = connectionFactory.getConnection()) {
+            try (Statement statement = connection.createStatement();
+                 ResultSet set = statement.executeQuery("SELECT uuid, coin, purchased, paid FROM "
+                         + BALANCES_TABLE + " ORDER BY uuid;")) {
+                byte[] lastUuid = null;
+                Map<String, Balance> balances = null;
+                while (set.next()) {
+                    byte[] uuid = set.getBytes("uuid");
+                    if (!Arrays.equals(uuid, lastUuid)) {
+                        lastUuid = uuid;
+                        balances = new HashMap<>();
+                        balancesByInvestor.put(toUuid(uuid), balances);
+                    }
+                    balances.put(set.getString("coin"), readBalance(set));
+                }
+            }
+            if (migrator.isPending()) {
+                migrator.forEach(connection, balancesByInvestor::putIfAbsent);
             }
         } catch (SQLException ex) {
             CryptoMarket.warn("Error retrieving all investors from the database:");
             ex.printStackTrace();
             return null;
         }
-        
+
+        Map<UUID, Investor> online = new HashMap<>();
+        registry.forEachOnline(investor -> online.put(investor.getUniqueId(), investor));
+        List<Investor> investors = new ArrayList<>(balancesByInvestor.size());
+        for (Map.Entry<UUID, Map<String, Balance>> entry : balancesByInvestor.entrySet()) {
+            online.remove(entry.getKey());
+            investors.add(read(refresh, entry.getKey(), entry.getValue()));
+        }
+        // never saved yet
+        for (UUID uuid : online.keySet()) {
+            investors.add(read(refresh, uuid, Collections.emptyMap()));
+        }
         return investors;
     }
 
     /**
-     * Saves the last modifications to the database
+     * Takes the balances of an investor for a refresh, holding its lock: the ones in memory if it is loaded,
+     * otherwise the ones read from the database
+     *
+     * @return the loaded investor or one created with the stored balances
+     */
+    private Investor read(Holdings.Refresh refresh, UUID uuid, Map<String, Balance> stored) {
+        try (InvestorLocks.Held ignored = locks.lock(uuid)) {
+            refresh.read(uuid);
+            Investor loaded = registry.getLoaded(uuid);
+            if (loaded != null) {
+                count(refresh, loaded.getBalances(), 1);
+                return loaded;
+            }
+        }
+        count(refresh, stored, 1);
+        return new Investor(Bukkit.getOfflinePlayer(uuid), stored, plugin.getCoinRegistry());
+    }
+
+    /**
+     * Computes the ranking without loading every investor: the balances are streamed, one investor at a time, and
+     * only the richest ones are kept. Loaded investors are counted with their balances in memory, which may not be
+     * saved yet. While the legacy data is being migrated all the investors are read, as before
+     *
+     * @param rate the rate used to convert the patrimonies
+     * @param size how many investors are kept
+     * @param pushdown if the database should rank the investors, instead of streaming all the balances
+     * @param refresh counts the amounts read
+     * @return the ranking or null if an error occurred
+     */
+    public @Nullable Ranking getRanking(@NotNull ExchangeRate rate, int size, boolean pushdown,
+                                        @NotNull Holdings.Refresh refresh) {
+        long start = System.nanoTime();
+        CoinRegistry coins = plugin.getCoinRegistry();
+        Ranking.Builder builder;
+        if (migrator.isPending()) {
+            List<Investor> investors = getInvestors(refresh);
+            if (investors == null) {
+                return null;
+            }
+            builder = new Ranking.Builder(rate, size, coins, null);
+            investors.forEach(builder::add);
+        } else {
+            builder = new Ranking.Builder(rate, size, coins, pushdown ? null : refresh);
+            try (Connection connection = connectionFactory.getConnection()) {
+                if (pushdown) {
+                    rankInDatabase(connection, rate, size, refresh, builder);
+                } else {
+                    streamBalances(connection, refresh, builder);
+                }
+            } catch (SQLException ex) {
+                CryptoMarket.warn("Error computing the ranking:");
+                ex.printStackTrace();
+                return null;
+            }
+        }
+        Ranking ranking = builder.build(registry::getLoaded);
+        debug(String.format("Computed the ranking in %.2fms", (System.nanoTime() - start) / 1_000_000D));
+        return ranking;
+    }
+
+    /**
+     * Streams all the balances, ordered by investor, into the builder
+     */
+    private void streamBalances(Connection connection, Holdings.Refresh refresh, Ranking.Builder builder)
+            throws SQLException {
+        Map<UUID, Investor> online = new HashMap<>();
+        registry.forEachOnline(investor -> online.put(investor.getUniqueId(), investor));
+        try (Statement statement = connection.createStatement(ResultSet.TYPE_FORWARD_ONLY,
+                ResultSet.CONCUR_READ_ONLY)) {
+            // Connector/J only streams the rows, instead of reading them all into memory, with this fetch size
+            statement.setFetchSize(mysql ? Integer.MIN_VALUE : STREAM_FETCH_SIZE);
+            try (ResultSet set = statement.executeQuery("SELECT uuid, coin, purchased, paid FROM "
+                    + BALANCES_TABLE + " ORDER BY uuid;")) {
+                byte[] lastUuid = null;
+                boolean skip = false;
+                while (set.next()) {
+                    byte[] uuid = set.getBytes(1);
+                    if (!Arrays.equals(uuid, lastUuid)) {
+                        lastUuid = uuid;
+                        UUID id = toUuid(uuid);
+                        online.remove(id);
+                        skip = addLoaded(refresh, id, builder);
+                        if (!skip) {
+                            builder.begin(id);
+                        }
+                    }
+                    if (!skip) {
+                        builder.addBalance(set.getString(2), set.getLong(3), set.getLong(4));
+                    }
+                }
+            }
+        }
+        // never saved yet
+        for (UUID uuid : online.keySet()) {
+            addLoaded(refresh, uuid, builder);
+        }
+    }
+
+    /**
+     * Adds the investor to the builder if it is loaded, holding its lock
+     *
+     * @return true if it was loaded
+     */
+    private boolean addLoaded(Holdings.Refresh refresh, UUID uuid, Ranking.Builder builder) {
+        try (InvestorLocks.Held ignored = locks.lock(uuid)) {
+            refresh.read(uuid);
+            Investor loaded = registry.getLoaded(uuid);
+            if (loaded != null) {
+                builder.add(loaded);
+            }
+            return loaded != null;
+        }
+    }
+
+    /**
+     * Lets the database sum the patrimonies and return the richest investors, then reads only their balances.
+     * The database ranks with the stored balances, so a few extra investors are read in case some loaded
+     * investors are no longer among the richest. The holdings are summed by the database too, in the same
+     * transaction, and corrected with the balances in memory of the investors that are loaded or changed
+     */
+    private void rankInDatabase(Connection connection, ExchangeRate rate, int size, Holdings.Refresh refresh,
+                                Ranking.Builder builder) throws SQLException {
+        CoinRegistry coins = plugin.getCoinRegistry();
+        Set<UUID> candidates = new LinkedHashSet<>();
+        registry.forEachLoaded(investor -> candidates.add(investor.getUniqueId()));
+        List<Integer> rated = new ArrayList<>();
+        for (int id = 0; id < coins.size(); id++) {
+            if (rate.getFixedPointValue(id) != RateHistory.MISSING) {
+                rated.add(id);
+            }
+        }
+        // the sums and the rows must be read from the same snapshot
+        connection.setAutoCommit(false);
+        if (!rated.isEmpty() && size > 0) {
+            StringBuilder sql = new StringBuilder("SELECT uuid, SUM(CASE coin");
+            for (int i = 0; i < rated.size(); i++) {
+                sql.append(" WHEN ? THEN purchased * ?");
+            }
+            sql.append(" ELSE 0 END) AS patrimony FROM ").append(BALANCES_TABLE)
+                    .append(" GROUP BY uuid ORDER BY patrimony DESC LIMIT ?;");
+            try (PreparedStatement statement = connection.prepareStatement(sql.toString())) {
+                int index = 1;
+                for (int id : rated) {
+                    statement.setString(index++, coins.getSymbol(id));
+                    // only the order matters, the exact patrimonies are computed afterwards
+                    statement.setDouble(index++, rate.getCoinValue(id).doubleValue());
+                }
+                statement.setInt(index, size + candidates.size());
+                try (ResultSet set = statement.executeQuery()) {
+                    while (set.next()) {
+                        candidates.add(toUuid(set.getBytes(1)));
+                    }
+                }
+            }
+        }
+
+        try (Statement statement = connection.createStatement();
+             ResultSet set = statement.executeQuery("SELECT coin, SUM(purchased) FROM " + BALANCES_TABLE
+                     + " GROUP BY coin;")) {
+            while (set.next()) {
+                refresh.count(coins.getId(set.getString(1)), set.getLong(2));
+            }
+        }
+        // changed after being summed, if flushed meanwhile their rows in the sums may not be the ones in memory
+        refresh.getChanged().forEach(investor -> candidates.add(investor.getUniqueId()));
+
+        List<UUID> uuids = new ArrayList<>(candidates);
+        for (int i = 0; i < uuids.size(); i += BULK_LOAD_CHUNK) {
+            List<UUID> sublist = uuids.subList(i, Math.min(i + BULK_LOAD_CHUNK, uuids.size()));
+            Map<UUID, Map<String, Balance>> chunk = readChunk(connection, sublist);
+            for (UUID uuid : sublist) {
+                Map<String, Balance> stored = chunk.get(uuid);
+                try (InvestorLocks.Held ignored = locks.lock(uuid)) {
+                    refresh.read(uuid);
+                    Investor loaded = registry.getLoaded(uuid);
+                    if (loaded != null) {
+                        // the stored balances were summed by the database, replace them with the ones in memory
+                        if (stored != null) {
+                            count(refresh, stored, -1);
+                        }
+                        count(refresh, loaded.getBalances(), 1);
+                        builder.add(loaded);
+                        continue;
+                    }
+                }
+                if (stored != null) {
+                    builder.add(uuid, stored);
+                }
+            }
+        }
+        connection.commit();
+    }
+
+    private void count(Holdings.Refresh refresh, Map<String, Balance> balances, int signum) {
+        for (Map.Entry<String, Balance> entry : balances.entrySet()) {
+            refresh.count(plugin.getCoinRegistry().getId(entry.getKey()),
+                    signum * entry.getValue().getFixedPointValue());
+        }
+    }
+
+    /**
+     * Queues the online investors that changed and asks the writer to save them now
      */
     public void saveAll() {
         debug("Saving online investors...");
+        registry.forEachOnline(this::save);
+        queue.requestFlush();
+        offlineCache.evictExpired();
+    }
 
-        try (Connection connection = new ConnectionFactory(plugin).getConnection()) {
-            try (PreparedStatement ps = connection.prepareStatement("UPDATE investors SET balances=? WHERE uuid=?;")) {
-                for (Investor investor : ONLINE_INVESTORS) {
-                    ps.setString(1, gson.toJson(investor.getBalances(), BALANCES_TYPE));
-                    ps.setString(2, investor.getPlayer().getUniqueId().toString());
+    /**
+     * Queues the investor to be saved, if it changed since the last save
+     *
+     * @param investor investor
+     */
+    public void save(@NotNull Investor investor) {
+        if (investor.isDirty()) {
+            queue.enqueue(investor);
+        }
+    }
+
+    /**
+     * Saves the online investors and waits for the queue to be written. Called when the plugin is disabled
+     */
+    public void shutdown() {
+        registry.forEachOnline(this::save);
+        queue.shutdown();
+    }
+
+    /**
+     * Returns the locks that must be held to change an investor
+     *
+     * @return the locks
+     */
+    public @NotNull InvestorLocks getLocks() {
+        return locks;
+    }
+
+    /**
+     * Returns the metrics of the write-behind queue
+     *
+     * @return the statistics
+     */
+    public @NotNull WriteBehindQueue.Statistics getQueueStatistics() {
+        return queue.getStatistics();
+    }
+
+    /**
+     * Writes a batch of investors, called by the writer thread of the queue
+     */
+    private int write(Collection<Investor> investors) throws SQLException {
+        try (Connection connection = connectionFactory.getConnection()) {
+            int written = writeDirtyBalances(connection, investors);
+            debug("Saved " + written + " changed balances of " + investors.size() + " investors");
+            investors.forEach(registry::saved);
+            return written;
+        }
+    }
+
+    /**
+     * Writes the balances changed since the last save in one transaction, with multi-row statements.
+     * The amounts are read holding the investor's lock, so they are consistent, and the balances are marked as saved
+     * only after the commit, with the version read together with the amounts, so a change made meanwhile keeps them
+     * dirty
+     *
+     * @param connection connection
+     * @param investors investors
+     * @return how many balances were written
+     * @throws SQLException if a database error occurs
+     */
+    private int writeDirtyBalances(Connection connection, Collection<Investor> investors) throws SQLException {
+        List<DirtyBalance> dirty = new ArrayList<>();
+        for (Investor investor : investors) {
+            byte[] uuid = null;
+            try (InvestorLocks.Held ignored = locks.lock(investor.getUniqueId())) {
+                for (Map.Entry<String, Balance> entry : investor.getBalances().entrySet()) {
+                    Balance balance = entry.getValue();
+                    if (!balance.isDirty()) {
+                        continue;
+                    }
+                    if (uuid == null) {
+                        uuid = toBytes(investor.getUniqueId());
+                    }
+                    dirty.add(new DirtyBalance(uuid, entry.getKey(), balance, balance.getVersion(),
+                            balance.getFixedPointValue(), balance.getFixedPointPaid()));
+                }
+            }
+        }
+        if (dirty.isEmpty()) {
+            return 0;
+        }
+
+        connection.setAutoCommit(false);
+        int fullStatements = dirty.size() / ROWS_PER_STATEMENT;
+        int remainder = dirty.size() % ROWS_PER_STATEMENT;
+        int index = 0;
+        if (fullStatements > 0) {
+            try (PreparedStatement ps = connection.prepareStatement(replaceSql(ROWS_PER_STATEMENT))) {
+                for (int i = 0; i < fullStatements; i++) {
+                    for (int row = 0; row < ROWS_PER_STATEMENT; row++) {
+                        dirty.get(index++).set(ps, row * 4);
+                    }
                     ps.addBatch();
                 }
                 ps.executeBatch();
             }
-        } catch (SQLException ex) {
-            CryptoMarket.warn("Error saving online investors!");
-            ex.printStackTrace();
         }
+        if (remainder > 0) {
+            try (PreparedStatement ps = connection.prepareStatement(replaceSql(remainder))) {
+                for (int row = 0; row < remainder; row++) {
+                    dirty.get(index++).set(ps, row * 4);
+                }
+                ps.executeUpdate();
+            }
+        }
+        connection.commit();
+        for (DirtyBalance balance : dirty) {
+            balance.balance.markSaved(balance.version);
+        }
+        return dirty.size();
     }
 
-    public void save(Investor investor) {
-        OfflinePlayer player = investor.getPlayer();
-        debug(String.format("Saving %s's data", player.getName()));
+    private static String replaceSql(int rows) {
+        StringBuilder sql = new StringBuilder("REPLACE INTO ").append(BALANCES_TABLE)
+                .append(" (uuid, coin, purchased, paid) VALUES ");
+        for (int i = 0; i < rows; i++) {
+            sql.append(i == 0 ? "(?,?,?,?)" : ",(?,?,?,?)");
+        }
+        return sql.append(';').toString();
+    }
 
-        try (Connection connection = new ConnectionFactory(plugin).getConnection()) {
-            try (PreparedStatement ps = connection.prepareStatement("UPDATE investors SET balances=? WHERE uuid=?;")) {
-                ps.setString(1, gson.toJson(investor.getBalances(), BALANCES_TYPE));
-                ps.setString(2, player.getUniqueId().toString());
-                ps.executeUpdate();
-            }
-        } catch (SQLException ex) {
-            CryptoMarket.warn(String.format("Error saving investor (%s %s) data!", player.getName(), player.getUniqueId()));
-            ex.printStackTrace();
+    static void setBalance(PreparedStatement ps, byte[] uuid, String coin, Balance balance) throws SQLException {
+        ps.setBytes(1, uuid);
+        ps.setString(2, coin);
+        ps.setLong(3, balance.getFixedPointValue());
+        ps.setLong(4, balance.getFixedPointPaid());
+    }
+
+    private static Balance readBalance(ResultSet set) throws SQLException {
+        return new Balance(set.getLong("purchased"), set.getLong("paid"));
+    }
+
+    static byte[] toBytes(UUID uuid) {
+        return ByteBuffer.allocate(16).putLong(uuid.getMostSignificantBits())
+                .putLong(uuid.getLeastSignificantBits()).array();
+    }
+
+    static UUID toUuid(byte[] bytes) {
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        return new UUID(buffer.getLong(), buffer.getLong());
+    }
+
+    /**
+     * A changed balance and the amounts read for the save
+     */
+    private static final class DirtyBalance {
+
+        private final byte[] uuid;
+        private final String coin;
+        private final Balance balance;
+        private final long version;
+        private final long purchased;
+        private final long paid;
+
+        private DirtyBalance(byte[] uuid, String coin, Balance balance, long version, long purchased, long paid) {
+            this.uuid = uuid;
+            this.coin = coin;
+            this.balance = balance;
+            this.version = version;
+            this.purchased = purchased;
+            this.paid = paid;
+        }
+
+        private void set(PreparedStatement ps, int offset) throws SQLException {
+            ps.setBytes(offset + 1, uuid);
+            ps.setString(offset + 2, coin);
+            ps.setLong(offset + 3, purchased);
+            ps.setLong(offset + 4, paid);
         }
     }
 
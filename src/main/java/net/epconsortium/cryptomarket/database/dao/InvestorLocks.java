@@ -0,0 +1,178 @@
+package net.epconsortium.cryptomarket.database.dao;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Striped locks guarding the balances of the investors. Every change to an investor, and every snapshot of it for
+ * saving, must hold the investor's lock, so a balance is never written half changed.
+ * The lock is first tried without blocking, only when it is held by another thread the wait is measured.
+ * Locks are reentrant, so an operation made of others, like a transfer, can hold them for its whole duration
+ *
+ * @author roinujnosde
+ */
+public final class InvestorLocks {
+
+    private static final int STRIPES = 64;
+
+    private final Stripe[] stripes = new Stripe[STRIPES];
+
+    private final LongAdder acquisitions = new LongAdder();
+    private final LongAdder contended = new LongAdder();
+    private final LongAdder totalWaitNanos = new LongAdder();
+    private final AtomicLong maxWaitNanos = new AtomicLong();
+
+    InvestorLocks() {
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new Stripe(i);
+        }
+    }
+
+    /**
+     * Locks the investor, use it with try-with-resources
+     *
+     * @param uuid the investor's unique id
+     * @return the held lock
+     */
+    public @NotNull Held lock(@NotNull UUID uuid) {
+        Stripe stripe = stripeOf(uuid);
+        acquire(stripe);
+        return stripe;
+    }
+
+    /**
+     * Locks both investors, always in the same order, so two threads locking the same pair never deadlock
+     *
+     * @param first unique id of an investor
+     * @param second unique id of the other investor
+     * @return the held locks
+     */
+    public @NotNull Held lock(@NotNull UUID first, @NotNull UUID second) {
+        Stripe a = stripeOf(first);
+        Stripe b = stripeOf(second);
+        if (a == b) {
+            acquire(a);
+            return a;
+        }
+        if (a.index > b.index) {
+            Stripe swap = a;
+            a = b;
+            b = swap;
+        }
+        acquire(a);
+        try {
+            acquire(b);
+        } catch (RuntimeException | Error ex) {
+            a.unlock();
+            throw ex;
+        }
+        Stripe outer = a;
+        Stripe inner = b;
+        return () -> {
+            inner.unlock();
+            outer.unlock();
+        };
+    }
+
+    /**
+     * Returns a snapshot of the contention metrics
+     *
+     * @return the statistics
+     */
+    public @NotNull Statistics getStatistics() {
+        return new Statistics(STRIPES, acquisitions.sum(), contended.sum(), totalWaitNanos.sum(),
+                maxWaitNanos.get());
+    }
+
+    private void acquire(Stripe stripe) {
+        acquisitions.increment();
+        if (stripe.tryLock()) {
+            return;
+        }
+        long start = System.nanoTime();
+        stripe.lock();
+        long wait = System.nanoTime() - start;
+        contended.increment();
+        totalWaitNanos.add(wait);
+        maxWaitNanos.accumulateAndGet(wait, Math::max);
+    }
+
+    private Stripe stripeOf(UUID uuid) {
+        int hash = uuid.hashCode();
+        return stripes[(hash ^ (hash >>> 16)) & (STRIPES - 1)];
+    }
+
+    /**
+     * A held lock, released by {@link #close()}
+     */
+    @FunctionalInterface
+    public interface Held extends AutoCloseable {
+
+        @Override
+        void close();
+    }
+
+    private static final class Stripe extends ReentrantLock implements Held {
+
+        private final int index;
+
+        private Stripe(int index) {
+            this.index = index;
+        }
+
+        @Override
+        public void close() {
+            unlock();
+        }
+    }
+
+    /**
+     * Snapshot of the lock metrics. Times are in nanoseconds
+     */
+    public static final class Statistics {
+
+        private final int stripes;
+        private final long acquisitions;
+        private final long contended;
+        private final long totalWaitNanos;
+        private final long maxWaitNanos;
+
+        private Statistics(int stripes, long acquisitions, long contended, long totalWaitNanos, long maxWaitNanos) {
+            this.stripes = stripes;
+            this.acquisitions = acquisitions;
+            this.contended = contended;
+            this.totalWaitNanos = totalWaitNanos;
+            this.maxWaitNanos = maxWaitNanos;
+        }
+
+        public int getStripes() {
+            return stripes;
+        }
+
+        public long getAcquisitions() {
+            return acquisitions;
+        }
+
+        /**
+         * @return acquisitions that had to wait for another thread
+         */
+        public long getContended() {
+            return contended;
+        }
+
+        /**
+         * @return average wait of the contended acquisitions
+         */
+        public long getAverageWaitNanos() {
+            return contended == 0 ? 0 : totalWaitNanos / contended;
+        }
+
+        public long getMaxWaitNanos() {
+            return maxWaitNanos;
+        }
+    }
+}
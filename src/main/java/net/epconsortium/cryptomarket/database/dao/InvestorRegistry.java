@@ -0,0 +1,277 @@
+package net.epconsortium.cryptomarket.database.dao;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+
+/**
+ * Registry of the investors that are loaded, keyed by unique id.
+ * Each entry goes through {@link State#LOADING}, {@link State#ONLINE}, {@link State#SAVING} and finally
+ * {@link State#UNLOADED}, when it is removed. An investor that joins again while still being saved is taken back
+ * from the SAVING entry, so the same object, with the newest data, is used and no update is lost.
+ * Unloaded investors are kept in the {@link OfflineInvestorCache}, which is only changed inside the same compute
+ * calls, so an investor is never both cached offline and loaded from the database as two different objects.
+ * All the transitions are made inside {@link ConcurrentHashMap#compute}, so they are atomic per investor.
+ *
+ * @author roinujnosde
+ */
+public final class InvestorRegistry {
+
+    private final Map<UUID, Entry> entries = new ConcurrentHashMap<>();
+    private final OfflineInvestorCache offline;
+
+    InvestorRegistry(@NotNull OfflineInvestorCache offline) {
+        this.offline = offline;
+    }
+
+    /**
+     * Returns the investor if it is online
+     *
+     * @param uuid unique id
+     * @return the investor or null
+     */
+    @Nullable Investor getOnline(@NotNull UUID uuid) {
+        Entry entry = entries.get(uuid);
+        return entry != null && entry.state == State.ONLINE ? entry.investor : null;
+    }
+
+    /**
+     * Returns the investor if it is online, being saved or cached offline
+     *
+     * @param uuid unique id
+     * @return the investor or null
+     */
+    @Nullable Investor getLoaded(@NotNull UUID uuid) {
+        Entry entry = entries.get(uuid);
+        if (entry != null && entry.investor != null) {
+            return entry.investor;
+        }
+        return offline.peek(uuid);
+    }
+
+    /**
+     * Returns the investor if it is online or cached offline
+     *
+     * @param uuid unique id
+     * @return the investor or null
+     */
+    @Nullable Investor getOnlineOrCached(@NotNull UUID uuid) {
+        Investor investor = getOnline(uuid);
+        return investor != null ? investor : offline.get(uuid);
+    }
+
+    /**
+     * Caches an investor read while offline, unless it was loaded meanwhile
+     *
+     * @param investor investor
+     * @return the cached investor, which may be one cached before, or null if the investor is loaded or loading
+     */
+    @Nullable Investor cacheOffline(@NotNull Investor investor) {
+        Investor[] cached = new Investor[1];
+        entries.compute(investor.getUniqueId(), (id, existing) -> {
+            if (existing == null) {
+                cached[0] = offline.put(investor);
+            }
+            return existing;
+        });
+        return cached[0];
+    }
+
+    /**
+     * Returns the state of the investor
+     *
+     * @param uuid unique id
+     * @return the state
+     */
+    @NotNull State getState(@NotNull UUID uuid) {
+        Entry entry = entries.get(uuid);
+        return entry != null ? entry.state : State.UNLOADED;
+    }
+
+    /**
+     * Returns the future of the investor, completed when it is loaded
+     *
+     * @param uuid unique id
+     * @return the future or null if the investor is not loaded nor loading
+     */
+    @Nullable CompletableFuture<Investor> getFuture(@NotNull UUID uuid) {
+        Entry entry = entries.get(uuid);
+        return entry != null ? entry.future : null;
+    }
+
+    /**
+     * Starts loading the investor. If it is loading or online, nothing is done; if it is being saved or cached
+     * offline, it is brought back online. Otherwise the loader is called, outside the map lock, and must eventually call
+     * {@link #completeLoading(UUID, Investor)} or {@link #failLoading(UUID, Throwable)}
+     *
+     * @param uuid unique id
+     * @param loader starts the loading
+     * @return the future of the investor
+     */
+    @NotNull CompletableFuture<Investor> load(@NotNull UUID uuid, @NotNull Consumer<UUID> loader) {
+        boolean[] created = new boolean[1];
+        Entry entry = entries.compute(uuid, (id, existing) -> {
+            if (existing == null) {
+                Entry newEntry = new Entry();
+                Investor cached = offline.take(uuid);
+                if (cached != null) {
+                    newEntry.investor = cached;
+                    newEntry.state = State.ONLINE;
+                } else {
+                    created[0] = true;
+                }
+                return newEntry;
+            }
+            if (existing.state == State.SAVING) {
+                existing.state = State.ONLINE;
+            }
+            return existing;
+        });
+        if (created[0]) {
+            loader.accept(uuid);
+        } else if (entry.investor != null) {
+            entry.future.complete(entry.investor);
+        }
+        return entry.future;
+    }
+
+    /**
+     * Publishes a loaded investor. It is discarded if it was unloaded meanwhile
+     *
+     * @param uuid unique id
+     * @param investor investor
+     * @return true if the investor is now online
+     */
+    boolean completeLoading(@NotNull UUID uuid, @NotNull Investor investor) {
+        boolean[] published = new boolean[1];
+        Entry entry = entries.computeIfPresent(uuid, (id, existing) -> {
+            if (existing.state == State.LOADING) {
+                existing.investor = investor;
+                existing.state = State.ONLINE;
+                published[0] = true;
+            }
+            return existing;
+        });
+        if (entry != null && published[0]) {
+            entry.future.complete(investor);
+        }
+        return published[0];
+    }
+
+    /**
+     * Removes an investor that could not be loaded, so the next attempt starts again
+     *
+     * @param uuid unique id
+     * @param error the error
+     */
+    void failLoading(@NotNull UUID uuid, @NotNull Throwable error) {
+        Entry[] failed = new Entry[1];
+        entries.computeIfPresent(uuid, (id, existing) -> {
+            if (existing.state == State.LOADING) {
+                existing.state = State.UNLOADED;
+                failed[0] = existing;
+                return null;
+            }
+            return existing;
+        });
+        if (failed[0] != null) {
+            failed[0].future.completeExceptionally(error);
+        }
+    }
+
+    /**
+     * Unloads the investor. An online investor goes to {@link State#SAVING} if it has unsaved changes, the caller
+     * must then queue it, otherwise it is cached offline; a loading one is discarded when the loading completes
+     *
+     * @param uuid unique id
+     * @return the investor to save, or null if there is nothing to save
+     */
+    @Nullable Investor unload(@NotNull UUID uuid) {
+        Investor[] toSave = new Investor[1];
+        Entry[] cancelled = new Entry[1];
+        entries.computeIfPresent(uuid, (id, existing) -> {
+            switch (existing.state) {
+                case LOADING:
+                    existing.state = State.UNLOADED;
+                    cancelled[0] = existing;
+                    return null;
+                case ONLINE:
+                    if (existing.investor.isDirty()) {
+                        existing.state = State.SAVING;
+                        toSave[0] = existing.investor;
+                        return existing;
+                    }
+                    existing.state = State.UNLOADED;
+                    offline.put(existing.investor);
+                    return null;
+                default:
+                    return existing;
+            }
+        });
+        if (cancelled[0] != null) {
+            cancelled[0].future.complete(null);
+        }
+        return toSave[0];
+    }
+
+    /**
+     * Removes the investor if it was being saved and has no more changes to save
+     *
+     * @param investor the written investor
+     */
+    void saved(@NotNull Investor investor) {
+        entries.computeIfPresent(investor.getUniqueId(), (id, existing) -> {
+            if (existing.state == State.SAVING && existing.investor == investor && !investor.isDirty()) {
+                existing.state = State.UNLOADED;
+                offline.put(investor);
+                return null;
+            }
+            return existing;
+        });
+    }
+
+    /**
+     * Calls the consumer for each online investor
+     *
+     * @param consumer consumer
+     */
+    void forEachOnline(@NotNull Consumer<Investor> consumer) {
+        for (Entry entry : entries.values()) {
+            Investor investor = entry.investor;
+            if (entry.state == State.ONLINE && investor != null) {
+                consumer.accept(investor);
+            }
+        }
+    }
+
+    /**
+     * Calls the consumer for each investor in memory: online, being saved or cached offline
+     *
+     * @param consumer consumer
+     */
+    void forEachLoaded(@NotNull Consumer<Investor> consumer) {
+        for (Entry entry : entries.values()) {
+            Investor investor = entry.investor;
+            if (investor != null) {
+                consumer.accept(investor);
+            }
+        }
+        offline.forEach(consumer);
+    }
+
+    public enum State {
+        LOADING, ONLINE, SAVING, UNLOADED
+    }
+
+    private static final class Entry {
+
+        private final CompletableFuture<Investor> future = new CompletableFuture<>();
+        private volatile State state = State.LOADING;
+        private volatile Investor investor;
+    }
+}
@@ -0,0 +1,230 @@
+package net.epconsortium.cryptomarket.database.dao;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonParseException;
+import com.google.gson.reflect.TypeToken;
+import net.epconsortium.cryptomarket.CryptoMarket;
+import net.epconsortium.cryptomarket.database.ConnectionFactory;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.lang.reflect.Type;
+import java.sql.*;
+import java.util.Map;
+import java.util.UUID;
+import java.util.function.BiConsumer;
+
+import static net.epconsortium.cryptomarket.CryptoMarket.debug;
+
+/**
+ * Moves the balances from the legacy investors table, one JSON document per investor, to the investor_balances
+ * table. The rows are copied in small batches, each in its own transaction, so the server keeps using the database
+ * meanwhile; investors that join before their row is copied are migrated on demand by {@link #migrate(Connection, UUID)}.
+ * Rows that already exist in the new table are never overwritten, they are newer than the legacy ones.
+ * When everything is copied the legacy table is renamed to investors_migrated.
+ *
+ * @author roinujnosde
+ */
+class LegacyBalancesMigrator {
+
+    static final String LEGACY_TABLE = "investors";
+    private static final String MIGRATED_TABLE = "investors_migrated";
+    private static final int BATCH_SIZE = 500;
+    private static final Type BALANCES_TYPE = TypeToken.getParameterized(Map.class, String.class, Balance.class)
+            .getType();
+
+    private final Gson gson = new GsonBuilder().registerTypeAdapter(Balance.class, new Balance.Adapter()).create();
+    private final CryptoMarket plugin;
+    private final ConnectionFactory connectionFactory;
+    private final String insertIgnore;
+    private volatile boolean pending;
+
+    LegacyBalancesMigrator(@NotNull CryptoMarket plugin, @NotNull ConnectionFactory connectionFactory, boolean mysql) {
+        this.plugin = plugin;
+        this.connectionFactory = connectionFactory;
+        insertIgnore = mysql ? "INSERT IGNORE INTO " : "INSERT OR IGNORE INTO ";
+    }
+
+    /**
+     * Checks if the legacy table exists and prepares it to be read in batches
+     *
+     * @param connection connection
+     * @return true if there is data to migrate
+     * @throws SQLException if a database error occurs
+     */
+    boolean prepare(@NotNull Connection connection) throws SQLException {
+        DatabaseMetaData metaData = connection.getMetaData();
+        try (ResultSet tables = metaData.getTables(connection.getCatalog(), null, LEGACY_TABLE, null)) {
+            pending = tables.next();
+        }
+        if (pending) {
+            // the legacy table has no index, without one every batch and on demand migration would scan it
+            try (Statement statement = connection.createStatement()) {
+                statement.execute("CREATE INDEX investors_uuid_index ON " + LEGACY_TABLE + " (uuid);");
+            } catch (SQLException ex) {
+                debug("Legacy investors index not created: " + ex.getMessage());
+            }
+        }
+        return pending;
+    }
+
+    /**
+     * Checks if there is legacy data not migrated yet
+     *
+     * @return true if pending
+     */
+    boolean isPending() {
+        return pending;
+    }
+
+    /**
+     * Copies the legacy rows in batches. Must be called asynchronously
+     */
+    void run() {
+        CryptoMarket.getInstance().getLogger().info("Migrating the investors to the new database schema...");
+        String lastUuid = "";
+        long migrated = 0;
+        try {
+            while (plugin.isEnabled()) {
+                int read = 0;
+                try (Connection connection = connectionFactory.getConnection()) {
+                    connection.setAutoCommit(false);
+                    try (PreparedStatement select = connection.prepareStatement("SELECT uuid, balances FROM "
+                            + LEGACY_TABLE + " WHERE uuid > ? ORDER BY uuid LIMIT " + BATCH_SIZE + ";");
+                         PreparedStatement insert = prepareInsert(connection)) {
+                        select.setString(1, lastUuid);
+                        try (ResultSet set = select.executeQuery()) {
+                            while (set.next()) {
+                                read++;
+                                lastUuid = set.getString("uuid");
+                                addBatch(insert, lastUuid, set.getString("balances"));
+                            }
+                        }
+                        insert.executeBatch();
+                    }
+                    connection.commit();
+                }
+                migrated += read;
+                if (read < BATCH_SIZE) {
+                    finish();
+                    CryptoMarket.getInstance().getLogger().info("Migrated " + migrated + " investors");
+                    return;
+                }
+                debug("Migrated " + migrated + " investors so far");
+            }
+        } catch (SQLException ex) {
+            CryptoMarket.warn("Error migrating the investors, the migration will resume on the next start:");
+            ex.printStackTrace();
+        }
+    }
+
+    /**
+     * Migrates the legacy row of one investor, if there is one
+     *
+     * @param connection connection
+     * @param uuid the investor's unique id
+     * @return the balances or null if there was no legacy row
+     * @throws SQLException if a database error occurs
+     */
+    @Nullable Map<String, Balance> migrate(@NotNull Connection connection, @NotNull UUID uuid) throws SQLException {
+        if (!pending) {
+            return null;
+        }
+        String json;
+        try (PreparedStatement select = connection.prepareStatement("SELECT balances FROM " + LEGACY_TABLE
+                + " WHERE uuid = ?;")) {
+            select.setString(1, uuid.toString());
+            try (ResultSet set = select.executeQuery()) {
+                if (!set.next()) {
+                    return null;
+                }
+                json = set.getString("balances");
+            }
+        } catch (SQLException ex) {
+            if (!pending) {
+                // the table was renamed meanwhile
+                return null;
+            }
+            throw ex;
+        }
+        Map<String, Balance> balances = parse(uuid.toString(), json);
+        if (balances == null) {
+            return null;
+        }
+        try (PreparedStatement insert = prepareInsert(connection)) {
+            addBatch(insert, balances, InvestorDao.toBytes(uuid));
+            insert.executeBatch();
+        }
+        return balances;
+    }
+
+    /**
+     * Reads the legacy rows. Used while the migration is not finished
+     *
+     * @param connection connection
+     * @param consumer receives the unique id and balances of each investor
+     * @throws SQLException if a database error occurs
+     */
+    void forEach(@NotNull Connection connection, @NotNull BiConsumer<UUID, Map<String, Balance>> consumer)
+            throws SQLException {
+        try (Statement statement = connection.createStatement();
+             ResultSet set = statement.executeQuery("SELECT uuid, balances FROM " + LEGACY_TABLE + ";")) {
+            while (set.next()) {
+                String uuid = set.getString("uuid");
+                UUID id = parseUuid(uuid);
+                Map<String, Balance> balances = id == null ? null : parse(uuid, set.getString("balances"));
+                if (balances != null) {
+                    consumer.accept(id, balances);
+                }
+            }
+        }
+    }
+
+    private void finish() throws SQLException {
+        try (Connection connection = connectionFactory.getConnection();
+             Statement statement = connection.createStatement()) {
+            statement.execute("ALTER TABLE " + LEGACY_TABLE + " RENAME TO " + MIGRATED_TABLE + ";");
+        }
+        pending = false;
+    }
+
+    private PreparedStatement prepareInsert(Connection connection) throws SQLException {
+        return connection.prepareStatement(insertIgnore + InvestorDao.BALANCES_TABLE
+                + " (uuid, coin, purchased, paid) VALUES (?,?,?,?);");
+    }
+
+    private void addBatch(PreparedStatement insert, String uuid, String json) throws SQLException {
+        UUID id = parseUuid(uuid);
+        Map<String, Balance> balances = id == null ? null : parse(uuid, json);
+        if (balances != null) {
+            addBatch(insert, balances, InvestorDao.toBytes(id));
+        }
+    }
+
+    private void addBatch(PreparedStatement insert, Map<String, Balance> balances, byte[] uuid)
+            throws SQLException {
+        for (Map.Entry<String, Balance> entry : balances.entrySet()) {
+            InvestorDao.setBalance(insert, uuid, entry.getKey(), entry.getValue());
+            insert.addBatch();
+        }
+    }
+
+    private static @Nullable UUID parseUuid(String uuid) {
+        try {
+            return UUID.fromString(uuid);
+        } catch (IllegalArgumentException | NullPointerException ex) {
+            CryptoMarket.warn("Skipping legacy investor with invalid unique id: " + uuid);
+            return null;
+        }
+    }
+
+    private @Nullable Map<String, Balance> parse(String uuid, String json) {
+        try {
+            return gson.fromJson(json, BALANCES_TYPE);
+        } catch (JsonParseException | IllegalArgumentException | ArithmeticException ex) {
+            CryptoMarket.warn("Skipping invalid legacy balances of " + uuid + ": " + ex.getMessage());
+            return null;
+        }
+    }
+}
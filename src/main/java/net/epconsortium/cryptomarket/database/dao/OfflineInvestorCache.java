@@ -0,0 +1,219 @@
+package net.epconsortium.cryptomarket.database.dao;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * Least recently used cache of offline investors, bounded by size and by time since the last access.
+ * Investors with unsaved changes are never evicted, otherwise they could be read again from the database before
+ * the write-behind queue writes them, and the changes would be lost
+ *
+ * @author roinujnosde
+ */
+public final class OfflineInvestorCache {
+
+    private final int maximumSize;
+    private final long expireAfterNanos;
+    /**
+     * Ordered from the least to the most recently accessed
+     */
+    private final LinkedHashMap<UUID, Cached> entries = new LinkedHashMap<>();
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    OfflineInvestorCache(int maximumSize, long expireAfterMillis) {
+        this.maximumSize = maximumSize;
+        this.expireAfterNanos = TimeUnit.MILLISECONDS.toNanos(expireAfterMillis);
+    }
+
+    /**
+     * Returns the cached investor
+     *
+     * @param uuid unique id
+     * @return the investor or null if it is not cached or expired
+     */
+    @Nullable Investor get(@NotNull UUID uuid) {
+        long now = System.nanoTime();
+        synchronized (entries) {
+            Cached cached = entries.get(uuid);
+            if (cached != null && (now - cached.lastAccess <= expireAfterNanos || cached.investor.isDirty())) {
+                touch(uuid, cached, now);
+                hits.incrementAndGet();
+                return cached.investor;
+            }
+            if (cached != null) {
+                entries.remove(uuid);
+                evictions.incrementAndGet();
+            }
+        }
+        misses.incrementAndGet();
+        return null;
+    }
+
+    /**
+     * Caches the investor, evicting the least recently used ones if the cache is full
+     *
+     * @param investor investor
+     * @return the investor that is cached, it differs from the argument if one was cached meanwhile
+     */
+    @NotNull Investor put(@NotNull Investor investor) {
+        long now = System.nanoTime();
+        synchronized (entries) {
+            Cached existing = entries.get(investor.getUniqueId());
+            if (existing != null) {
+                touch(investor.getUniqueId(), existing, now);
+                return existing.investor;
+            }
+            entries.put(investor.getUniqueId(), new Cached(investor, now));
+            evict(now);
+            return investor;
+        }
+    }
+
+    /**
+     * Removes and returns the cached investor, used when the player joins
+     *
+     * @param uuid unique id
+     * @return the investor or null
+     */
+    @Nullable Investor take(@NotNull UUID uuid) {
+        synchronized (entries) {
+            Cached cached = entries.remove(uuid);
+            return cached != null ? cached.investor : null;
+        }
+    }
+
+    /**
+     * Returns the cached investor without counting it as an access
+     *
+     * @param uuid unique id
+     * @return the investor or null
+     */
+    @Nullable Investor peek(@NotNull UUID uuid) {
+        synchronized (entries) {
+            Cached cached = entries.get(uuid);
+            return cached != null ? cached.investor : null;
+        }
+    }
+
+    /**
+     * Calls the consumer for each cached investor, without counting them as accessed
+     *
+     * @param consumer consumer
+     */
+    void forEach(@NotNull Consumer<Investor> consumer) {
+        List<Investor> investors;
+        synchronized (entries) {
+            investors = new ArrayList<>(entries.size());
+            entries.values().forEach(cached -> investors.add(cached.investor));
+        }
+        investors.forEach(consumer);
+    }
+
+    /**
+     * Removes the expired investors
+     */
+    void evictExpired() {
+        synchronized (entries) {
+            evict(System.nanoTime());
+        }
+    }
+
+    private void touch(UUID uuid, Cached cached, long now) {
+        cached.lastAccess = now;
+        entries.remove(uuid);
+        entries.put(uuid, cached);
+    }
+
+    private void evict(long now) {
+        int size = entries.size();
+        for (Iterator<Cached> iterator = entries.values().iterator(); iterator.hasNext(); ) {
+            Cached cached = iterator.next();
+            boolean expired = now - cached.lastAccess > expireAfterNanos;
+            if (!expired && size <= maximumSize) {
+                // the rest were accessed more recently
+                break;
+            }
+            if (!cached.investor.isDirty()) {
+                iterator.remove();
+                evictions.incrementAndGet();
+                size--;
+            }
+        }
+    }
+
+    /**
+     * Returns a snapshot of the metrics
+     *
+     * @return the statistics
+     */
+    @NotNull Statistics getStatistics() {
+        int size;
+        synchronized (entries) {
+            size = entries.size();
+        }
+        return new Statistics(size, maximumSize, hits.get(), misses.get(), evictions.get());
+    }
+
+    private static final class Cached {
+
+        private final Investor investor;
+        private long lastAccess;
+
+        private Cached(Investor investor, long lastAccess) {
+            this.investor = investor;
+            this.lastAccess = lastAccess;
+        }
+    }
+
+    /**
+     * Snapshot of the cache metrics
+     */
+    public static final class Statistics {
+
+        private final int size;
+        private final int maximumSize;
+        private final long hits;
+        private final long misses;
+        private final long evictions;
+
+        private Statistics(int size, int maximumSize, long hits, long misses, long evictions) {
+            this.size = size;
+            this.maximumSize = maximumSize;
+            this.hits = hits;
+            this.misses = misses;
+            this.evictions = evictions;
+        }
+
+        public int getSize() {
+            return size;
+        }
+
+        public int getMaximumSize() {
+            return maximumSize;
+        }
+
+        public long getHits() {
+            return hits;
+        }
+
+        public long getMisses() {
+            return misses;
+        }
+
+        public long getEvictions() {
+            return evictions;
+        }
+    }
+}
@@ -0,0 +1,235 @@
+package net.epconsortium.cryptomarket.database.dao;
+
+import net.epconsortium.cryptomarket.CryptoMarket;
+import net.epconsortium.cryptomarket.database.ConnectionFactory;
+import net.epconsortium.cryptomarket.finances.Negotiation;
+import net.epconsortium.cryptomarket.finances.Order;
+import net.epconsortium.cryptomarket.finances.Trigger;
+import org.jetbrains.annotations.NotNull;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static net.epconsortium.cryptomarket.database.dao.InvestorDao.toBytes;
+import static net.epconsortium.cryptomarket.database.dao.InvestorDao.toUuid;
+
+/**
+ * Class used to persist the resting orders of the order books and the waiting triggers.
+ * They are copied on the calling thread and written by a single thread, one statement per change, so the writes of
+ * an order are never reordered
+ *
+ * @author roinujnosde
+ */
+public class OrderDao {
+
+    static final String ORDERS_TABLE = "market_orders";
+    static final String TRIGGERS_TABLE = "market_triggers";
+    private static final long SHUTDOWN_TIMEOUT_MILLIS = 30_000;
+    private static OrderDao instance;
+    private final ConnectionFactory connectionFactory;
+    private final ExecutorService executor;
+
+    private OrderDao(CryptoMarket plugin) {
+        connectionFactory = Objects.requireNonNull(plugin).getConnectionFactory();
+        executor = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "CryptoMarket Orders");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    public static OrderDao getInstance(@NotNull CryptoMarket plugin) {
+        if (instance == null) {
+            instance = new OrderDao(plugin);
+        }
+        return instance;
+    }
+
+    /**
+     * Creates the tables if they do not exist and reads the resting orders
+     *
+     * @return a future completed with the orders, oldest first
+     */
+    public @NotNull CompletableFuture<List<Order>> loadOrders() {
+        return CompletableFuture.supplyAsync(() -> {
+            try (Connection connection = connectionFactory.getConnection()) {
+                createTables(connection);
+                List<Order> orders = new ArrayList<>();
+                try (PreparedStatement statement = connection.prepareStatement("SELECT * FROM " + ORDERS_TABLE
+                        + " ORDER BY id;");
+                     ResultSet set = statement.executeQuery()) {
+                    while (set.next()) {
+                        orders.add(new Order(set.getLong("id"), toUuid(set.getBytes("uuid")), set.getString("coin"),
+                                Negotiation.valueOf(set.getString("side")), set.getLong("price"),
+                                set.getLong("amount"), set.getLong("remaining"), set.getLong("escrow"),
+                                set.getLong("created")));
+                    }
+                }
+                return orders;
+            } catch (SQLException ex) {
+                throw new CompletionException(ex);
+            }
+        }, executor);
+    }
+
+    /**
+     * Creates the tables if they do not exist and reads the waiting triggers
+     *
+     * @return a future completed with the triggers, oldest first
+     */
+    public @NotNull CompletableFuture<List<Trigger>> loadTriggers() {
+        return CompletableFuture.supplyAsync(() -> {
+            try (Connection connection = connectionFactory.getConnection()) {
+                createTables(connection);
+                List<Trigger> triggers = new ArrayList<>();
+                try (PreparedStatement statement = connection.prepareStatement("SELECT * FROM " + TRIGGERS_TABLE
+                        + " ORDER BY id;");
+                     ResultSet set = statement.executeQuery()) {
+                    while (set.next()) {
+                        triggers.add(new Trigger(set.getLong("id"), toUuid(set.getBytes("uuid")),
+                                set.getString("coin"), Trigger.Type.valueOf(set.getString("type")),
+                                set.getLong("price"), set.getLong("amount"), set.getLong("created")));
+                    }
+                }
+                return triggers;
+            } catch (SQLException ex) {
+                throw new CompletionException(ex);
+            }
+        }, executor);
+    }
+
+    /**
+     * Queues the order to be written, with its current amounts
+     *
+     * @param order order
+     */
+    public void save(@NotNull Order order) {
+        byte[] uuid = toBytes(order.getOwner());
+        long remaining = order.getRemaining();
+        long escrow = order.getEscrow();
+        submit("saving order #" + order.getId(), connection -> {
+            try (PreparedStatement ps = connection.prepareStatement("REPLACE INTO " + ORDERS_TABLE
+                    + " (id, uuid, coin, side, price, amount, remaining, escrow, created) "
+                    + "VALUES (?,?,?,?,?,?,?,?,?);")) {
+                ps.setLong(1, order.getId());
+                ps.setBytes(2, uuid);
+                ps.setString(3, order.getCoin());
+                ps.setString(4, order.getSide().name());
+                ps.setLong(5, order.getPrice());
+                ps.setLong(6, order.getAmount());
+                ps.setLong(7, remaining);
+                ps.setLong(8, escrow);
+                ps.setLong(9, order.getCreated());
+                ps.executeUpdate();
+            }
+        });
+    }
+
+    /**
+     * Queues the order to be deleted
+     *
+     * @param id the order's id
+     */
+    public void deleteOrder(long id) {
+        delete(ORDERS_TABLE, "order", id);
+    }
+
+    /**
+     * Queues the trigger to be written
+     *
+     * @param trigger trigger
+     */
+    public void save(@NotNull Trigger trigger) {
+        byte[] uuid = toBytes(trigger.getOwner());
+        submit("saving trigger #" + trigger.getId(), connection -> {
+            try (PreparedStatement ps = connection.prepareStatement("REPLACE INTO " + TRIGGERS_TABLE
+                    + " (id, uuid, coin, type, price, amount, created) VALUES (?,?,?,?,?,?,?);")) {
+                ps.setLong(1, trigger.getId());
+                ps.setBytes(2, uuid);
+                ps.setString(3, trigger.getCoin());
+                ps.setString(4, trigger.getType().name());
+                ps.setLong(5, trigger.getPrice());
+                ps.setLong(6, trigger.getAmount());
+                ps.setLong(7, trigger.getCreated());
+                ps.executeUpdate();
+            }
+        });
+    }
+
+    /**
+     * Queues the trigger to be deleted
+     *
+     * @param id the trigger's id
+     */
+    public void deleteTrigger(long id) {
+        delete(TRIGGERS_TABLE, "trigger", id);
+    }
+
+    /**
+     * Waits for the queued writes. Called when the plugin is disabled
+     */
+    public void shutdown() {
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(SHUTDOWN_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)) {
+                CryptoMarket.warn("Timed out waiting for the orders to be saved!");
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void createTables(Connection connection) throws SQLException {
+        try (Statement statement = connection.createStatement()) {
+            statement.execute("CREATE TABLE IF NOT EXISTS " + ORDERS_TABLE + " (id BIGINT NOT NULL, "
+                    + "uuid BINARY(16) NOT NULL, coin VARCHAR(16) NOT NULL, side VARCHAR(16) NOT NULL, "
+                    + "price BIGINT NOT NULL, amount BIGINT NOT NULL, remaining BIGINT NOT NULL, "
+                    + "escrow BIGINT NOT NULL, created BIGINT NOT NULL, PRIMARY KEY (id));");
+            statement.execute("CREATE TABLE IF NOT EXISTS " + TRIGGERS_TABLE + " (id BIGINT NOT NULL, "
+                    + "uuid BINARY(16) NOT NULL, coin VARCHAR(16) NOT NULL, type VARCHAR(16) NOT NULL, "
+                    + "price BIGINT NOT NULL, amount BIGINT NOT NULL, created BIGINT NOT NULL, PRIMARY KEY (id));");
+        }
+    }
+
+    private void delete(String table, String description, long id) {
+        submit("deleting " + description + " #" + id, connection -> {
+            try (PreparedStatement ps = connection.prepareStatement("DELETE FROM " + table + " WHERE id = ?;")) {
+                ps.setLong(1, id);
+                ps.executeUpdate();
+            }
+        });
+    }
+
+    private void submit(String description, Write write) {
+        try {
+            executor.execute(() -> {
+                try (Connection connection = connectionFactory.getConnection()) {
+                    write.write(connection);
+                } catch (SQLException ex) {
+                    CryptoMarket.warn("Error " + description + ":");
+                    ex.printStackTrace();
+                }
+            });
+        } catch (RejectedExecutionException ex) {
+            CryptoMarket.warn("Error " + description + ": the plugin is being disabled");
+        }
+    }
+
+    @FunctionalInterface
+    private interface Write {
+
+        void write(Connection connection) throws SQLException;
+    }
+}
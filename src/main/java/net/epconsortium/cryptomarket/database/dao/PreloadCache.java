@@ -0,0 +1,174 @@
+package net.epconsortium.cryptomarket.database.dao;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Balances read during the pre-login, waiting for the player to join. Entries expire after a short time, in case
+ * the player never joins. It also measures how long after joining the investors become usable
+ *
+ * @author roinujnosde
+ */
+public final class PreloadCache {
+
+    private final long ttlNanos;
+    private final Map<UUID, Preloaded> entries = new ConcurrentHashMap<>();
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong expired = new AtomicLong();
+    private final AtomicLong loads = new AtomicLong();
+    private final AtomicLong totalReadyNanos = new AtomicLong();
+    private final AtomicLong maxReadyNanos = new AtomicLong();
+
+    PreloadCache(long ttlMillis) {
+        ttlNanos = TimeUnit.MILLISECONDS.toNanos(ttlMillis);
+    }
+
+    /**
+     * Stages the balances of a player that is logging in
+     *
+     * @param uuid unique id
+     * @param balances balances
+     */
+    void put(@NotNull UUID uuid, @NotNull Map<String, Balance> balances) {
+        long now = System.nanoTime();
+        for (Iterator<Preloaded> iterator = entries.values().iterator(); iterator.hasNext(); ) {
+            if (now - iterator.next().stagedAt > ttlNanos) {
+                iterator.remove();
+                expired.incrementAndGet();
+            }
+        }
+        entries.put(uuid, new Preloaded(balances, now));
+    }
+
+    /**
+     * Removes and returns the staged balances
+     *
+     * @param uuid unique id
+     * @return the balances or null if they were not staged or expired
+     */
+    @Nullable Map<String, Balance> take(@NotNull UUID uuid) {
+        Preloaded preloaded = entries.remove(uuid);
+        if (preloaded == null) {
+            misses.incrementAndGet();
+            return null;
+        }
+        if (System.nanoTime() - preloaded.stagedAt > ttlNanos) {
+            expired.incrementAndGet();
+            misses.incrementAndGet();
+            return null;
+        }
+        hits.incrementAndGet();
+        return preloaded.balances;
+    }
+
+    /**
+     * Discards the staged balances, if any
+     *
+     * @param uuid unique id
+     */
+    void discard(@NotNull UUID uuid) {
+        entries.remove(uuid);
+    }
+
+    /**
+     * Records how long an investor took to be usable after it was requested
+     *
+     * @param nanos the time
+     */
+    void recordReady(long nanos) {
+        loads.incrementAndGet();
+        totalReadyNanos.addAndGet(nanos);
+        maxReadyNanos.accumulateAndGet(nanos, Math::max);
+    }
+
+    /**
+     * Returns a snapshot of the metrics
+     *
+     * @return the statistics
+     */
+    @NotNull Statistics getStatistics() {
+        return new Statistics(entries.size(), hits.get(), misses.get(), expired.get(), loads.get(),
+                totalReadyNanos.get(), maxReadyNanos.get());
+    }
+
+    private static final class Preloaded {
+
+        private final Map<String, Balance> balances;
+        private final long stagedAt;
+
+        private Preloaded(Map<String, Balance> balances, long stagedAt) {
+            this.balances = balances;
+            this.stagedAt = stagedAt;
+        }
+    }
+
+    /**
+     * Snapshot of the preloading metrics. Times are in nanoseconds
+     */
+    public static final class Statistics {
+
+        private final int staged;
+        private final long hits;
+        private final long misses;
+        private final long expired;
+        private final long loads;
+        private final long totalReadyNanos;
+        private final long maxReadyNanos;
+
+        private Statistics(int staged, long hits, long misses, long expired, long loads, long totalReadyNanos,
+                           long maxReadyNanos) {
+            this.staged = staged;
+            this.hits = hits;
+            this.misses = misses;
+            this.expired = expired;
+            this.loads = loads;
+            this.totalReadyNanos = totalReadyNanos;
+            this.maxReadyNanos = maxReadyNanos;
+        }
+
+        /**
+         * @return investors preloaded and waiting for the join
+         */
+        public int getStaged() {
+            return staged;
+        }
+
+        /**
+         * @return joins served by the preloaded data
+         */
+        public long getHits() {
+            return hits;
+        }
+
+        /**
+         * @return joins that had to read the database
+         */
+        public long getMisses() {
+            return misses;
+        }
+
+        public long getExpired() {
+            return expired;
+        }
+
+        /**
+         * @return average time from the join until the investor is usable
+         */
+        public long getAverageReadyNanos() {
+            return loads == 0 ? 0 : totalReadyNanos / loads;
+        }
+
+        public long getMaxReadyNanos() {
+            return maxReadyNanos;
+        }
+    }
+}
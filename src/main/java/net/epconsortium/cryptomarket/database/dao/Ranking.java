@@ -0,0 +1,231 @@
+package net.epconsortium.cryptomarket.database.dao;
+
+import net.epconsortium.cryptomarket.finances.CoinRegistry;
+import net.epconsortium.cryptomarket.finances.ExchangeRate;
+import net.epconsortium.cryptomarket.finances.Holdings;
+import net.epconsortium.cryptomarket.finances.Money;
+import net.epconsortium.cryptomarket.finances.RateHistory;
+import org.bukkit.Bukkit;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.*;
+import java.util.function.Function;
+
+/**
+ * Result of a ranking refresh: the richest investors, ordered. The amounts read are counted by the
+ * {@link Holdings.Refresh}. Only the top investors are kept, everyone else is discarded as soon as their patrimony is
+ * known
+ *
+ * @author roinujnosde
+ */
+public final class Ranking {
+
+    private final List<Investor> top;
+
+    private Ranking(List<Investor> top) {
+        this.top = top;
+    }
+
+    /**
+     * @return the richest investors, richest first
+     */
+    public @NotNull List<Investor> getTop() {
+        return top;
+    }
+
+    /**
+     * Builds a {@link Ranking} from investors fed one at a time, keeping only the top ones in a bounded heap
+     */
+    static final class Builder {
+
+        /**
+         * Weakest first, so the head is the one replaced by a richer investor
+         */
+        private static final Comparator<Candidate> WEAKEST_FIRST = (a, b) -> {
+            int result = Long.compare(a.patrimony, b.patrimony);
+            return result != 0 ? result : b.uuid.compareTo(a.uuid);
+        };
+
+        private final ExchangeRate rate;
+        private final int size;
+        private final CoinRegistry coins;
+        private final Holdings.Refresh refresh;
+        private final PriorityQueue<Candidate> heap;
+
+        // the investor being streamed
+        private UUID current;
+        private long currentPatrimony;
+        private final List<String> currentCoins = new ArrayList<>();
+        private long[] currentAmounts = new long[16];
+
+        /**
+         * @param rate the rate used to convert the patrimonies
+         * @param size how many investors are kept
+         * @param coins the coin registry
+         * @param refresh counts the amounts of the added investors, or null if they are counted elsewhere
+         */
+        Builder(@NotNull ExchangeRate rate, int size, @NotNull CoinRegistry coins,
+                @Nullable Holdings.Refresh refresh) {
+            this.rate = rate;
+            this.size = size;
+            this.coins = coins;
+            this.refresh = refresh;
+            heap = new PriorityQueue<>(size + 1, WEAKEST_FIRST);
+        }
+
+        /**
+         * Starts streaming the balances of an investor, finishing the previous one
+         *
+         * @param uuid unique id
+         */
+        void begin(@NotNull UUID uuid) {
+            end();
+            current = uuid;
+            currentPatrimony = 0;
+        }
+
+        /**
+         * Adds a balance of the investor being streamed
+         *
+         * @param coin coin symbol
+         * @param purchased fixed-point amount of the coin
+         * @param paid fixed-point amount paid
+         */
+        void addBalance(@NotNull String coin, long purchased, long paid) {
+            int index = currentCoins.size();
+            if (index * 2 + 2 > currentAmounts.length) {
+                currentAmounts = Arrays.copyOf(currentAmounts, currentAmounts.length * 2);
+            }
+            currentCoins.add(coin);
+            currentAmounts[index * 2] = purchased;
+            currentAmounts[index * 2 + 1] = paid;
+            currentPatrimony = Math.addExact(currentPatrimony, count(coins.getId(coin), purchased));
+        }
+
+        /**
+         * Finishes the investor being streamed, if any
+         */
+        void end() {
+            if (current == null) {
+                return;
+            }
+            UUID uuid = current;
+            current = null;
+            if (offer(uuid, currentPatrimony)) {
+                Map<String, Balance> balances = new HashMap<>();
+                for (int i = 0; i < currentCoins.size(); i++) {
+                    balances.put(currentCoins.get(i), new Balance(currentAmounts[i * 2], currentAmounts[i * 2 + 1]));
+                }
+                heap.add(new Candidate(uuid, currentPatrimony, balances, null));
+            }
+            currentCoins.clear();
+        }
+
+        /**
+         * Adds an investor whose balances were read at once
+         *
+         * @param uuid unique id
+         * @param balances balances
+         */
+        void add(@NotNull UUID uuid, @NotNull Map<String, Balance> balances) {
+            end();
+            long patrimony = 0;
+            for (Map.Entry<String, Balance> entry : balances.entrySet()) {
+                patrimony = Math.addExact(patrimony, count(coins.getId(entry.getKey()),
+                        entry.getValue().getFixedPointValue()));
+            }
+            if (offer(uuid, patrimony)) {
+                heap.add(new Candidate(uuid, patrimony, balances, null));
+            }
+        }
+
+        /**
+         * Adds an investor that is loaded, its balances are newer than the ones in the database. Must be called
+         * holding the investor's lock
+         *
+         * @param investor investor
+         */
+        void add(@NotNull Investor investor) {
+            end();
+            long patrimony = 0;
+            for (Map.Entry<String, Balance> entry : investor.getBalances().entrySet()) {
+                patrimony = Math.addExact(patrimony, count(coins.getId(entry.getKey()),
+                        entry.getValue().getFixedPointValue()));
+            }
+            if (offer(investor.getUniqueId(), patrimony)) {
+                heap.add(new Candidate(investor.getUniqueId(), patrimony, null, investor));
+            }
+        }
+
+        /**
+         * Builds the ranking. Investors that are loaded are reused, the others are created
+         *
+         * @param loaded returns the loaded investor or null
+         * @return the ranking
+         */
+        @NotNull Ranking build(@NotNull Function<UUID, Investor> loaded) {
+            end();
+            List<Candidate> candidates = new ArrayList<>(heap);
+            candidates.sort(WEAKEST_FIRST.reversed());
+            List<Investor> top = new ArrayList<>(candidates.size());
+            for (Candidate candidate : candidates) {
+                Investor investor = candidate.investor;
+                if (investor == null) {
+                    investor = loaded.apply(candidate.uuid);
+                }
+                if (investor == null) {
+                    investor = new Investor(Bukkit.getOfflinePlayer(candidate.uuid), candidate.balances, coins);
+                }
+                top.add(investor);
+            }
+            return new Ranking(Collections.unmodifiableList(top));
+        }
+
+        private long count(int coin, long amount) {
+            if (coin == -1) {
+                return 0;
+            }
+            if (refresh != null) {
+                refresh.count(coin, amount);
+            }
+            long value = rate.getFixedPointValue(coin);
+            return value == RateHistory.MISSING ? 0 : Money.convert(value, amount);
+        }
+
+        /**
+         * Checks if the investor enters the heap, removing the weakest one if it is full
+         */
+        private boolean offer(UUID uuid, long patrimony) {
+            if (size <= 0) {
+                return false;
+            }
+            if (heap.size() < size) {
+                return true;
+            }
+            Candidate weakest = heap.peek();
+            if (patrimony > weakest.patrimony
+                    || (patrimony == weakest.patrimony && uuid.compareTo(weakest.uuid) < 0)) {
+                heap.poll();
+                return true;
+            }
+            return false;
+        }
+    }
+
+    private static final class Candidate {
+
+        private final UUID uuid;
+        private final long patrimony;
+        private final Map<String, Balance> balances;
+        private final Investor investor;
+
+        private Candidate(UUID uuid, long patrimony, @Nullable Map<String, Balance> balances,
+                          @Nullable Investor investor) {
+            this.uuid = uuid;
+            this.patrimony = patrimony;
+            this.balances = balances;
+            this.investor = investor;
+        }
+    }
+}
@@ -0,0 +1,309 @@
+package net.epconsortium.cryptomarket.database.dao;
+
+import net.epconsortium.cryptomarket.CryptoMarket;
+import org.jetbrains.annotations.NotNull;
+
+import java.sql.SQLException;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Queue of investors waiting to be written to the database.
+ * A single writer thread drains it, so the writes of an investor never overtake each other; an investor queued
+ * again before being written is coalesced into the pending entry. The queue is flushed in one transaction when it
+ * reaches the batch size or when the flush interval elapses, whichever comes first. After a failed flush the writer
+ * backs off, starting at the flush interval and doubling up to five minutes, so a database that is down is not
+ * retried in a loop.
+ *
+ * @author roinujnosde
+ */
+public final class WriteBehindQueue {
+
+    private static final long SHUTDOWN_TIMEOUT_MILLIS = 30_000;
+    private static final long MIN_BACKOFF_NANOS = TimeUnit.SECONDS.toNanos(1);
+    private static final long MAX_BACKOFF_NANOS = TimeUnit.MINUTES.toNanos(5);
+
+    private final Writer writer;
+    private final int batchSize;
+    private final long flushIntervalNanos;
+    private final Thread thread;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition wakeUp = lock.newCondition();
+    private final Map<UUID, Investor> pending = new LinkedHashMap<>();
+    private int inFlight;
+    private boolean flushRequested;
+    private boolean stopping;
+    private long flushCount;
+    /**
+     * Time to wait before retrying a failed flush, 0 if the last one succeeded. Only used by the writer thread
+     */
+    private long backoffNanos;
+
+    private final AtomicLong enqueued = new AtomicLong();
+    private final AtomicLong coalesced = new AtomicLong();
+    private final AtomicLong investorsWritten = new AtomicLong();
+    private final AtomicLong balancesWritten = new AtomicLong();
+    private final AtomicLong totalWriteNanos = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+
+    /**
+     * Creates the queue and starts the writer thread
+     *
+     * @param writer writes a batch of investors in one transaction
+     * @param batchSize pending investors that trigger a flush
+     * @param flushIntervalMillis maximum time an investor waits in the queue, unless the database is failing
+     */
+    WriteBehindQueue(@NotNull Writer writer, int batchSize, long flushIntervalMillis) {
+        this.writer = writer;
+        this.batchSize = batchSize;
+        this.flushIntervalNanos = TimeUnit.MILLISECONDS.toNanos(flushIntervalMillis);
+        thread = new Thread(this::run, "CryptoMarket Writer");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Queues the investor to be written
+     *
+     * @param investor investor
+     */
+    void enqueue(@NotNull Investor investor) {
+        lock.lock();
+        try {
+            enqueued.incrementAndGet();
+            if (pending.putIfAbsent(investor.getUniqueId(), investor) != null) {
+                coalesced.incrementAndGet();
+            } else if (pending.size() >= batchSize) {
+                wakeUp.signal();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Asks the writer to flush now, without waiting for it
+     */
+    void requestFlush() {
+        lock.lock();
+        try {
+            flushRequested = true;
+            wakeUp.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Flushes the queue, waits for the writer to finish and stops it
+     */
+    void shutdown() {
+        lock.lock();
+        try {
+            stopping = true;
+            wakeUp.signal();
+        } finally {
+            lock.unlock();
+        }
+        try {
+            thread.join(SHUTDOWN_TIMEOUT_MILLIS);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        if (thread.isAlive()) {
+            CryptoMarket.warn("Timed out waiting for the investors to be saved!");
+        }
+    }
+
+    /**
+     * Returns a snapshot of the queue metrics
+     *
+     * @return the statistics
+     */
+    @NotNull Statistics getStatistics() {
+        int size;
+        long flushes;
+        lock.lock();
+        try {
+            size = pending.size() + inFlight;
+            flushes = flushCount;
+        } finally {
+            lock.unlock();
+        }
+        return new Statistics(size, enqueued.get(), coalesced.get(), flushes, investorsWritten.get(),
+                balancesWritten.get(), totalWriteNanos.get(), failures.get());
+    }
+
+    private void run() {
+        while (true) {
+            List<Investor> batch;
+            lock.lock();
+            try {
+                if (backoffNanos > 0) {
+                    // neither the batch size nor a flush request retry before the backoff elapses
+                    long remaining = backoffNanos;
+                    while (!stopping && remaining > 0) {
+                        remaining = wakeUp.awaitNanos(remaining);
+                    }
+                } else {
+                    long remaining = flushIntervalNanos;
+                    while (!stopping && !flushRequested && pending.size() < batchSize && remaining > 0) {
+                        remaining = wakeUp.awaitNanos(remaining);
+                    }
+                }
+                flushRequested = false;
+                if (pending.isEmpty()) {
+                    if (stopping) {
+                        return;
+                    }
+                    continue;
+                }
+                batch = new ArrayList<>(pending.values());
+                inFlight = batch.size();
+                pending.clear();
+            } catch (InterruptedException ex) {
+                return;
+            } finally {
+                lock.unlock();
+            }
+
+            boolean success = write(batch);
+
+            lock.lock();
+            try {
+                inFlight = 0;
+                if (!success) {
+                    // back to the front of the queue, anything queued meanwhile is the same object
+                    Map<UUID, Investor> retry = new LinkedHashMap<>();
+                    batch.forEach(investor -> retry.put(investor.getUniqueId(), investor));
+                    retry.putAll(pending);
+                    pending.clear();
+                    pending.putAll(retry);
+                    if (stopping) {
+                        CryptoMarket.warn("Could not save " + pending.size() + " investors before stopping!");
+                        return;
+                    }
+                }
+                flushCount++;
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    private boolean write(List<Investor> batch) {
+        long start = System.nanoTime();
+        try {
+            int balances = writer.write(batch);
+            investorsWritten.addAndGet(batch.size());
+            balancesWritten.addAndGet(balances);
+            backoffNanos = 0;
+            return true;
+        } catch (SQLException | RuntimeException ex) {
+            failures.incrementAndGet();
+            boolean failing = backoffNanos > 0;
+            long first = Math.max(flushIntervalNanos, MIN_BACKOFF_NANOS);
+            backoffNanos = Math.min(Math.max(backoffNanos * 2, first), MAX_BACKOFF_NANOS);
+            String retry = "retrying in " + TimeUnit.NANOSECONDS.toSeconds(backoffNanos) + "s";
+            if (failing) {
+                // the stack trace was printed by the first failure
+                CryptoMarket.warn("Error saving " + batch.size() + " investors, " + retry + ": " + ex);
+            } else {
+                CryptoMarket.warn("Error saving " + batch.size() + " investors, " + retry + ":");
+                ex.printStackTrace();
+            }
+            return false;
+        } finally {
+            totalWriteNanos.addAndGet(System.nanoTime() - start);
+        }
+    }
+
+    @FunctionalInterface
+    interface Writer {
+
+        /**
+         * Writes the investors in one transaction
+         *
+         * @param investors investors
+         * @return how many balances were written
+         * @throws SQLException if the transaction failed
+         */
+        int write(@NotNull Collection<Investor> investors) throws SQLException;
+    }
+
+    /**
+     * Snapshot of the queue metrics. Times are in nanoseconds
+     */
+    public static final class Statistics {
+
+        private final int size;
+        private final long enqueued;
+        private final long coalesced;
+        private final long flushes;
+        private final long investorsWritten;
+        private final long balancesWritten;
+        private final long totalWriteNanos;
+        private final long failures;
+
+        private Statistics(int size, long enqueued, long coalesced, long flushes, long investorsWritten,
+                           long balancesWritten, long totalWriteNanos, long failures) {
+            this.size = size;
+            this.enqueued = enqueued;
+            this.coalesced = coalesced;
+            this.flushes = flushes;
+            this.investorsWritten = investorsWritten;
+            this.balancesWritten = balancesWritten;
+            this.totalWriteNanos = totalWriteNanos;
+            this.failures = failures;
+        }
+
+        /**
+         * @return investors waiting to be written
+         */
+        public int getSize() {
+            return size;
+        }
+
+        public long getEnqueued() {
+            return enqueued;
+        }
+
+        /**
+         * @return enqueues merged into an investor that was already waiting
+         */
+        public long getCoalesced() {
+            return coalesced;
+        }
+
+        public long getFlushes() {
+            return flushes;
+        }
+
+        public long getInvestorsWritten() {
+            return investorsWritten;
+        }
+
+        public long getBalancesWritten() {
+            return balancesWritten;
+        }
+
+        public long getAverageFlushNanos() {
+            return flushes == 0 ? 0 : totalWriteNanos / flushes;
+        }
+
+        /**
+         * @return written investors per second of writing
+         */
+        public double getThroughput() {
+            return totalWriteNanos == 0 ? 0 : investorsWritten * 1_000_000_000D / totalWriteNanos;
+        }
+
+        public long getFailures() {
+            return failures;
+        }
+    }
+}
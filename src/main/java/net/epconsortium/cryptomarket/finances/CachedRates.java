@@ -1,35 +1,70 @@
 package net.epconsortium.cryptomarket.finances;
 
-import com.google.gson.Gson;
-import com.google.gson.GsonBuilder;
-import com.google.gson.TypeAdapter;
-import com.google.gson.reflect.TypeToken;
 import com.google.gson.stream.JsonReader;
-import com.google.gson.stream.JsonToken;
-import com.google.gson.stream.JsonWriter;
 import net.epconsortium.cryptomarket.CryptoMarket;
+import net.epconsortium.cryptomarket.finances.provider.RateProvider;
+import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
 import java.io.File;
-import java.io.FileReader;
-import java.io.FileWriter;
+import java.io.FileInputStream;
 import java.io.IOException;
-import java.lang.reflect.Type;
+import java.io.InputStreamReader;
 import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.time.LocalDate;
 import java.time.LocalDateTime;
-import java.util.HashMap;
-import java.util.Map;
+import java.time.ZoneId;
+import java.util.*;
 import java.util.logging.Level;
 
+/**
+ * Cache of the exchange rates fetched from remote providers, so they are not requested again.
+ * <p>
+ * All coins are stored in {@code cache/rates-<generation>.bin}, a header followed by fixed-size records of coin id,
+ * epoch-day, fixed-point value and timestamp. The file is memory-mapped for reads and only appended to, a newer
+ * record of the same coin and day replaces the older one. The positions of the latest records are indexed in memory
+ * when the file is opened, and the file is compacted when the replaced records outnumber the live ones.
+ * <p>
+ * Compaction writes the next generation and switches to it instead of replacing the mapped file, which Windows
+ * does not allow. The old generation is deleted if it is not mapped anymore, or else when the cache is loaded.
+ * <p>
+ * Saved rates are written back: they are kept in a memory buffer, where later saves of the same coin and day
+ * overwrite them, until {@link #flush()} appends the buffer to the file.
+ *
+ * @author roinujnosde
+ */
 public class CachedRates {
 
+    private static final int MAGIC = 0x434D5243; // CMRC
+    private static final int FORMAT_VERSION = 1;
+    private static final int HEADER_SIZE = 8;
+    private static final int RECORD_SIZE = 24;
+    private static final int SYMBOL_SIZE = RECORD_SIZE - 8;
+    private static final int DEFINITION = Integer.MIN_VALUE;
+    private static final int MIN_COMPACTION = 1024;
+    private static final String FILE_PREFIX = "rates-";
+    private static final String FILE_SUFFIX = ".bin";
+
     private final CryptoMarket plugin;
     private final File cacheFolder;
-    private final Gson gson = new GsonBuilder().setPrettyPrinting()
-            .registerTypeAdapter(LocalDate.class, new LocalDateAdapter()).registerTypeAdapter(LocalDateTime.class, new LocalDateTimeAdapter()).create();
-    private static final Type MAP_TYPE = TypeToken.getParameterized(Map.class, LocalDate.class, CachedExchangeRate.class).getType();
-
+    private long generation;
+    private Path path;
+    private final Map<String, CoinIndex> coins = new HashMap<>();
+    private FileChannel channel;
+    private MappedByteBuffer mapped;
+    private ByteBuffer pending = ByteBuffer.allocate(RECORD_SIZE * 64);
+    private int flushedCount;
+    private int recordCount;
+    private int live;
+    private boolean closed;
 
     public CachedRates(CryptoMarket plugin) {
         this.plugin = plugin;
@@ -38,103 +73,645 @@ public class CachedRates {
         cacheFolder.mkdir();
     }
 
-    public boolean isCached(String coin) {
-        return getCacheFile(coin).exists();
+    /**
+     * Opens the cache file and indexes it. The cache is empty until this is called
+     */
+    public synchronized void load() {
+        if (channel != null || closed) {
+            return;
+        }
+        try {
+            selectGeneration();
+            use(open(path));
+            if (coins.isEmpty()) {
+                migrateJsonFiles();
+            }
+        } catch (IOException ex) {
+            plugin.getLogger().log(Level.SEVERE, "There was an error while reading the cache", ex);
+        }
     }
 
-    public Map<LocalDate, CachedExchangeRate> getRates(String coin) {
-        if (isCached(coin)) {
-            try (JsonReader reader = new JsonReader(new FileReader(getCacheFile(coin)))) {
-                Map<LocalDate, CachedExchangeRate> map = gson.fromJson(reader, MAP_TYPE);
-                if (map != null) {
-                    return map;
-                }
-            } catch (IOException ex) {
-                plugin.getLogger().log(Level.SEVERE, "There was an error while reading the cache", ex);
+    public synchronized boolean isCached(String coin) {
+        CoinIndex index = coins.get(coin);
+        return index != null && index.live > 0;
+    }
+
+    /**
+     * Returns a view of the cached rates that many threads can read at the same time, without locking the cache.
+     * Rates saved after this call are not seen by it
+     *
+     * @return the snapshot
+     */
+    public synchronized @NotNull Snapshot snapshot() {
+        Map<String, CoinIndex> indexes = new HashMap<>();
+        if (channel == null) {
+            return new Snapshot(indexes, ByteBuffer.allocate(0), 0, ByteBuffer.allocate(0));
+        }
+        try {
+            if (mapped.capacity() < offset(flushedCount)) {
+                remap();
             }
+        } catch (IOException ex) {
+            plugin.getLogger().log(Level.SEVERE, "There was an error while reading the cache", ex);
+            return new Snapshot(indexes, ByteBuffer.allocate(0), 0, ByteBuffer.allocate(0));
+        }
+        for (Map.Entry<String, CoinIndex> entry : coins.entrySet()) {
+            CoinIndex index = entry.getValue();
+            CoinIndex copy = new CoinIndex(index.id);
+            copy.firstDay = index.firstDay;
+            copy.records = index.records.clone();
+            copy.live = index.live;
+            indexes.put(entry.getKey(), copy);
         }
-        return new HashMap<>();
+        ByteBuffer unflushed = ByteBuffer.allocate(pending.position());
+        unflushed.put(pending.array(), 0, pending.position());
+        return new Snapshot(indexes, mapped, flushedCount, unflushed);
     }
 
-    public @Nullable CachedExchangeRate getCachedExchangeRate(String coin, LocalDate date) {
-        return getRates(coin).get(date);
+    /**
+     * Returns the fixed-point rate of the coin on the day
+     *
+     * @param coin coin
+     * @param epochDay day
+     * @return the rate or {@link RateHistory#MISSING}
+     */
+    public synchronized long getRate(@NotNull String coin, long epochDay) {
+        CoinIndex index = coins.get(coin);
+        int record = index == null ? 0 : index.get(epochDay);
+        if (record == 0) {
+            return RateHistory.MISSING;
+        }
+        try {
+            return readLong(record - 1, 8);
+        } catch (IOException ex) {
+            plugin.getLogger().log(Level.SEVERE, "There was an error while reading the cache", ex);
+            return RateHistory.MISSING;
+        }
     }
 
-    public void saveRates(String coin, Map<LocalDate, BigDecimal> rates) {
-        Map<LocalDate, CachedExchangeRate> currentCache = getRates(coin);
-        LocalDateTime now = LocalDateTime.now();
-        for (Map.Entry<LocalDate, BigDecimal> entry : rates.entrySet()) {
-            currentCache.put(entry.getKey(), new CachedExchangeRate(entry.getValue(), now));
+    public synchronized @Nullable CachedExchangeRate getCachedExchangeRate(String coin, LocalDate date) {
+        CoinIndex index = coins.get(coin);
+        if (index == null) {
+            return null;
+        }
+        int record = index.get(date.toEpochDay());
+        if (record == 0) {
+            return null;
         }
-        try (FileWriter fw = new FileWriter(getCacheFile(coin))) {
-            gson.toJson(currentCache, MAP_TYPE, fw);
+        try {
+            return new CachedExchangeRate(readLong(record - 1, 8), readLong(record - 1, 16));
         } catch (IOException ex) {
-            plugin.getLogger().log(Level.SEVERE, "There was an error while saving the cache", ex);
+            plugin.getLogger().log(Level.SEVERE, "There was an error while reading the cache", ex);
+            return null;
         }
     }
 
-    private File getCacheFile(String coin) {
-        return new File(cacheFolder, String.format("%s.json", coin.toLowerCase()));
+    /**
+     * Saves the fixed-point rate of the coin on the day
+     *
+     * @param coin coin
+     * @param epochDay day
+     * @param value fixed-point value
+     */
+    public void saveRate(String coin, long epochDay, long value) {
+        saveRates(coin, new long[]{epochDay}, new long[]{value}, 1);
     }
 
-    public static class CachedExchangeRate {
-
-        private final BigDecimal value;
-        private final LocalDateTime lastUpdated;
+    /**
+     * Saves the fixed-point rates of the coin. They are written to the file on the next {@link #flush()}
+     *
+     * @param coin coin
+     * @param days the epoch-days
+     * @param values the fixed-point values
+     * @param count number of rates to save
+     */
+    public synchronized void saveRates(String coin, long[] days, long[] values, int count) {
+        if (channel == null) {
+            return;
+        }
+        CoinIndex index = coins.get(coin);
+        if (index == null && (index = define(coin)) == null) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < count; i++) {
+            stage(index, days[i], values[i], now);
+        }
+    }
 
-        public CachedExchangeRate(BigDecimal value, LocalDateTime lastUpdated) {
-            this.value = value;
-            this.lastUpdated = lastUpdated;
+    /**
+     * Appends the pending rates to the file, compacting it if necessary
+     */
+    public synchronized void flush() {
+        if (channel == null || pending.position() == 0) {
+            return;
         }
+        try {
+            pending.flip();
+            try {
+                long position = HEADER_SIZE + (long) flushedCount * RECORD_SIZE;
+                while (pending.hasRemaining()) {
+                    position += channel.write(pending, position);
+                }
+            } finally {
+                // back to appending; if the write failed the records stay pending and are written again
+                pending.position(pending.limit()).limit(pending.capacity());
+            }
+            pending.clear();
+            flushedCount = recordCount;
+            if (recordCount - coins.size() - live > Math.max(live, MIN_COMPACTION)) {
+                compact();
+            }
+        } catch (IOException ex) {
+            plugin.getLogger().log(Level.SEVERE, "There was an error while saving the cache", ex);
+        }
+    }
 
-        public boolean isFresh(int updateInterval) {
-            return lastUpdated.plusMinutes(updateInterval).isAfter(LocalDateTime.now());
+    /**
+     * Flushes the pending rates and closes the cache file
+     */
+    public synchronized void close() {
+        closed = true;
+        if (channel == null) {
+            return;
+        }
+        flush();
+        try {
+            channel.close();
+        } catch (IOException ex) {
+            plugin.getLogger().log(Level.SEVERE, "There was an error while closing the cache", ex);
         }
+        channel = null;
+        mapped = null;
+    }
 
-        public BigDecimal getCoinValue() {
-            return value;
+    /**
+     * Finds the newest generation of the cache file and deletes the older ones, left behind by compactions while
+     * they were still mapped. The file of older versions becomes the first generation
+     */
+    private void selectGeneration() throws IOException {
+        File[] files = cacheFolder.listFiles((dir, name) -> generationOf(name) >= 0);
+        generation = -1;
+        if (files != null) {
+            for (File file : files) {
+                generation = Math.max(generation, generationOf(file.getName()));
+            }
+            for (File file : files) {
+                if (generationOf(file.getName()) < generation) {
+                    Files.deleteIfExists(file.toPath());
+                }
+            }
         }
+        if (generation < 0) {
+            generation = 0;
+            File legacy = new File(cacheFolder, "rates.bin");
+            if (legacy.exists()) {
+                Files.move(legacy.toPath(), generationPath(0));
+            }
+        }
+        path = generationPath(generation);
+    }
+
+    private Path generationPath(long generation) {
+        return new File(cacheFolder, FILE_PREFIX + generation + FILE_SUFFIX).toPath();
     }
 
-    static class LocalDateTimeAdapter extends TypeAdapter<LocalDateTime> {
+    /**
+     * @return the generation of the cache file or -1 if the name is not of a cache file
+     */
+    private static long generationOf(String name) {
+        if (!name.startsWith(FILE_PREFIX) || !name.endsWith(FILE_SUFFIX)) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(name.substring(FILE_PREFIX.length(), name.length() - FILE_SUFFIX.length()));
+        } catch (NumberFormatException ex) {
+            return -1;
+        }
+    }
 
-        @Override
-        public void write(JsonWriter jsonWriter, LocalDateTime localDateTime) throws IOException {
-            if (localDateTime == null) {
-                jsonWriter.nullValue();
+    /**
+     * Opens a cache file and indexes it, without changing the cache. A file of an unknown format is moved away and
+     * replaced with an empty one
+     *
+     * @param path the file
+     * @return the opened file
+     */
+    private Generation open(Path path) throws IOException {
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        try {
+            long size = channel.size();
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            if (size < HEADER_SIZE) {
+                header.putInt(MAGIC).putInt(FORMAT_VERSION).flip();
+                channel.truncate(0);
+                channel.write(header, 0);
+                size = HEADER_SIZE;
             } else {
-                jsonWriter.value(localDateTime.toString());
+                // checked before mapping, so the file can still be moved away
+                while (header.hasRemaining() && channel.read(header, header.position()) >= 0) {
+                    // reads the whole header
+                }
+            }
+            if (header.getInt(0) != MAGIC || header.getInt(4) != FORMAT_VERSION) {
+                channel.close();
+                CryptoMarket.warn("Unknown cache format, starting a new cache");
+                Files.move(path, new File(cacheFolder, path.getFileName() + ".invalid").toPath(),
+                        StandardCopyOption.REPLACE_EXISTING);
+                return open(path);
             }
+            long records = (size - HEADER_SIZE) / RECORD_SIZE;
+            if (HEADER_SIZE + records * RECORD_SIZE != size) {
+                // the last write was interrupted
+                channel.truncate(HEADER_SIZE + records * RECORD_SIZE);
+            }
+            Generation opened = new Generation(channel, Math.toIntExact(records));
+            opened.mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE + records * RECORD_SIZE);
+            opened.scan();
+            return opened;
+        } catch (IOException | RuntimeException ex) {
+            channel.close();
+            throw ex;
         }
+    }
+
+    /**
+     * Switches the cache to an opened file
+     */
+    private void use(Generation opened) {
+        channel = opened.channel;
+        mapped = opened.mapped;
+        coins.clear();
+        coins.putAll(opened.coins);
+        recordCount = opened.recordCount;
+        flushedCount = recordCount;
+        live = opened.live;
+    }
 
-        @Override
-        public LocalDateTime read(JsonReader jsonReader) throws IOException {
-            if (jsonReader.peek() == JsonToken.NULL) {
-                jsonReader.nextNull();
+    private @Nullable CoinIndex define(String coin) {
+        byte[] symbol = encode(coin);
+        if (symbol == null) {
+            CryptoMarket.warn("The symbol " + coin + " cannot be cached, only up to " + SYMBOL_SIZE
+                    + " printable ASCII characters are supported");
+            return null;
+        }
+        CoinIndex index = new CoinIndex(coins.size());
+        ensurePending();
+        pending.putInt(index.id).putInt(DEFINITION).put(symbol).put(new byte[RECORD_SIZE - 8 - symbol.length]);
+        recordCount++;
+        coins.put(coin, index);
+        return index;
+    }
+
+    /**
+     * Encodes the symbol of a definition record. Other characters would not be read back as the same symbol
+     *
+     * @param coin the symbol
+     * @return the bytes or null if the symbol is empty, longer than {@link #SYMBOL_SIZE} or not printable ASCII
+     */
+    private static @Nullable byte[] encode(String coin) {
+        if (coin.isEmpty() || coin.length() > SYMBOL_SIZE) {
+            return null;
+        }
+        for (int i = 0; i < coin.length(); i++) {
+            char c = coin.charAt(i);
+            if (c <= ' ' || c > '~') {
                 return null;
             }
-            return LocalDateTime.parse(jsonReader.nextString());
         }
+        return coin.getBytes(StandardCharsets.US_ASCII);
     }
 
-    static class LocalDateAdapter extends TypeAdapter<LocalDate> {
+    /**
+     * Adds the rate to the pending buffer, or overwrites it there if that day is still pending
+     */
+    private void stage(CoinIndex index, long epochDay, long value, long timestamp) {
+        int record = index.get(epochDay) - 1;
+        if (record >= flushedCount) {
+            int offset = (record - flushedCount) * RECORD_SIZE;
+            pending.putLong(offset + 8, value).putLong(offset + 16, timestamp);
+            return;
+        }
+        ensurePending();
+        pending.putInt(index.id).putInt(Math.toIntExact(epochDay)).putLong(value).putLong(timestamp);
+        index(index, epochDay, recordCount++);
+    }
 
-        @Override
-        public void write(JsonWriter jsonWriter, LocalDate localDate) throws IOException {
-            if (localDate == null) {
-                jsonWriter.nullValue();
-            } else {
-                jsonWriter.value(localDate.toString());
+    private void ensurePending() {
+        if (pending.remaining() < RECORD_SIZE) {
+            ByteBuffer grown = ByteBuffer.allocate(pending.capacity() * 2);
+            pending.flip();
+            grown.put(pending);
+            pending = grown;
+        }
+    }
+
+    private void index(CoinIndex index, long epochDay, int record) {
+        if (index.set(epochDay, record + 1) == 0) {
+            index.live++;
+            live++;
+        }
+    }
+
+    private long readLong(int record, int field) throws IOException {
+        if (record >= flushedCount) {
+            return pending.getLong((record - flushedCount) * RECORD_SIZE + field);
+        }
+        if (offset(record) + RECORD_SIZE > mapped.capacity()) {
+            remap();
+        }
+        return mapped.getLong(offset(record) + field);
+    }
+
+    private void remap() throws IOException {
+        mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE + (long) flushedCount * RECORD_SIZE);
+    }
+
+    private static int offset(int record) {
+        return HEADER_SIZE + record * RECORD_SIZE;
+    }
+
+    /**
+     * Writes the next generation of the file with only the latest record of each coin and day, and switches to it
+     */
+    private void compact() throws IOException {
+        Path next = generationPath(generation + 1);
+        Path temp = new File(cacheFolder, next.getFileName() + ".tmp").toPath();
+        try (FileChannel out = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer buffer = ByteBuffer.allocate(RECORD_SIZE * 1024);
+            buffer.putInt(MAGIC).putInt(FORMAT_VERSION);
+            int id = 0;
+            for (Map.Entry<String, CoinIndex> entry : coins.entrySet()) {
+                byte[] symbol = encode(entry.getKey());
+                if (symbol == null) {
+                    // only from a damaged file, defining it again would fail
+                    CryptoMarket.warn("Dropping the cached rates of the invalid symbol " + entry.getKey());
+                    continue;
+                }
+                buffer = ensureRemaining(out, buffer);
+                buffer.putInt(id).putInt(DEFINITION).put(symbol).put(new byte[RECORD_SIZE - 8 - symbol.length]);
+                CoinIndex index = entry.getValue();
+                for (int i = 0; i < index.records.length; i++) {
+                    int record = index.records[i];
+                    if (record == 0) {
+                        continue;
+                    }
+                    buffer = ensureRemaining(out, buffer);
+                    buffer.putInt(id).putInt(Math.toIntExact(index.firstDay + i)).putLong(readLong(record - 1, 8))
+                            .putLong(readLong(record - 1, 16));
+                }
+                id++;
+            }
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                out.write(buffer);
             }
+            out.force(true);
+        }
+        // a generation is only visible when complete, the mapped file is never replaced
+        Files.move(temp, next, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        // if the next generation cannot be opened, the cache keeps using this one
+        Generation opened = open(next);
+        Path previous = path;
+        FileChannel previousChannel = channel;
+        generation++;
+        path = next;
+        use(opened);
+        try {
+            previousChannel.close();
+            Files.deleteIfExists(previous);
+        } catch (IOException ex) {
+            CryptoMarket.debug("Could not delete " + previous.getFileName() + " yet, it is deleted on the next load");
         }
+    }
 
-        @Override
-        public LocalDate read(JsonReader jsonReader) throws IOException {
-            if (jsonReader.peek() == JsonToken.NULL) {
-                jsonReader.nextNull();
-                return null;
+    private ByteBuffer ensureRemaining(FileChannel out, ByteBuffer buffer) throws IOException {
+        if (buffer.remaining() >= RECORD_SIZE) {
+            return buffer;
+        }
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            out.write(buffer);
+        }
+        buffer.clear();
+        return buffer;
+    }
+
+    /**
+     * Imports the per-coin JSON files of older versions
+     */
+    private void migrateJsonFiles() {
+        File[] files = cacheFolder.listFiles((dir, name) -> name.endsWith(".json"));
+        if (files == null || files.length == 0) {
+            return;
+        }
+        for (File file : files) {
+            String coin = file.getName().substring(0, file.getName().length() - 5).toUpperCase();
+            try {
+                migrate(coin, file);
+                Files.move(file.toPath(), new File(cacheFolder, file.getName() + ".migrated").toPath(),
+                        StandardCopyOption.REPLACE_EXISTING);
+            } catch (IOException | RuntimeException ex) {
+                plugin.getLogger().log(Level.WARNING, "Could not migrate the cache file " + file.getName(), ex);
+            }
+        }
+        CryptoMarket.debug("Migrated " + files.length + " cache files to " + path.getFileName());
+    }
+
+    private void migrate(String coin, File file) throws IOException {
+        List<long[]> rates = new ArrayList<>();
+        try (JsonReader reader = new JsonReader(new InputStreamReader(new FileInputStream(file),
+                StandardCharsets.UTF_8))) {
+            reader.beginObject();
+            while (reader.hasNext()) {
+                long day = LocalDate.parse(reader.nextName()).toEpochDay();
+                long value = RateHistory.MISSING;
+                long lastUpdated = 0;
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    switch (reader.nextName()) {
+                        case "value":
+                            value = RateHistory.parseFixedPoint(reader.nextString());
+                            break;
+                        case "lastUpdated":
+                            lastUpdated = LocalDateTime.parse(reader.nextString()).atZone(ZoneId.systemDefault())
+                                    .toInstant().toEpochMilli();
+                            break;
+                        default:
+                            reader.skipValue();
+                    }
+                }
+                reader.endObject();
+                if (value != RateHistory.MISSING) {
+                    rates.add(new long[]{day, value, lastUpdated});
+                }
+            }
+            reader.endObject();
+        }
+        if (rates.isEmpty()) {
+            return;
+        }
+        CoinIndex index = coins.get(coin);
+        if (index == null && (index = define(coin)) == null) {
+            return;
+        }
+        for (long[] rate : rates) {
+            stage(index, rate[0], rate[1], rate[2]);
+        }
+        flush();
+    }
+
+    /**
+     * A cache file that was opened and indexed
+     */
+    private static final class Generation {
+
+        private final FileChannel channel;
+        private final int recordCount;
+        private final Map<String, CoinIndex> coins = new HashMap<>();
+        private MappedByteBuffer mapped;
+        private int live;
+
+        private Generation(FileChannel channel, int recordCount) {
+            this.channel = channel;
+            this.recordCount = recordCount;
+        }
+
+        /**
+         * Indexes the latest record of each coin and day
+         */
+        private void scan() {
+            Map<Integer, CoinIndex> ids = new HashMap<>();
+            byte[] symbol = new byte[SYMBOL_SIZE];
+            for (int record = 0; record < recordCount; record++) {
+                int offset = offset(record);
+                int id = mapped.getInt(offset);
+                int day = mapped.getInt(offset + 4);
+                if (day == DEFINITION) {
+                    for (int i = 0; i < SYMBOL_SIZE; i++) {
+                        symbol[i] = mapped.get(offset + 8 + i);
+                    }
+                    int length = 0;
+                    while (length < SYMBOL_SIZE && symbol[length] != 0) {
+                        length++;
+                    }
+                    CoinIndex index = new CoinIndex(id);
+                    coins.put(new String(symbol, 0, length, StandardCharsets.US_ASCII), index);
+                    ids.put(id, index);
+                    continue;
+                }
+                CoinIndex index = ids.get(id);
+                if (index != null && index.set(day, record + 1) == 0) {
+                    index.live++;
+                    live++;
+                }
             }
-            return LocalDate.parse(jsonReader.nextString());
+        }
+    }
+
+    /**
+     * Record numbers (plus one, zero means none) of the latest rates of a coin, indexed by epoch-day
+     */
+    private static class CoinIndex {
+        private final int id;
+        private long firstDay;
+        private int[] records = new int[0];
+        private int live;
+
+        private CoinIndex(int id) {
+            this.id = id;
+        }
+
+        private int get(long epochDay) {
+            long i = epochDay - firstDay;
+            return i >= 0 && i < records.length ? records[(int) i] : 0;
+        }
+
+        /**
+         * @return the previous record
+         */
+        private int set(long epochDay, int record) {
+            if (records.length == 0) {
+                firstDay = epochDay;
+                records = new int[32];
+            } else if (epochDay < firstDay) {
+                int shift = Math.toIntExact(firstDay - epochDay + records.length / 2);
+                int[] grown = new int[records.length + shift];
+                System.arraycopy(records, 0, grown, shift, records.length);
+                records = grown;
+                firstDay -= shift;
+            } else if (epochDay - firstDay >= records.length) {
+                records = Arrays.copyOf(records, Math.toIntExact(epochDay - firstDay + 1 + records.length / 2));
+            }
+            int i = (int) (epochDay - firstDay);
+            int previous = records[i];
+            records[i] = record;
+            return previous;
+        }
+    }
+
+    /**
+     * Cached rates at the time {@link #snapshot()} was called. The mapped file is only read, so it needs no lock
+     */
+    public static final class Snapshot {
+
+        private final Map<String, CoinIndex> coins;
+        private final ByteBuffer mapped;
+        private final int flushedCount;
+        private final ByteBuffer pending;
+
+        private Snapshot(Map<String, CoinIndex> coins, ByteBuffer mapped, int flushedCount, ByteBuffer pending) {
+            this.coins = coins;
+            this.mapped = mapped;
+            this.flushedCount = flushedCount;
+            this.pending = pending;
+        }
+
+        /**
+         * Passes all cached rates of the coin to the consumer
+         *
+         * @param coin coin
+         * @param consumer receives the epoch-day and the fixed-point value
+         */
+        public void forEachRate(@NotNull String coin, @NotNull RateProvider.DailyRateConsumer consumer) {
+            CoinIndex index = coins.get(coin);
+            if (index == null) {
+                return;
+            }
+            for (int i = 0; i < index.records.length; i++) {
+                int record = index.records[i] - 1;
+                if (record < 0) {
+                    continue;
+                }
+                long value;
+                if (record >= flushedCount) {
+                    value = pending.getLong((record - flushedCount) * RECORD_SIZE + 8);
+                } else {
+                    value = mapped.getLong(offset(record) + 8);
+                }
+                consumer.accept(index.firstDay + i, value);
+            }
+        }
+    }
+
+    public static class CachedExchangeRate {
+
+        private final long value;
+        private final long lastUpdated;
+
+        public CachedExchangeRate(long value, long lastUpdated) {
+            this.value = value;
+            this.lastUpdated = lastUpdated;
+        }
+
+        public boolean isFresh(int updateInterval) {
+            return lastUpdated + updateInterval * 60_000L > System.currentTimeMillis();
+        }
+
+        public BigDecimal getCoinValue() {
+            return RateHistory.toBigDecimal(value);
         }
     }
 }
@@ -0,0 +1,146 @@
+package net.epconsortium.cryptomarket.finances;
+
+import net.epconsortium.cryptomarket.CryptoMarket;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * Registry of the configured coins, built once from the config and the digital currency list.
+ * Each coin has a dense id, from 0 to {@link #size()} - 1, so per coin data can be kept in plain arrays
+ *
+ * @author roinujnosde
+ */
+public final class CoinRegistry {
+
+    private static CoinRegistry instance;
+    private static final Set<String> LISTED = new HashSet<>();
+
+    private final List<String> coins;
+    private final Map<String, Integer> ids = new HashMap<>();
+
+    private CoinRegistry(@NotNull CryptoMarket plugin) {
+        this(configured(plugin));
+    }
+
+    /**
+     * @param coins the coins, ordered by id
+     */
+    CoinRegistry(@NotNull Collection<String> coins) {
+        this.coins = Collections.unmodifiableList(new ArrayList<>(coins));
+        for (int i = 0; i < this.coins.size(); i++) {
+            ids.put(this.coins.get(i), i);
+        }
+    }
+
+    private static Set<String> configured(CryptoMarket plugin) {
+        Set<String> configured = new LinkedHashSet<>();
+        for (String coin : plugin.getConfig().getStringList("coins")) {
+            if (isListed(plugin, coin)) {
+                configured.add(coin);
+            }
+        }
+        if (configured.isEmpty()) {
+            configured.add("BTC");
+        }
+        return configured;
+    }
+
+    public static synchronized CoinRegistry getInstance(@NotNull CryptoMarket plugin) {
+        if (instance == null) {
+            instance = new CoinRegistry(plugin);
+        }
+        return instance;
+    }
+
+    /**
+     * Returns the configured coins, ordered by id
+     *
+     * @return the coins
+     */
+    public @NotNull List<String> getCoins() {
+        return coins;
+    }
+
+    /**
+     * Returns how many coins are configured
+     *
+     * @return the number of coins
+     */
+    public int size() {
+        return coins.size();
+    }
+
+    /**
+     * Returns the id of the coin
+     *
+     * @param coin coin symbol, in any case
+     * @return the id or -1 if the coin is not configured
+     */
+    public int getId(@Nullable String coin) {
+        if (coin == null) {
+            return -1;
+        }
+        Integer id = ids.get(coin);
+        if (id == null) {
+            id = ids.get(coin.toUpperCase(Locale.ROOT));
+        }
+        return id == null ? -1 : id;
+    }
+
+    /**
+     * Returns the symbol of the coin
+     *
+     * @param id id
+     * @return the symbol
+     * @throws IndexOutOfBoundsException if there is no coin with the id
+     */
+    public @NotNull String getSymbol(int id) {
+        return coins.get(id);
+    }
+
+    /**
+     * Checks if the argument is in the digital currency list
+     *
+     * @param plugin plugin instance
+     * @param coin coin
+     * @return true if listed
+     */
+    public static boolean isListed(@NotNull CryptoMarket plugin, @NotNull String coin) {
+        Objects.requireNonNull(coin);
+        synchronized (LISTED) {
+            if (LISTED.isEmpty()) {
+                loadListed(plugin);
+            }
+            return LISTED.contains(coin);
+        }
+    }
+
+    private static void loadListed(CryptoMarket plugin) {
+        InputStream resource = plugin.getResource("digital_currency_list.csv");
+        if (resource == null) {
+            CryptoMarket.warn("Error reading the currency list file");
+            return;
+        }
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(resource, StandardCharsets.UTF_8))) {
+            boolean first = true;
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (first) {
+                    first = false;
+                    continue;
+                }
+                LISTED.add(line.split(",")[0]);
+            }
+        } catch (IOException ex) {
+            CryptoMarket.warn("Error reading the currency list file");
+            ex.printStackTrace();
+        }
+    }
+}
@@ -1,7 +1,11 @@
 package net.epconsortium.cryptomarket.finances;
 
 import net.epconsortium.cryptomarket.CryptoMarket;
+import net.epconsortium.cryptomarket.database.dao.Balance;
 import net.epconsortium.cryptomarket.database.dao.Investor;
+import net.epconsortium.cryptomarket.database.dao.InvestorDao;
+import net.epconsortium.cryptomarket.database.dao.InvestorLocks;
+import net.epconsortium.cryptomarket.database.dao.Ranking;
 import net.epconsortium.cryptomarket.util.Configuration;
 import net.epconsortium.cryptomarket.util.Formatter;
 import net.epconsortium.cryptomarket.util.Logger;
@@ -15,7 +19,6 @@ import java.time.Instant;
 import java.time.LocalDate;
 import java.time.LocalDateTime;
 import java.time.ZoneId;
-import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
 import java.util.Objects;
@@ -37,15 +40,22 @@ public class Economy {
     private final Configuration config;
     private final Logger logger;
 
-    private List<Investor> investors = new ArrayList<>();
+    private final Leaderboard leaderboard = new Leaderboard();
     private long richersUpdate = -1;
-    private double totalInvestments = 0;
+    private final Holdings holdings;
+    private final TradeSettler settler;
+    private final MarketEngine engine;
 
     private Economy(@NotNull CryptoMarket plugin) {
         this.plugin = plugin;
         config = new Configuration(plugin);
         vaultEconomy = plugin.getVaultEconomy();
         logger = new Logger(plugin);
+        holdings = new Holdings(plugin.getCoinRegistry().size());
+        InvestorDao investorDao = plugin.getInvestorDao();
+        settler = new TradeSettler(investorDao.getLocks(), plugin.getCoinRegistry(), holdings, leaderboard,
+                () -> plugin.getExchangeRates().getExchangeRate(LocalDate.now()), investorDao::save);
+        engine = new MarketEngine(settler, logger);
     }
 
     public static Economy getInstance(@NotNull CryptoMarket plugin) {
@@ -68,18 +78,24 @@ public class Economy {
         Objects.requireNonNull(investor);
         Objects.requireNonNull(amount);
 
-        if (amount.doubleValue() <= 0) {
+        if (amount.signum() <= 0) {
             throw new IllegalArgumentException("amount cannot be equal or less "
                     + "than 0");
         }
-        BigDecimal value = investor.getBalance(coin).getValue();
-        if (!(has(coin, investor, amount))) {
-            throw new IllegalArgumentException("investor does not have enough "
-                    + "balance");
+        long value;
+        try (InvestorLocks.Held ignored = settler.lock(investor)) {
+            Balance balance = investor.getBalance(coin);
+            value = balance.getFixedPointValue();
+            if (!(has(coin, investor, amount))) {
+                throw new IllegalArgumentException("investor does not have enough "
+                        + "balance");
+            }
+            long fixedAmount = Money.ofCrypto(amount);
+            value = Math.subtractExact(value, fixedAmount);
+            balance.setValue(value);
+            settler.onBalanceChanged(investor, coin, -fixedAmount);
         }
-        value = value.subtract(amount);
-        investor.getBalance(coin).setValue(value);
-        sendNewBalance(coin, investor, value);
+        sendNewBalance(coin, investor, Money.toCrypto(value));
     }
 
     /**
@@ -115,10 +131,15 @@ public class Economy {
         Objects.requireNonNull(investor);
         Objects.requireNonNull(amount);
 
-        if (amount.doubleValue() < 0) {
+        if (amount.signum() < 0) {
             throw new IllegalArgumentException("amount cannot be negative");
         }
-        investor.getBalance(coin).setValue(amount);
+        try (InvestorLocks.Held ignored = settler.lock(investor)) {
+            Balance balance = investor.getBalance(coin);
+            long previous = balance.getFixedPointValue();
+            balance.setValue(amount);
+            settler.onBalanceChanged(investor, coin, balance.getFixedPointValue() - previous);
+        }
 
         sendNewBalance(coin, investor, amount);
     }
@@ -136,76 +157,155 @@ public class Economy {
         Objects.requireNonNull(investor);
         Objects.requireNonNull(amount);
 
-        if (amount.doubleValue() <= 0) {
+        if (amount.signum() <= 0) {
             throw new IllegalArgumentException("amount cannot be negative "
                     + "or equal to 0");
         }
-        BigDecimal value = investor.getBalance(coin).getValue();
-        value = value.add(amount);
-        investor.getBalance(coin).setValue(value);
-        debug("Processing deposit of " + amount + " " + coin + ". New balance: " + value);
-        sendNewBalance(coin, investor, value);
+        long fixedAmount = Money.ofCrypto(amount);
+        long value;
+        try (InvestorLocks.Held ignored = settler.lock(investor)) {
+            Balance balance = investor.getBalance(coin);
+            value = Math.addExact(balance.getFixedPointValue(), fixedAmount);
+            balance.setValue(value);
+            settler.onBalanceChanged(investor, coin, fixedAmount);
+        }
+        debug("Processing deposit of " + amount + " " + coin + ". New balance: " + Money.toCrypto(value));
+        sendNewBalance(coin, investor, Money.toCrypto(value));
     }
 
     /**
-     * Processes the purchase of cryptocoins and returns a boolean representing
-     * the success of the operation
+     * Processes the purchase of cryptocoins. The price is withdrawn from the player right away and the cryptocoins
+     * are credited by the {@link MarketEngine}, the price is given back if that fails
      *
      * @param investor investor
      * @param amount amount to buy
-     * @return true if success
+     * @param callback called on the main thread with the result, maybe before this method returns
      */
-    public boolean buy(String coin, Investor investor, BigDecimal amount) {
+    public void buy(String coin, Investor investor, BigDecimal amount, @NotNull MarketEngine.TradeCallback callback) {
         Objects.requireNonNull(investor);
         Objects.requireNonNull(amount);
 
         debug("Processing the purchase of crypto for " + investor);
         debug("Amount: " + amount);
-        double toPay = convert(coin, amount).doubleValue();
+        long fixedAmount = Money.ofCrypto(amount);
+        long fixedToPay = convert(plugin.getCoinRegistry().getId(coin), fixedAmount);
+        if (fixedToPay <= 0) {
+            debug("There is no exchange rate for " + coin);
+            callback.onSettled(false);
+            return;
+        }
+        double toPay = Money.currencyToDouble(fixedToPay);
         debug("To pay: " + toPay);
-        if (vaultEconomy.has(investor.getPlayer(), toPay)) {
-            if (amount.doubleValue() > 0) {
-                vaultEconomy.withdrawPlayer(investor.getPlayer(), toPay);
-                //deposit(investor, amount);
-                investor.getBalance(coin).increase(amount, new BigDecimal(toPay));
-                logger.log(investor, Negotiation.PURCHASE, amount, coin, toPay);
-                return true;
-            } else {
-                debug("amount is less than 0");
-            }
-        } else {
+        if (fixedAmount <= 0) {
+            debug("amount is less than 0");
+            callback.onSettled(false);
+            return;
+        }
+        if (!vaultEconomy.has(investor.getPlayer(), toPay)) {
             debug(investor + " does not have enough balance.");
+            callback.onSettled(false);
+            return;
+        }
+        vaultEconomy.withdrawPlayer(investor.getPlayer(), toPay);
+        boolean submitted = engine.submit(Negotiation.PURCHASE, investor, coin, investor.getBalance(coin),
+                fixedAmount, fixedToPay, success -> {
+                    if (!success) {
+                        vaultEconomy.depositPlayer(investor.getPlayer(), toPay);
+                    }
+                    callback.onSettled(success);
+                });
+        if (!submitted) {
+            debug("The market engine is full, refunding " + investor);
+            vaultEconomy.depositPlayer(investor.getPlayer(), toPay);
+            callback.onSettled(false);
         }
-        return false;
     }
 
     /**
-     * Processes the sell of cryptocoins and returns a boolean representing the
-     * success of the operation
+     * Processes the sell of cryptocoins. The cryptocoins are debited by the {@link MarketEngine} and the player is
+     * paid when that succeeds
      *
      * @param investor investor
      * @param amount amount to sell
-     * @return true if success
+     * @param callback called on the main thread with the result, maybe before this method returns
      */
-    public boolean sell(String coin, Investor investor, BigDecimal amount) {
+    public void sell(String coin, Investor investor, BigDecimal amount, @NotNull MarketEngine.TradeCallback callback) {
         Objects.requireNonNull(investor);
         Objects.requireNonNull(amount);
 
         debug("Processing the sell of crypto for " + investor);
         debug("Amount: " + amount);
-        double toReceive = convert(coin, amount).doubleValue();
+        long fixedAmount = Money.ofCrypto(amount);
+        long fixedToReceive = convert(plugin.getCoinRegistry().getId(coin), fixedAmount);
+        if (fixedToReceive <= 0) {
+            debug("There is no exchange rate for " + coin);
+            callback.onSettled(false);
+            return;
+        }
+        double toReceive = Money.currencyToDouble(fixedToReceive);
         debug("To receive: " + toReceive);
 
-        if (amount.doubleValue() > 0) {
-            if (has(coin, investor, amount)) {
-                vaultEconomy.depositPlayer(investor.getPlayer(), toReceive);
-                //withdraw(investor, amount);
-                investor.getBalance(coin).decrease(amount, new BigDecimal(toReceive));
-                logger.log(investor, Negotiation.SELL, amount, coin, toReceive);
-                return true;
+        if (fixedAmount <= 0 || !has(coin, investor, amount)) {
+            callback.onSettled(false);
+            return;
+        }
+        boolean submitted = engine.submit(Negotiation.SELL, investor, coin, investor.getBalance(coin), fixedAmount,
+                fixedToReceive, success -> {
+                    if (success) {
+                        vaultEconomy.depositPlayer(investor.getPlayer(), toReceive);
+                    }
+                    callback.onSettled(success);
+                });
+        if (!submitted) {
+            debug("The market engine is full");
+            callback.onSettled(false);
+        }
+    }
+
+    /**
+     * Credits the cryptocoins bought on an {@link OrderBook}, whose price was already paid from the escrow
+     *
+     * @param investor the buyer
+     * @param amount fixed-point amount bought
+     * @param paid fixed-point amount paid in the server coin
+     */
+    void fill(String coin, Investor investor, long amount, long paid) {
+        long value;
+        try (InvestorLocks.Held ignored = settler.lock(investor)) {
+            Balance balance = investor.getBalance(coin);
+            if (paid > 0) {
+                balance.increase(amount, paid);
+            } else {
+                balance.setValue(Math.addExact(balance.getFixedPointValue(), amount));
             }
+            value = balance.getFixedPointValue();
+            settler.onBalanceChanged(investor, coin, amount);
         }
-        return false;
+        sendNewBalance(coin, investor, Money.toCrypto(value));
+    }
+
+    /**
+     * Runs the callbacks of the trades settled by the market engine, called every tick on the main thread
+     */
+    public void deliverTrades() {
+        engine.deliver();
+    }
+
+    /**
+     * Settles the pending trades, runs their callbacks and stops the market engine. Called when the plugin is
+     * disabled, before the tasks are cancelled
+     */
+    public void shutdown() {
+        engine.shutdown();
+    }
+
+    /**
+     * Returns the metrics of the market engine
+     *
+     * @return the statistics
+     */
+    public @NotNull MarketEngine.Statistics getMarketStatistics() {
+        return engine.getStatistics();
     }
 
     /**
@@ -218,12 +318,30 @@ public class Economy {
     public BigDecimal convert(String coin, BigDecimal amount) {
         Objects.requireNonNull(amount);
 
+        long converted = convert(plugin.getCoinRegistry().getId(coin), Money.ofCrypto(amount));
+        if (converted == -1) {
+            return new BigDecimal(-1);
+        }
+        return Money.toCurrency(converted);
+    }
+
+    /**
+     * Converts the amount of the crypto currency to the currency used on the
+     * server
+     *
+     * @param coin coin id
+     * @param amount fixed-point amount to convert
+     * @return fixed-point value in the server currency, or -1 if there is no exchange rate
+     * @throws ArithmeticException if the value does not fit
+     */
+    public long convert(int coin, long amount) {
         ExchangeRate er = plugin.getExchangeRates().getExchangeRate(LocalDate.now());
-        if (er == null) {
-            er = new ExchangeRate();
+        long rate = er == null ? RateHistory.MISSING : er.getFixedPointValue(coin);
+        if (rate == RateHistory.MISSING) {
+            return -1;
         }
 
-        return er.getCoinValue(coin).multiply(amount);
+        return Money.convert(rate, amount);
     }
 
     /**
@@ -235,11 +353,14 @@ public class Economy {
      * @return true if success
      */
     public boolean transfer(String coin, Investor debited, Investor favored, BigDecimal amount) {
-        if (!(amount.doubleValue() <= 0)) {
-            if (has(coin, debited, amount)) {
-                withdraw(coin, debited, amount);
-                deposit(coin, favored, amount);
-                return true;
+        if (amount.signum() > 0) {
+            try (InvestorLocks.Held ignored = plugin.getInvestorDao().getLocks().lock(debited.getUniqueId(),
+                    favored.getUniqueId())) {
+                if (has(coin, debited, amount)) {
+                    withdraw(coin, debited, amount);
+                    deposit(coin, favored, amount);
+                    return true;
+                }
             }
         }
         return false;
@@ -256,16 +377,28 @@ public class Economy {
         Objects.requireNonNull(investor);
         Objects.requireNonNull(amount);
 
-        return investor.getBalance(coin).getValue().doubleValue() >= amount.doubleValue();
+        return investor.getBalance(coin).getFixedPointValue() >= Money.ofCrypto(amount);
     }
 
     /**
      * Returns the total balance of cryptocoins on the server converted to the
-     * server coin
+     * server coin, with the current exchange rates
      *
      */
     public double getTotalInvestments() {
-        return totalInvestments;
+        return Money.currencyToDouble(holdings.getTotal(
+                plugin.getExchangeRates().getExchangeRate(LocalDate.now())));
+    }
+
+    /**
+     * Returns the amount of the coin held by all investors
+     *
+     * @param coin coin
+     * @return the amount
+     */
+    public BigDecimal getTotalHoldings(String coin) {
+        int id = plugin.getCoinRegistry().getId(coin);
+        return Money.toCrypto(id == -1 ? 0 : holdings.get(id));
     }
 
     /**
@@ -282,20 +415,14 @@ public class Economy {
             throw new IllegalArgumentException("max cannot be negative");
         }
         if (max == 0) {
-            max = investors.size();
+            max = leaderboard.size();
         }
 
         ExchangeRate rate = plugin.getExchangeRates().getExchangeRate(LocalDate.now());
         if (rate == null) {
             return Collections.emptyList();
         }
-        investors.sort(Investor.comparator(rate).reversed());
-
-        ArrayList<Investor> topList = new ArrayList<>();
-        for (int i = 0; i < investors.size() && i < max; i++) {
-            topList.add(investors.get(i));
-        }
-        return topList;
+        return leaderboard.getTop(max);
     }
 
     /**
@@ -305,15 +432,81 @@ public class Economy {
         return getTopInvestors(10);
     }
 
-    public void setInvestors(@NotNull List<Investor> investors) {
-        this.investors = investors;
+    /**
+     * Returns the position of the investor on the richest investors list
+     *
+     * @param investor investor
+     * @return the rank (1 = richest) or -1 if the investor is not ranked yet
+     */
+    public int getRank(@NotNull Investor investor) {
+        return leaderboard.getRank(investor.getUniqueId());
+    }
+
+    /**
+     * Starts a refresh of the ranking. The balances changed after the refresh reads each investor are applied again
+     * on top of what it read, so it must be called before reading the investors
+     *
+     * @return the refresh, to pass to {@link #setInvestors} or {@link #setRanking}
+     */
+    public @NotNull Holdings.Refresh beginRankingRefresh() {
+        return holdings.beginRefresh();
+    }
+
+    /**
+     * Discards a refresh that could not read the investors
+     *
+     * @param refresh the refresh
+     */
+    public void abortRankingRefresh(@NotNull Holdings.Refresh refresh) {
+        holdings.abort(refresh);
+    }
+
+    /**
+     * Replaces the leaderboard and the holdings with all investors
+     *
+     * @param refresh the refresh that read them
+     * @param investors the investors
+     */
+    public void setInvestors(@NotNull Holdings.Refresh refresh, @NotNull List<Investor> investors) {
+        settler.setRankingSize(0);
         ExchangeRate rate = plugin.getExchangeRates().getExchangeRate(LocalDate.now());
-        if (rate == null) {
-            totalInvestments = 0;
-        } else {
-            totalInvestments = investors.stream().map(i -> i.getConvertedPatrimony(rate))
-                    .mapToDouble(BigDecimal::doubleValue).sum();
+        leaderboard.rebuild(investors, rate);
+        holdings.reset(refresh);
+        reapply(refresh);
+    }
+
+    /**
+     * Replaces the leaderboard with the richest investors of a ranking refresh. Until the next refresh only
+     * them, and the investors that become richer than the last of them, are ranked
+     *
+     * @param refresh the refresh that read it
+     * @param ranking the ranking
+     * @param size how many investors the ranking kept
+     */
+    public void setRanking(@NotNull Holdings.Refresh refresh, @NotNull Ranking ranking, int size) {
+        settler.setRankingSize(Math.max(1, size));
+        leaderboard.rebuild(ranking.getTop(), plugin.getExchangeRates().getExchangeRate(LocalDate.now()));
+        holdings.reset(refresh);
+        reapply(refresh);
+    }
+
+    /**
+     * Moves the investors changed during the refresh to the position of their current patrimony, the rebuilt
+     * leaderboard may have them with what was read from the database
+     */
+    private void reapply(Holdings.Refresh refresh) {
+        ExchangeRate rate = plugin.getExchangeRates().getExchangeRate(LocalDate.now());
+        for (Investor investor : refresh.getChanged()) {
+            leaderboard.update(investor, rate);
         }
+        settler.trim();
+    }
+
+    /**
+     * Recalculates the ranking of the investors, must be called when a new {@link ExchangeRate} is published
+     */
+    public void onExchangeRateUpdate() {
+        leaderboard.rekey(plugin.getExchangeRates().getExchangeRate(LocalDate.now()));
     }
 
     public void setRichersLastUpdate(long timestamp) {
@@ -1,21 +1,32 @@
 package net.epconsortium.cryptomarket.finances;
 
+import org.jetbrains.annotations.Nullable;
+
 import java.math.BigDecimal;
-import java.util.HashMap;
-import java.util.Map;
 import java.util.Objects;
 
 /**
- * Class used to store the exchange rates of all coins on a day
- * 
+ * Class used to access the exchange rates of all coins on a day
+ *
  * @author roinujnosde
  */
 public class ExchangeRate {
 
-    private final Map<String, BigDecimal> values;
+    private final @Nullable RateHistory history;
+    private final long epochDay;
+    private final @Nullable CoinRegistry registry;
 
+    /**
+     * Creates an Exchange Rate without data
+     */
     public ExchangeRate() {
-        values = new HashMap<>();
+        this(null, 0, null);
+    }
+
+    ExchangeRate(@Nullable RateHistory history, long epochDay, @Nullable CoinRegistry registry) {
+        this.history = history;
+        this.epochDay = epochDay;
+        this.registry = registry;
     }
 
     /**
@@ -26,8 +37,17 @@ public class ExchangeRate {
      */
     public BigDecimal getCoinValue(String coin) {
         Objects.requireNonNull(coin);
-        coin = coin.toUpperCase();
-        BigDecimal decimal = values.get(coin);
+        return getCoinValue(registry == null ? -1 : registry.getId(coin));
+    }
+
+    /**
+     * Returns the coin value
+     *
+     * @param coin coin id
+     * @return the value, or -1, if there is not data
+     */
+    public BigDecimal getCoinValue(int coin) {
+        BigDecimal decimal = RateHistory.toBigDecimal(getFixedPointValue(coin));
         if (decimal == null) {
             decimal = new BigDecimal(-1);
         }
@@ -35,13 +55,15 @@ public class ExchangeRate {
     }
 
     /**
-     * Updates the coin value
-     * 
-     * @param coin coin
-     * @param value new value
+     * Returns the fixed-point coin value
+     *
+     * @param coin coin id
+     * @return the value, or {@link RateHistory#MISSING}, if there is not data
      */
-    public void update(String coin, BigDecimal value) {
-        Objects.requireNonNull(coin);
-        values.put(coin, value);
+    public long getFixedPointValue(int coin) {
+        if (history == null) {
+            return RateHistory.MISSING;
+        }
+        return history.get(coin, epochDay);
     }
 }
@@ -1,27 +1,25 @@
 package net.epconsortium.cryptomarket.finances;
 
-import com.google.gson.Gson;
-import com.google.gson.JsonElement;
-import com.google.gson.JsonObject;
 import net.epconsortium.cryptomarket.CryptoMarket;
 import net.epconsortium.cryptomarket.finances.CachedRates.CachedExchangeRate;
+import net.epconsortium.cryptomarket.finances.provider.AlphaVantageProvider;
+import net.epconsortium.cryptomarket.finances.provider.RateProvider;
+import net.epconsortium.cryptomarket.finances.provider.ReplayProvider;
 import net.epconsortium.cryptomarket.util.Configuration;
 import org.bukkit.Bukkit;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.math.BigDecimal;
-import java.net.HttpURLConnection;
-import java.net.MalformedURLException;
-import java.net.URL;
 import java.time.LocalDate;
-import java.time.LocalTime;
 import java.time.ZoneId;
 import java.time.ZonedDateTime;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
 import java.util.logging.Level;
 
 import static java.time.ZoneOffset.UTC;
@@ -35,34 +33,41 @@ public class ExchangeRates {
     private static ExchangeRates instance;
     private final CryptoMarket plugin;
     private final Configuration config;
+    private final CoinRegistry registry;
     private final CachedRates cachedRates;
-    private static final String USER_AGENT = "Mozilla/5.0";
-    private static final Map<LocalDate, ExchangeRate> RATES = new HashMap<>();
+    private static final String BATCH = "*";
+    private static volatile RateHistory history = new RateHistory();
     private static LocalDate lastCurrentDay = ZonedDateTime.now(UTC).toLocalDate();
     
-    private static boolean dailyError;
-    private static boolean currentError;
+    private static final Set<String> DAILY_ERRORS = ConcurrentHashMap.newKeySet();
+    private static final Set<String> CURRENT_ERRORS = ConcurrentHashMap.newKeySet();
+    private static volatile boolean outdated;
+    private final RateFetchScheduler scheduler;
+    private final RateProvider provider;
+    private final AtomicBoolean updatingDaily = new AtomicBoolean();
+    private final AtomicBoolean updatingCurrent = new AtomicBoolean();
+    private final AtomicBoolean triggersScheduled = new AtomicBoolean();
+    private final @Nullable ReplayDriver replayDriver;
+    private final CompletableFuture<Void> warmUp = new CompletableFuture<>();
 
     private ExchangeRates(CryptoMarket plugin) {
         this.plugin = Objects.requireNonNull(plugin);
         config = new Configuration(plugin);
+        registry = plugin.getCoinRegistry();
         cachedRates = new CachedRates(plugin);
-        config.getCoins().forEach(coin -> {
-            for (Map.Entry<LocalDate, CachedExchangeRate> entry : cachedRates.getRates(coin).entrySet()) {
-                LocalDate date = entry.getKey();
-                ExchangeRate er = getExchangeRate(date);
-                if (er == null) {
-                    er = new ExchangeRate();
-                }
-                er.update(coin, entry.getValue().getCoinValue());
-                RATES.put(date, er);
-            }
-        });
+        scheduler = new RateFetchScheduler(plugin);
+        provider = createProvider();
+        if (provider instanceof ReplayProvider && config.isReplayDriven()) {
+            replayDriver = new ReplayDriver(plugin, (ReplayProvider) provider, this::publishCurrentRates);
+        } else {
+            replayDriver = null;
+        }
     }
 
     public static ExchangeRates getInstance(@NotNull CryptoMarket plugin) {
         if (instance == null) {
             instance = new ExchangeRates(plugin);
+            instance.warmUp();
         }
         return instance;
     }
@@ -72,20 +77,21 @@ public class ExchangeRates {
      */
     public void updateAll() {
         //Resetting the errors
-        setCurrentError(false);
-        setDailyError(false);
+        outdated = false;
+        DAILY_ERRORS.clear();
+        CURRENT_ERRORS.clear();
         //Updating
-        Bukkit.getScheduler().runTaskAsynchronously(plugin, () -> {
-            updateDailyRates0();
-            updateCurrentExchangeRate0();
-        });
+        warmUp.thenCompose(v -> updateDailyRates0()).thenCompose(v -> updateCurrentExchangeRate0());
+        if (replayDriver != null) {
+            warmUp.thenRun(replayDriver::start);
+        }
     }
 
     /**
      * Updates today's rate
      */
     public void updateCurrentExchangeRate() {
-        Bukkit.getScheduler().runTaskAsynchronously(plugin, this::updateCurrentExchangeRate0);
+        warmUp.thenCompose(v -> updateCurrentExchangeRate0());
     }
 
     /**
@@ -93,7 +99,25 @@ public class ExchangeRates {
      */
     @SuppressWarnings("unused")
     public void updateDailyRates() {
-        Bukkit.getScheduler().runTaskAsynchronously(plugin, this::updateDailyRates0);
+        warmUp.thenCompose(v -> updateDailyRates0());
+    }
+
+    /**
+     * Stops the updates in progress and closes the cache
+     */
+    public void shutdown() {
+        if (replayDriver != null) {
+            replayDriver.stop();
+        }
+        scheduler.shutdown();
+        cachedRates.close();
+    }
+
+    /**
+     * Writes the pending rates to the cache file
+     */
+    public void flushCache() {
+        cachedRates.flush();
     }
 
     /**
@@ -111,11 +135,16 @@ public class ExchangeRates {
             throw new IllegalArgumentException("date cannot be after today");
         }
         if (now.isAfter(lastCurrentDay)) {
-            setCurrentError(true);
+            outdated = true;
             lastCurrentDay = now;
         }
 
-        return RATES.get(date.toLocalDate());
+        RateHistory snapshot = history;
+        long epochDay = date.toLocalDate().toEpochDay();
+        if (!snapshot.hasDay(epochDay)) {
+            return null;
+        }
+        return new ExchangeRate(snapshot, epochDay, registry);
     }
 
     public @Nullable ExchangeRate getExchangeRate(LocalDate date) throws IllegalArgumentException {
@@ -123,12 +152,32 @@ public class ExchangeRates {
     }
 
     /**
-     * Returns an unmodifiable map of the Exchange Rates
+     * Returns the latest snapshot of the Exchange Rates history
+     *
+     * @return the history
+     */
+    public RateHistory getHistory() {
+        return history;
+    }
+
+    /**
+     * Returns the version of the latest snapshot, it changes every time new rates are published
      *
-     * @return as exchange rates
+     * @return the version
      */
-    public static Map<LocalDate, ExchangeRate> getExchangeRates() {
-        return Collections.unmodifiableMap(RATES);
+    public long getVersion() {
+        return history.getVersion();
+    }
+
+    /**
+     * Applies the changes to a copy of the latest snapshot and publishes it
+     *
+     * @param changes the changes
+     */
+    private static synchronized void publish(Consumer<RateHistory.Builder> changes) {
+        RateHistory.Builder builder = history.toBuilder();
+        changes.accept(builder);
+        history = builder.build();
     }
 
     /**
@@ -139,7 +188,7 @@ public class ExchangeRates {
      */
     public int getMinutesToUpdate() {
         double minutes = config.getCoins().size();
-        minutes = minutes * 2 / 5;
+        minutes = minutes * 2 / config.getRequestsPerMinute();
 
         return (int) Math.ceil(minutes);
     }
@@ -150,172 +199,216 @@ public class ExchangeRates {
      * @return true if an error occurred
      */
     public static boolean errorOccurred() {
-        return dailyError || currentError;
+        return outdated || !DAILY_ERRORS.isEmpty() || !CURRENT_ERRORS.isEmpty();
     }
 
     /**
-     * Sets if an error occurred during the daily exchange rate update
-     * 
-     * @param error true if occurred
+     * Creates the provider chosen in the config
+     *
+     * @return the provider
      */
-    private void setDailyError(boolean error) {
-        dailyError = error;
+    private RateProvider createProvider() {
+        switch (config.getRateProvider()) {
+            case "replay":
+                return new ReplayProvider(config.getReplayFolder(), config.getReplayTicksPerSecond());
+            case "alphavantage":
+                break;
+            default:
+                CryptoMarket.warn("Unknown rate provider " + config.getRateProvider() + ", using alphavantage");
+        }
+        return new AlphaVantageProvider(plugin);
     }
 
     /**
-     * Sets if an error occurred during the current exchange rate update
-     *
-     * @param error true if occurred
+     * Loads the cached rates in the background. Today's rates of all coins are published first, so trading is
+     * available right away, then the histories of the coins are read in parallel from a snapshot of the cache and
+     * published together. The updates wait for it, so they do not request what is already cached
      */
-    private static void setCurrentError(boolean error) {
-        currentError = error;
+    private void warmUp() {
+        scheduler.run(() -> {
+            cachedRates.load();
+            long today = LocalDate.now().toEpochDay();
+            publish(builder -> {
+                for (int id = 0; id < registry.size(); id++) {
+                    long value = cachedRates.getRate(registry.getSymbol(id), today);
+                    if (value != RateHistory.MISSING) {
+                        builder.put(id, today, value);
+                    }
+                }
+            });
+            plugin.getEconomy().onExchangeRateUpdate();
+        }).thenCompose(v -> {
+            CachedRates.Snapshot snapshot = cachedRates.snapshot();
+            DailyRates[] rates = new DailyRates[registry.size()];
+            CompletableFuture<?>[] futures = new CompletableFuture[rates.length];
+            for (int i = 0; i < futures.length; i++) {
+                int id = i;
+                futures[i] = scheduler.run(() -> {
+                    DailyRates coinRates = new DailyRates();
+                    snapshot.forEachRate(registry.getSymbol(id), coinRates);
+                    rates[id] = coinRates;
+                });
+            }
+            return CompletableFuture.allOf(futures).thenRun(() -> publish(builder -> {
+                for (int id = 0; id < rates.length; id++) {
+                    for (int j = 0; j < rates[id].size; j++) {
+                        builder.put(id, rates[id].days[j], rates[id].values[j]);
+                    }
+                }
+            }));
+        }).whenComplete((v, ex) -> {
+            if (ex != null) {
+                plugin.getLogger().log(Level.SEVERE, "Error loading the cached rates", ex);
+            } else {
+                CryptoMarket.debug("Cached rates loaded");
+            }
+            warmUp.complete(null);
+        });
     }
 
-    /**
-     * Returns the connection response in a JsonObject
-     *
-     * @param connection connection
-     * @return json object
-     * @throws IOException if an error occurred reading the response
-     */
-    private JsonObject extractJsonFrom(HttpURLConnection connection) throws IOException {
-        JsonObject json;
-        try (InputStream in = connection.getInputStream()) {
-            Gson gson = new Gson();
-            json = gson.fromJson(new InputStreamReader(in), JsonObject.class
-            );
+    private CompletableFuture<Void> updateDailyRates0() {
+        if (!updatingDaily.compareAndSet(false, true)) {
+            return CompletableFuture.completedFuture(null);
         }
-
-        return json;
+        return scheduler.fetchAll(config.getCoins(), this::fetchDailyRates).thenAccept(failed -> {
+            DAILY_ERRORS.retainAll(failed);
+            DAILY_ERRORS.addAll(failed);
+        }).whenComplete((v, ex) -> updatingDaily.set(false));
     }
 
-    /**
-     * Opens and returns a HTTP connection
-     *
-     * @param url url
-     * @return HTTP connection
-     * @throws IOException if an error happened on the connection
-     */
-    private HttpURLConnection openHttpConnection(URL url) throws IOException {
-        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+    private boolean fetchDailyRates(String coin) throws IOException, InterruptedException {
+        if (provider.isRemote()) {
+            if (cachedRates.isCached(coin)) {
+                return true;
+            }
+            if (!scheduler.acquire()) {
+                return false;
+            }
+        }
+        RateHistory known = history;
+        int id = registry.getId(coin);
+        long today = ZonedDateTime.now(UTC).toLocalDate().toEpochDay();
+        DailyRates rates = new DailyRates();
+        // past closes never change, only the new days are read from the response
+        if (!provider.getDailyRates(coin, day -> day < today && known.get(id, day) != RateHistory.MISSING,
+                rates)) {
+            return false;
+        }
+        if (rates.size == 0) {
+            return true;
+        }
+        publish(builder -> {
+            for (int i = 0; i < rates.size; i++) {
+                builder.put(id, rates.days[i], rates.values[i]);
+            }
+        });
+        if (provider.isRemote()) {
+            cachedRates.saveRates(coin, rates.days, rates.values, rates.size);
+        }
+        return true;
+    }
 
-        connection.setRequestMethod("GET");
-        connection.setRequestProperty("User-Agent", USER_AGENT);
-        return connection;
+    private CompletableFuture<Void> updateCurrentExchangeRate0() {
+        if (!updatingCurrent.compareAndSet(false, true)) {
+            return CompletableFuture.completedFuture(null);
+        }
+        LocalDate date = LocalDate.now();
+        Map<String, BigDecimal> updated = new ConcurrentHashMap<>();
+        CompletableFuture<Set<String>> fetch;
+        if (provider.supportsBatch()) {
+            fetch = scheduler.fetchAll(Collections.singletonList(BATCH), batch -> {
+                if (provider.isRemote() && !scheduler.acquire()) {
+                    return false;
+                }
+                updated.putAll(provider.getCurrentRates(config.getCoins()));
+                return true;
+            });
+        } else {
+            fetch = scheduler.fetchAll(config.getCoins(), coin -> fetchCurrentExchangeRate(coin, date, updated));
+        }
+        return fetch.thenAccept(failed -> {
+            if (provider.supportsBatch()) {
+                failed = new HashSet<>(config.getCoins());
+                failed.removeAll(updated.keySet());
+            }
+            CURRENT_ERRORS.retainAll(failed);
+            CURRENT_ERRORS.addAll(failed);
+            if (!updated.isEmpty()) {
+                publish(builder -> updated.forEach((coin, value) -> builder.put(registry.getId(coin), date, value)));
+                onCurrentRatesPublished();
+            }
+        }).whenComplete((v, ex) -> updatingCurrent.set(false));
     }
 
     /**
-     * Returns the URL to the ExchangeRate function
+     * Publishes today's rates of the coins, used by the {@link ReplayDriver}
      *
-     * @param coin coin
-     * @return the URL
+     * @param values the fixed-point rates indexed by coin id, {@link RateHistory#MISSING} if the coin has none
      */
-    private URL getExchangeRateUrl(String coin) throws MalformedURLException {
-        return new URL("https://www.alphavantage.co/query?function=CURRENCY_EXCHANGE_RATE&from_currency=" + coin
-                + "&to_currency=" + config.getPhysicalCurrency() + "&apikey=" + config.getApiKey());
+    private void publishCurrentRates(long[] values) {
+        long today = LocalDate.now().toEpochDay();
+        publish(builder -> {
+            for (int id = 0; id < values.length; id++) {
+                if (values[id] != RateHistory.MISSING) {
+                    builder.put(id, today, values[id]);
+                }
+            }
+        });
+        onCurrentRatesPublished();
     }
 
     /**
-     * Returns the URL to the CurrencyDaily function
-     *
-     * @param coin coin
-     * @return the URL
+     * Notifies the economy and the triggers of new current rates. The triggers are evaluated once per tick of the
+     * server, no matter how many updates were published in it
      */
-    private URL getCurrencyDailyUrl(String coin) throws MalformedURLException {
-        return new URL("https://www.alphavantage.co/query?function=DIGITAL_CURRENCY_DAILY&symbol=" + coin + "&market="
-                + config.getPhysicalCurrency() + "&apikey=" + config.getApiKey());
+    private void onCurrentRatesPublished() {
+        plugin.getEconomy().onExchangeRateUpdate();
+        if (triggersScheduled.compareAndSet(false, true)) {
+            Bukkit.getScheduler().runTask(plugin, () -> {
+                triggersScheduled.set(false);
+                plugin.getTriggers().onExchangeRateUpdate();
+            });
+        }
     }
 
-    private void updateDailyRates0() {
-        HashMap<String, Boolean> errors = new HashMap<>();
-        for (String coin : config.getCoins()) {
-            if (cachedRates.isCached(coin)) {
-                continue;
+    private boolean fetchCurrentExchangeRate(String coin, LocalDate date, Map<String, BigDecimal> updated)
+            throws IOException, InterruptedException {
+        if (provider.isRemote()) {
+            CachedExchangeRate cached = cachedRates.getCachedExchangeRate(coin, date);
+            if (cached != null && cached.isFresh(config.getIntervalExchangeRatesUpdateInMinutes())) {
+                return true;
             }
-            try {
-                URL url = getCurrencyDailyUrl(coin);
-                HttpURLConnection connection = openHttpConnection(url);
-
-                int responseCode = connection.getResponseCode();
-                if (responseCode >= 200 && responseCode <= 299) {
-                    JsonObject json = extractJsonFrom(connection);
-                    JsonObject jo = json.getAsJsonObject("Time Series (Digital Currency Daily)");
-                    if (jo == null) {
-                        CryptoMarket.debug(json.toString());
-                        errors.put(coin, true);
-                        continue;
-                    }
-                    Set<Map.Entry<String, JsonElement>> entries = jo.entrySet();
-                    Map<LocalDate, BigDecimal> cache = new HashMap<>();
-                    entries.forEach(entry -> {
-                        ZonedDateTime date = ZonedDateTime.of(LocalDate.parse(entry.getKey()), LocalTime.MIN, UTC);
-                        BigDecimal value = entry.getValue().getAsJsonObject().get("4a. close ("
-                                + config.getPhysicalCurrency() + ")").getAsBigDecimal();
-                        ExchangeRate er = getExchangeRate(date);
-                        if (er == null) {
-                            er = new ExchangeRate();
-                        }
-                        er.update(coin, value);
-                        RATES.put(date.toLocalDate(), er);
-                        cache.put(date.toLocalDate(), value);
-                    });
-                    cachedRates.saveRates(coin, cache);
-                } else {
-                    errors.put(coin, true);
-                }
-            } catch (IOException ex) {
-                plugin.getLogger().log(Level.SEVERE, "Error updating coins", ex);
-                errors.put(coin, true);
+            if (!scheduler.acquire()) {
+                return false;
             }
         }
-        for (Map.Entry<String, Boolean> entry : errors.entrySet()) {
-            if (entry.getValue()) {
-                setDailyError(true);
-                return;
-            }
+        BigDecimal exchangeRate = provider.getCurrentRate(coin);
+        if (exchangeRate == null) {
+            return false;
         }
+        updated.put(coin, exchangeRate);
+        if (provider.isRemote()) {
+            cachedRates.saveRate(coin, date.toEpochDay(), RateHistory.toFixedPoint(exchangeRate));
+        }
+        return true;
     }
 
-    private void updateCurrentExchangeRate0() {
-        boolean error = false;
-        for (String coin : config.getCoins()) {
-            CachedExchangeRate cached = cachedRates.getCachedExchangeRate(coin, LocalDate.now());
-            if (cached != null && cached.isFresh(config.getIntervalExchangeRatesUpdateInMinutes())) {
-                continue;
-            }
-            try {
-                HttpURLConnection connection = openHttpConnection(getExchangeRateUrl(coin));
-                int responseCode = connection.getResponseCode();
-                if (responseCode >= 200 && responseCode <= 299) {
-                    JsonObject json = extractJsonFrom(connection);
-
-                    JsonElement realtimeCurrencyExchangeRate = json.get("Realtime Currency Exchange Rate");
-                    if (realtimeCurrencyExchangeRate == null) {
-                        CryptoMarket.debug(json.toString());
-                        error = true;
-                        continue;
-                    }
-                    BigDecimal exchangeRate = realtimeCurrencyExchangeRate.getAsJsonObject()
-                            .get("5. Exchange Rate").getAsBigDecimal();
-
-                    LocalDate date = LocalDate.now();
-                    ExchangeRate er = getExchangeRate(date);
-                    if (er == null) {
-                        er = new ExchangeRate();
-                    }
-
-                    er.update(coin, exchangeRate);
-                    RATES.put(date, er);
-                    cachedRates.saveRates(coin, Collections.singletonMap(date, exchangeRate));
-                } else {
-                    error = true;
-                }
-            } catch (IOException ex) {
-                plugin.getLogger().log(Level.SEVERE, "Error updating coins", ex);
-                error = true;
+    /**
+     * Collects the daily rates of a coin in primitive arrays until they are published
+     */
+    private static class DailyRates implements RateProvider.DailyRateConsumer {
+        private long[] days = new long[64];
+        private long[] values = new long[64];
+        private int size;
+
+        @Override
+        public void accept(long epochDay, long value) {
+            if (size == days.length) {
+                days = Arrays.copyOf(days, size * 2);
+                values = Arrays.copyOf(values, size * 2);
             }
+            days[size] = epochDay;
+            values[size++] = value;
         }
-        setCurrentError(error);
     }
-
 }
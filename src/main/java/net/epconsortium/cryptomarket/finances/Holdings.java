@@ -0,0 +1,190 @@
+package net.epconsortium.cryptomarket.finances;
+
+import net.epconsortium.cryptomarket.database.dao.Investor;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Total amount of each coin held by all investors, updated on every deposit, withdrawal, purchase and sale, so the
+ * total investments are a sum over the coins, instead of over the investors. The ranking refresh resets it from the
+ * database, which corrects any drift. The refresh takes the balances of each investor under the investor's lock, so
+ * every change applied while it runs is either in what it took or recorded by its {@link Refresh} afterwards, and
+ * applied again on top of what it read
+ *
+ * @author roinujnosde
+ */
+public class Holdings {
+
+    private final AtomicLongArray amounts;
+    private final List<Refresh> refreshes = new CopyOnWriteArrayList<>();
+    /**
+     * Shared by the changes, exclusive for the resets
+     */
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    public Holdings(int coins) {
+        amounts = new AtomicLongArray(coins);
+    }
+
+    /**
+     * Adds the change of a balance, must be called holding the investor's lock
+     *
+     * @param investor the investor whose balance changed
+     * @param coin coin id
+     * @param delta fixed-point change, negative if the balance decreased
+     */
+    public void add(@NotNull Investor investor, int coin, long delta) {
+        if (coin < 0 || coin >= amounts.length() || delta == 0) {
+            return;
+        }
+        lock.readLock().lock();
+        try {
+            amounts.addAndGet(coin, delta);
+            for (Refresh refresh : refreshes) {
+                refresh.record(investor, coin, delta);
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Starts recording the changes for a refresh, must be called before it reads the database
+     *
+     * @return the refresh
+     */
+    public @NotNull Refresh beginRefresh() {
+        Refresh refresh = new Refresh(amounts.length());
+        refreshes.add(refresh);
+        return refresh;
+    }
+
+    /**
+     * Stops recording the changes for a refresh that failed
+     *
+     * @param refresh the refresh
+     */
+    public void abort(@NotNull Refresh refresh) {
+        refreshes.remove(refresh);
+    }
+
+    /**
+     * Replaces all amounts with the ones read by the refresh, plus the changes applied after it read each investor
+     *
+     * @param refresh the refresh
+     */
+    public void reset(@NotNull Refresh refresh) {
+        lock.writeLock().lock();
+        try {
+            refreshes.remove(refresh);
+            long[] reset = refresh.read.clone();
+            for (long[] deltas : refresh.deltas.values()) {
+                for (int coin = 0; coin < reset.length; coin++) {
+                    reset[coin] += deltas[coin];
+                }
+            }
+            for (int coin = 0; coin < amounts.length(); coin++) {
+                amounts.set(coin, reset[coin]);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Returns the amount held of the coin
+     *
+     * @param coin coin id
+     * @return the fixed-point amount
+     */
+    public long get(int coin) {
+        return amounts.get(coin);
+    }
+
+    /**
+     * Converts the holdings to the server coin. Coins without an exchange rate are not counted
+     *
+     * @param rate the rate
+     * @return the fixed-point total or 0 if the rate is null
+     * @throws ArithmeticException if the total overflows
+     */
+    public long getTotal(@Nullable ExchangeRate rate) {
+        if (rate == null) {
+            return 0;
+        }
+        long total = 0;
+        for (int coin = 0; coin < amounts.length(); coin++) {
+            long value = rate.getFixedPointValue(coin);
+            if (value != RateHistory.MISSING) {
+                total = Math.addExact(total, Money.convert(value, Math.max(0, amounts.get(coin))));
+            }
+        }
+        return total;
+    }
+
+    /**
+     * The amounts read by a refresh and the changes applied to each investor since the refresh read it. Each
+     * investor must be read once, holding its lock; the amounts are counted by the thread of the refresh
+     */
+    public static final class Refresh {
+
+        private final long[] read;
+        private final Map<UUID, long[]> deltas = new ConcurrentHashMap<>();
+        private final Set<Investor> changed = ConcurrentHashMap.newKeySet();
+
+        private Refresh(int coins) {
+            read = new long[coins];
+        }
+
+        /**
+         * Marks the investor as read: the changes recorded so far are in the balances the refresh took, so they
+         * are discarded, the next ones are applied on top of them
+         *
+         * @param uuid the investor's unique id
+         */
+        public void read(@NotNull UUID uuid) {
+            deltas.remove(uuid);
+        }
+
+        /**
+         * Counts an amount read
+         *
+         * @param coin coin id
+         * @param amount fixed-point amount
+         */
+        public void count(int coin, long amount) {
+            if (coin >= 0 && coin < read.length) {
+                read[coin] = Math.addExact(read[coin], amount);
+            }
+        }
+
+        /**
+         * @return the investors whose balances changed since the refresh began
+         */
+        public @NotNull Set<Investor> getChanged() {
+            return Collections.unmodifiableSet(changed);
+        }
+
+        private void record(Investor investor, int coin, long delta) {
+            deltas.compute(investor.getUniqueId(), (uuid, amounts) -> {
+                if (amounts == null) {
+                    amounts = new long[read.length];
+                }
+                amounts[coin] += delta;
+                return amounts;
+            });
+            changed.add(investor);
+        }
+    }
+}
@@ -0,0 +1,287 @@
+package net.epconsortium.cryptomarket.finances;
+
+import net.epconsortium.cryptomarket.database.dao.Investor;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.*;
+
+/**
+ * Keeps the investors ordered by their converted patrimony.
+ * It is an order-statistic treap keyed by the cached patrimony, so updating one investor, looking up the rank of
+ * an investor and reading the first N positions cost O(log n) instead of sorting the whole list.
+ *
+ * @author roinujnosde
+ */
+public class Leaderboard {
+
+    private final Map<UUID, Node> nodes = new HashMap<>();
+    private final Random random = new Random();
+    private Node root;
+
+    /**
+     * Inserts the investor or moves it to the position of its current patrimony
+     *
+     * @param investor investor
+     * @param rate the rate used to convert the patrimony
+     */
+    public synchronized void update(@NotNull Investor investor, @Nullable ExchangeRate rate) {
+        Node node = nodes.remove(investor.getUniqueId());
+        if (node != null) {
+            root = remove(root, node);
+        }
+        node = new Node(investor, investor.getPatrimony(rate), random.nextInt());
+        nodes.put(node.uuid, node);
+        root = insert(root, node);
+    }
+
+    /**
+     * Removes the investor from the leaderboard
+     *
+     * @param uuid the investor's UUID
+     */
+    public synchronized void remove(@NotNull UUID uuid) {
+        Node node = nodes.remove(uuid);
+        if (node != null) {
+            root = remove(root, node);
+        }
+    }
+
+    /**
+     * Replaces all entries of the leaderboard
+     *
+     * @param investors the investors
+     * @param rate the rate used to convert the patrimonies
+     */
+    public synchronized void rebuild(@NotNull Collection<Investor> investors, @Nullable ExchangeRate rate) {
+        List<Node> sorted = new ArrayList<>(investors.size());
+        for (Investor investor : investors) {
+            sorted.add(new Node(investor, investor.getPatrimony(rate), random.nextInt()));
+        }
+        build(sorted);
+    }
+
+    /**
+     * Removes the poorest investors until at most max remain
+     *
+     * @param max max number of investors
+     */
+    public synchronized void trim(int max) {
+        while (nodes.size() > max) {
+            Node last = root;
+            while (last.right != null) {
+                last = last.right;
+            }
+            nodes.remove(last.uuid);
+            root = remove(root, last);
+        }
+    }
+
+    /**
+     * Recalculates the patrimony of every investor, used when a new {@link ExchangeRate} is published
+     *
+     * @param rate the new rate
+     */
+    public synchronized void rekey(@Nullable ExchangeRate rate) {
+        List<Node> sorted = new ArrayList<>(nodes.size());
+        for (Node node : nodes.values()) {
+            sorted.add(new Node(node.investor, node.investor.getPatrimony(rate), node.priority));
+        }
+        build(sorted);
+    }
+
+    /**
+     * Returns the richest investors, ordered
+     *
+     * @param max max number of investors
+     * @return the investors
+     */
+    public synchronized @NotNull List<Investor> getTop(int max) {
+        List<Investor> top = new ArrayList<>(Math.min(max, nodes.size()));
+        Deque<Node> stack = new ArrayDeque<>();
+        Node current = root;
+        while ((current != null || !stack.isEmpty()) && top.size() < max) {
+            while (current != null) {
+                stack.push(current);
+                current = current.left;
+            }
+            current = stack.pop();
+            top.add(current.investor);
+            current = current.right;
+        }
+        return top;
+    }
+
+    /**
+     * Returns the position of the investor
+     *
+     * @param uuid the investor's UUID
+     * @return the rank (1 = richest) or -1 if the investor is not on the leaderboard
+     */
+    public synchronized int getRank(@NotNull UUID uuid) {
+        Node node = nodes.get(uuid);
+        if (node == null) {
+            return -1;
+        }
+        int rank = 0;
+        Node current = root;
+        while (current != node) {
+            if (precedes(node, current)) {
+                current = current.left;
+            } else {
+                rank += size(current.left) + 1;
+                current = current.right;
+            }
+        }
+        return rank + size(node.left) + 1;
+    }
+
+    /**
+     * @return the number of investors on the leaderboard
+     */
+    public synchronized int size() {
+        return nodes.size();
+    }
+
+    private void build(List<Node> sorted) {
+        sorted.sort(Leaderboard::compare);
+        nodes.clear();
+        // Cartesian tree construction, linear after sorting
+        Deque<Node> stack = new ArrayDeque<>();
+        for (Node node : sorted) {
+            nodes.put(node.uuid, node);
+            Node last = null;
+            while (!stack.isEmpty() && stack.peek().priority < node.priority) {
+                last = stack.pop();
+            }
+            node.left = last;
+            if (!stack.isEmpty()) {
+                stack.peek().right = node;
+            }
+            stack.push(node);
+        }
+        root = stack.peekLast();
+        updateSizes(root);
+    }
+
+    private int updateSizes(@Nullable Node node) {
+        if (node == null) {
+            return 0;
+        }
+        node.size = updateSizes(node.left) + updateSizes(node.right) + 1;
+        return node.size;
+    }
+
+    private Node insert(@Nullable Node tree, @NotNull Node node) {
+        if (tree == null) {
+            return node;
+        }
+        if (node.priority > tree.priority) {
+            split(tree, node);
+            update(node);
+            return node;
+        }
+        if (precedes(node, tree)) {
+            tree.left = insert(tree.left, node);
+        } else {
+            tree.right = insert(tree.right, node);
+        }
+        update(tree);
+        return tree;
+    }
+
+    private Node remove(@Nullable Node tree, @NotNull Node node) {
+        if (tree == null) {
+            return null;
+        }
+        if (tree == node) {
+            return merge(tree.left, tree.right);
+        }
+        if (precedes(node, tree)) {
+            tree.left = remove(tree.left, node);
+        } else {
+            tree.right = remove(tree.right, node);
+        }
+        update(tree);
+        return tree;
+    }
+
+    /**
+     * Splits the tree into the nodes that precede the pivot (pivot.left) and the ones that follow it (pivot.right)
+     */
+    private void split(@Nullable Node tree, @NotNull Node pivot) {
+        if (tree == null) {
+            pivot.left = null;
+            pivot.right = null;
+            return;
+        }
+        if (precedes(tree, pivot)) {
+            split(tree.right, pivot);
+            tree.right = pivot.left;
+            update(tree);
+            pivot.left = tree;
+        } else {
+            split(tree.left, pivot);
+            tree.left = pivot.right;
+            update(tree);
+            pivot.right = tree;
+        }
+    }
+
+    private Node merge(@Nullable Node left, @Nullable Node right) {
+        if (left == null) {
+            return right;
+        }
+        if (right == null) {
+            return left;
+        }
+        if (left.priority > right.priority) {
+            left.right = merge(left.right, right);
+            update(left);
+            return left;
+        }
+        right.left = merge(left, right.left);
+        update(right);
+        return right;
+    }
+
+    private static void update(Node node) {
+        node.size = size(node.left) + size(node.right) + 1;
+    }
+
+    private static int size(@Nullable Node node) {
+        return node == null ? 0 : node.size;
+    }
+
+    private static boolean precedes(Node a, Node b) {
+        return compare(a, b) < 0;
+    }
+
+    /**
+     * Richest first, ties broken by the UUID so every key is unique
+     */
+    private static int compare(Node a, Node b) {
+        int result = Long.compare(b.patrimony, a.patrimony);
+        if (result == 0) {
+            result = a.uuid.compareTo(b.uuid);
+        }
+        return result;
+    }
+
+    private static final class Node {
+        private final Investor investor;
+        private final UUID uuid;
+        private final long patrimony;
+        private final int priority;
+        private int size = 1;
+        private Node left;
+        private Node right;
+
+        private Node(Investor investor, long patrimony, int priority) {
+            this.investor = investor;
+            this.uuid = investor.getUniqueId();
+            this.patrimony = patrimony;
+            this.priority = priority;
+        }
+    }
+}
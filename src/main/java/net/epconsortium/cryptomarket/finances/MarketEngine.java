@@ -0,0 +1,367 @@
+package net.epconsortium.cryptomarket.finances;
+
+import net.epconsortium.cryptomarket.CryptoMarket;
+import net.epconsortium.cryptomarket.database.dao.Balance;
+import net.epconsortium.cryptomarket.database.dao.Investor;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Settles the trades on a dedicated thread.
+ * Trades are published by the main thread into a preallocated ring buffer and settled one after the other by the
+ * engine thread, in batches of whatever is available. After each batch the ledger is written once and the callbacks
+ * of the whole batch are queued as one delivery, which the main thread runs with {@link #deliver()}. Keeping them
+ * here instead of in the scheduler means none is lost when the plugin is disabled. Only the crypto side of a trade is settled here,
+ * the Vault side stays on the main thread, before the trade is submitted or in its callback.
+ *
+ * @author roinujnosde
+ */
+public final class MarketEngine {
+
+    /**
+     * Trades waiting to be settled, must be a power of two
+     */
+    static final int RING_SIZE = 1 << 12;
+    private static final int SPINS_BEFORE_PARKING = 100;
+    private static final long MAX_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+    private static final long SHUTDOWN_TIMEOUT_MILLIS = 10_000;
+
+    private final Trade[] ring = new Trade[RING_SIZE];
+    /**
+     * Sequence of the next trade to publish, written only by the main thread
+     */
+    private final AtomicLong head = new AtomicLong();
+    /**
+     * Sequence of the next trade to settle, written only by the engine thread
+     */
+    private final AtomicLong tail = new AtomicLong();
+    private final Settler settler;
+    private final Ledger ledger;
+    private final Thread thread;
+    /**
+     * Callbacks of the settled batches, waiting for the main thread
+     */
+    private final Queue<Runnable> deliveries = new ConcurrentLinkedQueue<>();
+    private volatile boolean parked;
+    private volatile boolean stopping;
+
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong settled = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong batches = new AtomicLong();
+    private final AtomicLong totalSettleNanos = new AtomicLong();
+
+    /**
+     * Creates the engine and starts its thread
+     *
+     * @param settler applies the trades to the balances
+     * @param ledger records the settled trades
+     */
+    MarketEngine(@NotNull Settler settler, @NotNull Ledger ledger) {
+        this.settler = settler;
+        this.ledger = ledger;
+        for (int i = 0; i < RING_SIZE; i++) {
+            ring[i] = new Trade();
+        }
+        thread = new Thread(this::run, "CryptoMarket Market");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Publishes a trade to be settled. Must only be called by the main thread
+     *
+     * @param negotiation purchase or sale
+     * @param investor investor
+     * @param coin coin symbol
+     * @param balance the investor's balance of the coin
+     * @param amount fixed-point amount of the coin
+     * @param value fixed-point value in the server coin
+     * @param callback called on the main thread when the trade is settled
+     * @return false if the engine is full or stopping, the trade was not published
+     */
+    boolean submit(@NotNull Negotiation negotiation, @NotNull Investor investor, @NotNull String coin,
+                   @NotNull Balance balance, long amount, long value, @NotNull TradeCallback callback) {
+        long sequence = head.get();
+        if (stopping || sequence - tail.get() >= RING_SIZE) {
+            rejected.incrementAndGet();
+            return false;
+        }
+        Trade trade = ring[(int) sequence & (RING_SIZE - 1)];
+        trade.negotiation = negotiation;
+        trade.investor = investor;
+        trade.coin = coin;
+        trade.balance = balance;
+        trade.amount = amount;
+        trade.value = value;
+        trade.callback = callback;
+        head.set(sequence + 1);
+        if (parked) {
+            LockSupport.unpark(thread);
+        }
+        return true;
+    }
+
+    /**
+     * Runs the callbacks of the batches settled so far. Must only be called by the main thread
+     */
+    void deliver() {
+        Runnable delivery;
+        while ((delivery = deliveries.poll()) != null) {
+            delivery.run();
+        }
+    }
+
+    /**
+     * Settles the published trades, stops the thread and runs the remaining callbacks on the calling thread.
+     * Called by the main thread when the plugin is disabled
+     */
+    void shutdown() {
+        stopping = true;
+        LockSupport.unpark(thread);
+        try {
+            thread.join(SHUTDOWN_TIMEOUT_MILLIS);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        if (thread.isAlive()) {
+            CryptoMarket.warn("Timed out waiting for the trades to be settled!");
+        }
+        deliver();
+    }
+
+    /**
+     * Returns a snapshot of the engine metrics
+     *
+     * @return the statistics
+     */
+    @NotNull Statistics getStatistics() {
+        return new Statistics((int) (head.get() - tail.get()), rejected.get(), settled.get(), failed.get(),
+                batches.get(), totalSettleNanos.get());
+    }
+
+    private void run() {
+        int idle = 0;
+        while (true) {
+            long next = tail.get();
+            long available = head.get();
+            if (next == available) {
+                if (stopping) {
+                    return;
+                }
+                if (++idle < SPINS_BEFORE_PARKING) {
+                    Thread.yield();
+                    continue;
+                }
+                parked = true;
+                if (head.get() == next && !stopping) {
+                    LockSupport.parkNanos(this, MAX_PARK_NANOS);
+                }
+                parked = false;
+                continue;
+            }
+            idle = 0;
+            settle(next, (int) (available - next));
+        }
+    }
+
+    private void settle(long first, int count) {
+        long start = System.nanoTime();
+        TradeCallback[] callbacks = new TradeCallback[count];
+        boolean[] results = new boolean[count];
+        for (int i = 0; i < count; i++) {
+            Trade trade = ring[(int) (first + i) & (RING_SIZE - 1)];
+            boolean success;
+            try {
+                success = settler.settle(trade);
+            } catch (RuntimeException ex) {
+                CryptoMarket.warn("Error settling a trade of " + trade.investor + ":");
+                ex.printStackTrace();
+                success = false;
+            }
+            if (success) {
+                ledger.record(trade);
+            }
+            callbacks[i] = trade.callback;
+            results[i] = success;
+            trade.clear();
+        }
+        // the slots can be reused from now on
+        tail.set(first + count);
+        ledger.flush();
+
+        int succeeded = 0;
+        for (boolean result : results) {
+            if (result) {
+                succeeded++;
+            }
+        }
+        settled.addAndGet(succeeded);
+        failed.addAndGet(count - succeeded);
+        batches.incrementAndGet();
+        totalSettleNanos.addAndGet(System.nanoTime() - start);
+
+        deliveries.add(() -> {
+            for (int i = 0; i < callbacks.length; i++) {
+                try {
+                    callbacks[i].onSettled(results[i]);
+                } catch (RuntimeException ex) {
+                    CryptoMarket.warn("Error running the callback of a trade:");
+                    ex.printStackTrace();
+                }
+            }
+        });
+    }
+
+    /**
+     * A trade waiting in the ring buffer. The slots are reused, so the fields are only valid during
+     * {@link Settler#settle(Trade)} and {@link Ledger#record(Trade)}
+     */
+    public static final class Trade {
+
+        private Negotiation negotiation;
+        private Investor investor;
+        private String coin;
+        private Balance balance;
+        private long amount;
+        private long value;
+        private TradeCallback callback;
+
+        private Trade() {
+        }
+
+        public @NotNull Negotiation getNegotiation() {
+            return negotiation;
+        }
+
+        public @NotNull Investor getInvestor() {
+            return investor;
+        }
+
+        public @NotNull String getCoin() {
+            return coin;
+        }
+
+        public @NotNull Balance getBalance() {
+            return balance;
+        }
+
+        /**
+         * @return the fixed-point amount of the coin
+         */
+        public long getAmount() {
+            return amount;
+        }
+
+        /**
+         * @return the fixed-point value in the server coin
+         */
+        public long getValue() {
+            return value;
+        }
+
+        private void clear() {
+            investor = null;
+            balance = null;
+            callback = null;
+        }
+    }
+
+    @FunctionalInterface
+    public interface TradeCallback {
+
+        /**
+         * Called on the main thread when the trade is settled
+         *
+         * @param success if the balance was changed
+         */
+        void onSettled(boolean success);
+    }
+
+    @FunctionalInterface
+    interface Settler {
+
+        /**
+         * Applies the trade to the balance, called on the engine thread
+         *
+         * @param trade trade
+         * @return true if it was applied
+         */
+        boolean settle(@NotNull Trade trade);
+    }
+
+    /**
+     * Records the settled trades, the engine flushes it after each batch
+     */
+    public interface Ledger {
+
+        void record(@NotNull Trade trade);
+
+        void flush();
+    }
+
+    /**
+     * Snapshot of the engine metrics. Times are in nanoseconds
+     */
+    public static final class Statistics {
+
+        private final int pending;
+        private final long rejected;
+        private final long settled;
+        private final long failed;
+        private final long batches;
+        private final long totalSettleNanos;
+
+        private Statistics(int pending, long rejected, long settled, long failed, long batches,
+                           long totalSettleNanos) {
+            this.pending = pending;
+            this.rejected = rejected;
+            this.settled = settled;
+            this.failed = failed;
+            this.batches = batches;
+            this.totalSettleNanos = totalSettleNanos;
+        }
+
+        /**
+         * @return trades waiting to be settled
+         */
+        public int getPending() {
+            return pending;
+        }
+
+        /**
+         * @return trades not accepted because the engine was full
+         */
+        public long getRejected() {
+            return rejected;
+        }
+
+        public long getSettled() {
+            return settled;
+        }
+
+        public long getFailed() {
+            return failed;
+        }
+
+        public long getBatches() {
+            return batches;
+        }
+
+        public double getAverageBatchSize() {
+            return batches == 0 ? 0 : (settled + failed) / (double) batches;
+        }
+
+        /**
+         * @return settled trades per second of settling
+         */
+        public double getThroughput() {
+            return totalSettleNanos == 0 ? 0 : (settled + failed) * 1_000_000_000D / totalSettleNanos;
+        }
+    }
+}
@@ -0,0 +1,200 @@
+package net.epconsortium.cryptomarket.finances;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+
+/**
+ * Fixed-point arithmetic on scaled longs, used instead of BigDecimal on the hot paths.
+ * Cryptocoin amounts and exchange rates have {@link #CRYPTO_SCALE} decimal places and server currency amounts have
+ * {@link #CURRENCY_SCALE}. All operations throw {@link ArithmeticException} instead of overflowing, and nothing is
+ * allocated, even when the intermediate product needs 128 bits.
+ *
+ * @author roinujnosde
+ */
+public final class Money {
+
+    public static final int CRYPTO_SCALE = 8;
+    public static final int CURRENCY_SCALE = 2;
+    /**
+     * Shift from the product of an exchange rate and a cryptocoin amount to the server currency scale
+     */
+    public static final int RATE_TO_CURRENCY = CRYPTO_SCALE + CRYPTO_SCALE - CURRENCY_SCALE;
+    private static final long[] POWERS_OF_TEN = new long[19];
+
+    static {
+        POWERS_OF_TEN[0] = 1;
+        for (int i = 1; i < POWERS_OF_TEN.length; i++) {
+            POWERS_OF_TEN[i] = POWERS_OF_TEN[i - 1] * 10;
+        }
+    }
+
+    private Money() {
+    }
+
+    /**
+     * Converts a cryptocoin amount to the fixed-point representation
+     *
+     * @param amount amount
+     * @return the fixed-point amount
+     * @throws ArithmeticException if the amount does not fit
+     */
+    public static long ofCrypto(@NotNull BigDecimal amount) {
+        return amount.setScale(CRYPTO_SCALE, RoundingMode.HALF_UP).unscaledValue().longValueExact();
+    }
+
+    /**
+     * Converts a server currency amount to the fixed-point representation
+     *
+     * @param amount amount
+     * @return the fixed-point amount
+     * @throws ArithmeticException if the amount does not fit
+     */
+    public static long ofCurrency(@NotNull BigDecimal amount) {
+        return amount.setScale(CURRENCY_SCALE, RoundingMode.HALF_UP).unscaledValue().longValueExact();
+    }
+
+    /**
+     * Converts a server currency amount, like the ones used by Vault, to the fixed-point representation
+     *
+     * @param amount amount
+     * @return the fixed-point amount
+     * @throws ArithmeticException if the amount does not fit
+     */
+    public static long ofCurrency(double amount) {
+        return ofCurrency(BigDecimal.valueOf(amount));
+    }
+
+    public static @NotNull BigDecimal toCrypto(long amount) {
+        return BigDecimal.valueOf(amount, CRYPTO_SCALE);
+    }
+
+    public static @NotNull BigDecimal toCurrency(long amount) {
+        return BigDecimal.valueOf(amount, CURRENCY_SCALE);
+    }
+
+    public static double currencyToDouble(long amount) {
+        return amount / (double) POWERS_OF_TEN[CURRENCY_SCALE];
+    }
+
+    /**
+     * Converts a cryptocoin amount to the server currency
+     *
+     * @param rate the fixed-point exchange rate
+     * @param amount the fixed-point cryptocoin amount
+     * @return the fixed-point currency amount, rounded half up
+     * @throws ArithmeticException if the result does not fit
+     */
+    public static long convert(long rate, long amount) {
+        return multiply(rate, amount, RATE_TO_CURRENCY, RoundingMode.HALF_UP);
+    }
+
+    /**
+     * Returns a * b / 10^shift
+     *
+     * @param a first factor
+     * @param b second factor
+     * @param shift decimal places to remove from the product, from 0 to 18
+     * @param mode DOWN, FLOOR, CEILING or HALF_UP
+     * @return the result
+     * @throws ArithmeticException if the result does not fit
+     */
+    public static long multiply(long a, long b, int shift, @NotNull RoundingMode mode) {
+        boolean negative = (a < 0) != (b < 0);
+        long x = abs(a);
+        long y = abs(b);
+        return scaleDown(multiplyHigh(x, y), x * y, POWERS_OF_TEN[shift], negative, mode);
+    }
+
+    /**
+     * Returns a * 10^shift / b
+     *
+     * @param a dividend
+     * @param b divisor
+     * @param shift decimal places to add to the quotient, from 0 to 18
+     * @param mode DOWN, FLOOR, CEILING or HALF_UP
+     * @return the result
+     * @throws ArithmeticException if b is zero or the result does not fit
+     */
+    public static long divide(long a, long b, int shift, @NotNull RoundingMode mode) {
+        if (b == 0) {
+            throw new ArithmeticException("division by zero");
+        }
+        boolean negative = (a < 0) != (b < 0);
+        long x = abs(a);
+        long power = POWERS_OF_TEN[shift];
+        return scaleDown(multiplyHigh(x, power), x * power, abs(b), negative, mode);
+    }
+
+    /**
+     * Divides the unsigned 128 bits number by the divisor and applies the sign and the rounding
+     */
+    private static long scaleDown(long high, long low, long divisor, boolean negative, RoundingMode mode) {
+        long quotient;
+        long remainder;
+        if (high == 0) {
+            quotient = Long.divideUnsigned(low, divisor);
+            remainder = Long.remainderUnsigned(low, divisor);
+        } else {
+            if (Long.compareUnsigned(high, divisor) >= 0) {
+                throw new ArithmeticException("long overflow");
+            }
+            // binary long division, the divisor is below 2^63 so the shifted remainder never loses a bit
+            quotient = 0;
+            remainder = high;
+            for (int i = 0; i < 64; i++) {
+                remainder = (remainder << 1) | (low >>> 63);
+                low <<= 1;
+                quotient <<= 1;
+                if (Long.compareUnsigned(remainder, divisor) >= 0) {
+                    remainder -= divisor;
+                    quotient |= 1;
+                }
+            }
+        }
+        if (remainder != 0 && roundsUp(remainder, divisor, negative, mode)) {
+            quotient++;
+        }
+        if (quotient < 0) {
+            throw new ArithmeticException("long overflow");
+        }
+        return negative ? -quotient : quotient;
+    }
+
+    private static boolean roundsUp(long remainder, long divisor, boolean negative, RoundingMode mode) {
+        switch (mode) {
+            case DOWN:
+                return false;
+            case FLOOR:
+                return negative;
+            case CEILING:
+                return !negative;
+            case HALF_UP:
+                return Long.compareUnsigned(remainder, divisor - remainder) >= 0;
+            default:
+                throw new IllegalArgumentException("unsupported rounding mode: " + mode);
+        }
+    }
+
+    private static long abs(long value) {
+        if (value == Long.MIN_VALUE) {
+            throw new ArithmeticException("long overflow");
+        }
+        return Math.abs(value);
+    }
+
+    /**
+     * High 64 bits of the product of two non-negative longs (Math.multiplyHigh is not available on Java 8)
+     */
+    private static long multiplyHigh(long x, long y) {
+        long x1 = x >>> 32;
+        long x2 = x & 0xFFFFFFFFL;
+        long y1 = y >>> 32;
+        long y2 = y & 0xFFFFFFFFL;
+        long z2 = x2 * y2;
+        long t = x1 * y2 + (z2 >>> 32);
+        long z1 = (t & 0xFFFFFFFFL) + x2 * y1;
+        return x1 * y1 + (t >>> 32) + (z1 >>> 32);
+    }
+}
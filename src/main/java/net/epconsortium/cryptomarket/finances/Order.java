@@ -0,0 +1,111 @@
+package net.epconsortium.cryptomarket.finances;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.UUID;
+
+/**
+ * A limit order on the {@link OrderBook} of a coin.
+ * The price is the fixed-point value, in the server coin, of one whole cryptocoin and the amounts are fixed-point
+ * cryptocoins, see {@link Money}. Bids hold in escrow the money that pays for what is still to be filled, asks hold
+ * the cryptocoins themselves. Orders are only changed on the main thread
+ *
+ * @author roinujnosde
+ */
+public final class Order extends PriceLevels.Entry {
+
+    private final long id;
+    private final UUID owner;
+    private final String coin;
+    private final Negotiation side;
+    private final long price;
+    private final long amount;
+    private final long created;
+    long escrow;
+
+    /**
+     * @param id unique id
+     * @param owner unique id of the investor
+     * @param coin coin symbol
+     * @param side {@link Negotiation#PURCHASE} for bids, {@link Negotiation#SELL} for asks
+     * @param price fixed-point price of one cryptocoin
+     * @param amount fixed-point amount ordered
+     * @param remaining fixed-point amount not filled yet
+     * @param escrow fixed-point money held for the bid, 0 for asks
+     * @param created creation time, in milliseconds
+     */
+    public Order(long id, @NotNull UUID owner, @NotNull String coin, @NotNull Negotiation side, long price,
+                 long amount, long remaining, long escrow, long created) {
+        super(remaining);
+        this.id = id;
+        this.owner = owner;
+        this.coin = coin;
+        this.side = side;
+        this.price = price;
+        this.amount = amount;
+        this.escrow = escrow;
+        this.created = created;
+    }
+
+    public long getId() {
+        return id;
+    }
+
+    public @NotNull UUID getOwner() {
+        return owner;
+    }
+
+    public @NotNull String getCoin() {
+        return coin;
+    }
+
+    public @NotNull Negotiation getSide() {
+        return side;
+    }
+
+    public boolean isBid() {
+        return side == Negotiation.PURCHASE;
+    }
+
+    /**
+     * @return the fixed-point price of one cryptocoin
+     */
+    @Override
+    public long getPrice() {
+        return price;
+    }
+
+    /**
+     * @return the fixed-point amount ordered
+     */
+    public long getAmount() {
+        return amount;
+    }
+
+    /**
+     * @return the fixed-point amount not filled yet
+     */
+    public long getRemaining() {
+        return remaining;
+    }
+
+    /**
+     * @return the fixed-point money held for the bid
+     */
+    public long getEscrow() {
+        return escrow;
+    }
+
+    /**
+     * @return the creation time, in milliseconds
+     */
+    public long getCreated() {
+        return created;
+    }
+
+    @Override
+    public String toString() {
+        return "Order{id=" + id + ", owner=" + owner + ", coin=" + coin + ", side=" + side + ", price=" + price
+                + ", remaining=" + remaining + "}";
+    }
+}
@@ -0,0 +1,163 @@
+package net.epconsortium.cryptomarket.finances;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Limit order book of one coin, matched in price-time priority.
+ * An incoming order is matched against the best levels of the other side while the prices cross, always at the
+ * price of the resting order, and whatever is not filled rests on the book. Orders can be partially filled any
+ * number of times. The book only moves the amounts, the money and cryptocoins are settled by the
+ * {@link FillListener}. Not thread-safe, it is used on the main thread
+ *
+ * @author roinujnosde
+ */
+public final class OrderBook {
+
+    private final PriceLevels<Order> bids = new PriceLevels<>(true);
+    private final PriceLevels<Order> asks = new PriceLevels<>(false);
+    private final Map<Long, Order> orders = new HashMap<>();
+    private final FillListener listener;
+
+    /**
+     * @param listener settles the fills
+     */
+    OrderBook(@NotNull FillListener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Matches the order against the book and rests the remaining amount
+     *
+     * @param order a new order
+     * @return true if the order rests on the book, false if it was completely filled
+     */
+    boolean place(@NotNull Order order) {
+        PriceLevels<Order> opposite = order.isBid() ? asks : bids;
+        while (order.remaining > 0 && opposite.crosses(order.getPrice())) {
+            PriceLevels.Level<Order> best = opposite.best();
+            Order maker = best.getHead();
+            long filled = Math.min(order.remaining, maker.remaining);
+            opposite.fill(maker, filled);
+            order.remaining -= filled;
+            if (maker.remaining == 0) {
+                opposite.remove(maker);
+                orders.remove(maker.getId());
+            }
+            listener.onFill(order, maker, best.getPrice(), filled);
+        }
+        if (order.remaining == 0) {
+            return false;
+        }
+        rest(order);
+        return true;
+    }
+
+    /**
+     * Puts the order on the book without matching, used for the orders read from the database, which were
+     * already resting
+     *
+     * @param order order
+     */
+    void rest(@NotNull Order order) {
+        (order.isBid() ? bids : asks).add(order);
+        orders.put(order.getId(), order);
+    }
+
+    /**
+     * Removes a resting order
+     *
+     * @param id the order's id
+     * @return the removed order or null if it is not on the book
+     */
+    @Nullable Order cancel(long id) {
+        Order order = orders.remove(id);
+        if (order != null) {
+            (order.isBid() ? bids : asks).remove(order);
+        }
+        return order;
+    }
+
+    /**
+     * Returns a resting order
+     *
+     * @param id the order's id
+     * @return the order or null
+     */
+    public @Nullable Order getOrder(long id) {
+        return orders.get(id);
+    }
+
+    /**
+     * @return how many orders are resting
+     */
+    public int size() {
+        return orders.size();
+    }
+
+    /**
+     * Returns the resting bids and asks aggregated by price, best first
+     *
+     * @param depth maximum levels of each side
+     * @return the depth
+     */
+    public @NotNull Depth getDepth(int depth) {
+        return new Depth(levels(bids, depth), levels(asks, depth));
+    }
+
+    private static long[][] levels(PriceLevels<Order> side, int depth) {
+        int size = Math.min(depth, side.size());
+        long[][] levels = new long[size][];
+        for (int i = 0; i < size; i++) {
+            PriceLevels.Level<Order> level = side.get(i);
+            levels[i] = new long[]{level.getPrice(), level.getQuantity(), level.getCount()};
+        }
+        return levels;
+    }
+
+    @FunctionalInterface
+    interface FillListener {
+
+        /**
+         * Called for each fill, after the amounts were taken out of both orders
+         *
+         * @param taker the incoming order
+         * @param maker the resting order, removed from the book if it has nothing remaining
+         * @param price fixed-point price of the fill, the maker's
+         * @param amount fixed-point amount filled
+         */
+        void onFill(@NotNull Order taker, @NotNull Order maker, long price, long amount);
+    }
+
+    /**
+     * Snapshot of the best levels of the book. Each level is its fixed-point price, its fixed-point amount and its
+     * number of orders
+     */
+    public static final class Depth {
+
+        private final long[][] bids;
+        private final long[][] asks;
+
+        private Depth(long[][] bids, long[][] asks) {
+            this.bids = bids;
+            this.asks = asks;
+        }
+
+        /**
+         * @return the bid levels, highest price first
+         */
+        public long[][] getBids() {
+            return bids;
+        }
+
+        /**
+         * @return the ask levels, lowest price first
+         */
+        public long[][] getAsks() {
+            return asks;
+        }
+    }
+}
@@ -0,0 +1,264 @@
+package net.epconsortium.cryptomarket.finances;
+
+import net.epconsortium.cryptomarket.CryptoMarket;
+import net.epconsortium.cryptomarket.database.dao.Investor;
+import net.epconsortium.cryptomarket.database.dao.OrderDao;
+import net.epconsortium.cryptomarket.util.Configuration;
+import net.epconsortium.cryptomarket.util.Formatter;
+import org.bukkit.Bukkit;
+import org.bukkit.entity.Player;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.math.RoundingMode;
+import java.text.MessageFormat;
+import java.util.*;
+
+import static net.epconsortium.cryptomarket.CryptoMarket.debug;
+
+/**
+ * The order books of the coins, where the players trade with each other.
+ * Placing an order takes its escrow right away: the money of a bid, at its limit price rounded up, or the
+ * cryptocoins of an ask. Each fill pays the seller from the bid's escrow, at the price of the resting order rounded
+ * down, and credits the cryptocoins to the buyer, loading them if offline. What is left in the escrow is given back
+ * when the order is filled or cancelled. Everything runs on the main thread
+ *
+ * @author roinujnosde
+ */
+public class OrderBooks {
+
+    private static OrderBooks instance;
+    private final CryptoMarket plugin;
+    private final Configuration config;
+    private final net.milkbowl.vault.economy.Economy vaultEconomy;
+    private final OrderDao dao;
+    private final Map<String, OrderBook> books = new HashMap<>();
+    private final Map<UUID, List<Order>> byOwner = new HashMap<>();
+    private long nextId = 1;
+    private boolean loaded;
+
+    private OrderBooks(@NotNull CryptoMarket plugin) {
+        this.plugin = plugin;
+        config = new Configuration(plugin);
+        vaultEconomy = plugin.getVaultEconomy();
+        dao = plugin.getOrderDao();
+        for (String coin : config.getCoins()) {
+            books.put(coin, new OrderBook(this::settle));
+        }
+    }
+
+    public static OrderBooks getInstance(@NotNull CryptoMarket plugin) {
+        if (instance == null) {
+            instance = new OrderBooks(plugin);
+        }
+        return instance;
+    }
+
+    /**
+     * Reads the resting orders from the database. Orders are only accepted after it completes. Orders of coins
+     * that are not configured anymore are cancelled
+     */
+    public void load() {
+        dao.loadOrders().whenComplete((orders, error) -> Bukkit.getScheduler().runTask(plugin, () -> {
+            if (error != null) {
+                CryptoMarket.warn("Error loading the orders, the order books are disabled:");
+                error.printStackTrace();
+                return;
+            }
+            for (Order order : orders) {
+                nextId = Math.max(nextId, order.getId() + 1);
+                OrderBook book = books.get(order.getCoin());
+                if (book == null) {
+                    CryptoMarket.warn("Cancelling order #" + order.getId() + ", " + order.getCoin()
+                            + " is not configured");
+                    dao.deleteOrder(order.getId());
+                    refund(order);
+                    continue;
+                }
+                book.rest(order);
+                byOwner.computeIfAbsent(order.getOwner(), uuid -> new ArrayList<>()).add(order);
+            }
+            loaded = true;
+            debug("Loaded " + orders.size() + " orders");
+        }));
+    }
+
+    /**
+     * @return true if the orders were loaded and new ones are accepted
+     */
+    public boolean isLoaded() {
+        return loaded;
+    }
+
+    /**
+     * Places a limit order, taking its escrow and matching it against the book
+     *
+     * @param player the player
+     * @param investor the player's investor
+     * @param coin coin
+     * @param side {@link Negotiation#PURCHASE} to buy, {@link Negotiation#SELL} to sell
+     * @param amount fixed-point amount of cryptocoins
+     * @param price fixed-point price of one cryptocoin
+     * @return the order, which may be filled already, or null if the player cannot pay the escrow
+     * @throws IllegalStateException if the orders are not loaded or the coin has no book
+     * @throws IllegalArgumentException if the amount or the price are not positive
+     */
+    public @Nullable Order place(@NotNull Player player, @NotNull Investor investor, @NotNull String coin,
+                                 @NotNull Negotiation side, long amount, long price) {
+        OrderBook book = books.get(coin);
+        if (!loaded || book == null) {
+            throw new IllegalStateException("the order book of " + coin + " is not available");
+        }
+        if (amount <= 0 || price <= 0) {
+            throw new IllegalArgumentException("amount and price must be positive");
+        }
+        long escrow = 0;
+        if (side == Negotiation.PURCHASE) {
+            escrow = Money.multiply(price, amount, Money.CRYPTO_SCALE, RoundingMode.CEILING);
+            double toHold = Money.currencyToDouble(escrow);
+            if (!vaultEconomy.has(player, toHold)) {
+                return null;
+            }
+            vaultEconomy.withdrawPlayer(player, toHold);
+        } else {
+            Economy economy = plugin.getEconomy();
+            if (!economy.has(coin, investor, Money.toCrypto(amount))) {
+                return null;
+            }
+            economy.withdraw(coin, investor, Money.toCrypto(amount));
+        }
+        Order order = new Order(nextId++, player.getUniqueId(), coin, side, price, amount, amount, escrow,
+                System.currentTimeMillis());
+        debug("Placing " + order);
+        if (book.place(order)) {
+            byOwner.computeIfAbsent(order.getOwner(), uuid -> new ArrayList<>()).add(order);
+            dao.save(order);
+        } else {
+            releaseEscrow(order);
+        }
+        return order;
+    }
+
+    /**
+     * Cancels a resting order and gives back what it holds
+     *
+     * @param owner unique id of the owner
+     * @param id the order's id
+     * @return the cancelled order or null if the owner has no such order
+     */
+    public @Nullable Order cancel(@NotNull UUID owner, long id) {
+        Order order = null;
+        for (Order candidate : getOrders(owner)) {
+            if (candidate.getId() == id) {
+                order = candidate;
+                break;
+            }
+        }
+        if (order == null) {
+            return null;
+        }
+        books.get(order.getCoin()).cancel(id);
+        removeFromOwner(order);
+        dao.deleteOrder(id);
+        refund(order);
+        return order;
+    }
+
+    /**
+     * Returns the resting orders of the investor, oldest first
+     *
+     * @param owner unique id of the owner
+     * @return the orders
+     */
+    public @NotNull List<Order> getOrders(@NotNull UUID owner) {
+        List<Order> orders = byOwner.get(owner);
+        return orders == null ? Collections.emptyList() : Collections.unmodifiableList(orders);
+    }
+
+    /**
+     * Returns the order book of the coin
+     *
+     * @param coin coin
+     * @return the book or null if the coin is not configured
+     */
+    public @Nullable OrderBook getBook(@NotNull String coin) {
+        return books.get(coin);
+    }
+
+    /**
+     * Settles a fill: pays the seller from the bid's escrow and credits the cryptocoins to the buyer
+     */
+    private void settle(Order taker, Order maker, long price, long amount) {
+        Order bid = taker.isBid() ? taker : maker;
+        Order ask = taker.isBid() ? maker : taker;
+        long value = Money.multiply(price, amount, Money.CRYPTO_SCALE, RoundingMode.FLOOR);
+        bid.escrow -= value;
+        if (value > 0) {
+            vaultEconomy.depositPlayer(Bukkit.getOfflinePlayer(ask.getOwner()), Money.currencyToDouble(value));
+        }
+        String coin = bid.getCoin();
+        plugin.getInvestorDao().withInvestor(bid.getOwner(),
+                investor -> plugin.getEconomy().fill(coin, investor, amount, value),
+                () -> CryptoMarket.warn("Could not credit " + Money.toCrypto(amount) + " " + coin + " to "
+                        + bid.getOwner() + ", filled by order #" + ask.getId()));
+        debug("Filled " + Money.toCrypto(amount) + " " + coin + " at " + Money.toCurrency(price) + ", bid #"
+                + bid.getId() + ", ask #" + ask.getId());
+        sendFilled(maker, price, amount);
+        sendFilled(taker, price, amount);
+
+        if (maker.getRemaining() == 0) {
+            removeFromOwner(maker);
+            dao.deleteOrder(maker.getId());
+            releaseEscrow(maker);
+        } else {
+            dao.save(maker);
+        }
+    }
+
+    /**
+     * Gives back the money left in the escrow of a filled bid
+     */
+    private void releaseEscrow(Order order) {
+        if (order.escrow > 0) {
+            vaultEconomy.depositPlayer(Bukkit.getOfflinePlayer(order.getOwner()),
+                    Money.currencyToDouble(order.escrow));
+            order.escrow = 0;
+        }
+    }
+
+    /**
+     * Gives back what a cancelled order holds
+     */
+    private void refund(Order order) {
+        if (order.isBid()) {
+            releaseEscrow(order);
+            return;
+        }
+        long remaining = order.getRemaining();
+        if (remaining > 0) {
+            plugin.getInvestorDao().withInvestor(order.getOwner(),
+                    investor -> plugin.getEconomy().deposit(order.getCoin(), investor, Money.toCrypto(remaining)),
+                    () -> CryptoMarket.warn("Could not give back " + Money.toCrypto(remaining) + " "
+                            + order.getCoin() + " to " + order.getOwner() + " of order #" + order.getId()));
+        }
+    }
+
+    private void removeFromOwner(Order order) {
+        List<Order> orders = byOwner.get(order.getOwner());
+        if (orders != null) {
+            orders.remove(order);
+            if (orders.isEmpty()) {
+                byOwner.remove(order.getOwner());
+            }
+        }
+    }
+
+    private void sendFilled(Order order, long price, long amount) {
+        Player player = Bukkit.getPlayer(order.getOwner());
+        if (player != null) {
+            player.sendMessage(MessageFormat.format(config.getMessageOrderFilled(), String.valueOf(order.getId()),
+                    Formatter.formatCryptocoin(Money.toCrypto(amount)), order.getCoin(),
+                    Formatter.formatServerCurrency(Money.currencyToDouble(price))));
+        }
+    }
+}
@@ -0,0 +1,237 @@
+package net.epconsortium.cryptomarket.finances;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.Arrays;
+
+/**
+ * One side of an {@link OrderBook}, or the {@link Trigger}s of one kind: the price levels sorted in a primitive
+ * array, each one with the queue of its entries in time priority.
+ * The keys are kept ascending with the best price at the end, so filling and removing the best level, which is
+ * what matching does, never moves the other levels. For asks the key is the negated price, so the lowest price
+ * is the best
+ *
+ * @author roinujnosde
+ */
+final class PriceLevels<E extends PriceLevels.Entry> {
+
+    private static final int INITIAL_CAPACITY = 64;
+
+    private final boolean bids;
+    private long[] keys = new long[INITIAL_CAPACITY];
+    private Level<E>[] levels = newLevels(INITIAL_CAPACITY);
+    private int size;
+
+    /**
+     * @param bids true if the highest price is the best, false if the lowest is
+     */
+    PriceLevels(boolean bids) {
+        this.bids = bids;
+    }
+
+    /**
+     * @return the level with the best price or null if there are no orders
+     */
+    @Nullable Level<E> best() {
+        return size == 0 ? null : levels[size - 1];
+    }
+
+    /**
+     * Returns a level counting from the best one
+     *
+     * @param depth 0 for the best level
+     * @return the level or null if there are not so many
+     */
+    @Nullable Level<E> get(int depth) {
+        return depth < size ? levels[size - 1 - depth] : null;
+    }
+
+    /**
+     * @return how many price levels have orders
+     */
+    int size() {
+        return size;
+    }
+
+    /**
+     * Checks if an order at the price is matched by this side's best level. For triggers, checks if the price
+     * reached the best level
+     *
+     * @param price fixed-point price of the incoming order, or the new rate
+     * @return true if the best level crosses it
+     */
+    boolean crosses(long price) {
+        if (size == 0) {
+            return false;
+        }
+        long best = levels[size - 1].price;
+        return bids ? best >= price : best <= price;
+    }
+
+    /**
+     * Appends the entry to the queue of its price, creating the level if needed
+     *
+     * @param entry entry
+     */
+    void add(@NotNull E entry) {
+        long key = key(entry.getPrice());
+        int index = Arrays.binarySearch(keys, 0, size, key);
+        Level<E> level;
+        if (index >= 0) {
+            level = levels[index];
+        } else {
+            level = new Level<>(entry.getPrice());
+            insert(-index - 1, key, level);
+        }
+        level.add(entry);
+    }
+
+    /**
+     * Removes the entry from its level, and the level if it becomes empty
+     *
+     * @param entry entry
+     */
+    void remove(@NotNull E entry) {
+        Level<?> level = entry.level;
+        level.remove(entry);
+        if (level.count == 0) {
+            removeLevel(level);
+        }
+    }
+
+    /**
+     * Takes the filled amount out of the entry and its level
+     *
+     * @param entry entry
+     * @param filled fixed-point amount filled
+     */
+    void fill(@NotNull E entry, long filled) {
+        entry.remaining -= filled;
+        entry.level.quantity -= filled;
+    }
+
+    private void insert(int index, long key, Level<E> level) {
+        if (size == keys.length) {
+            keys = Arrays.copyOf(keys, size * 2);
+            levels = Arrays.copyOf(levels, size * 2);
+        }
+        System.arraycopy(keys, index, keys, index + 1, size - index);
+        System.arraycopy(levels, index, levels, index + 1, size - index);
+        keys[index] = key;
+        levels[index] = level;
+        size++;
+    }
+
+    private void removeLevel(Level<?> level) {
+        int index;
+        if (levels[size - 1] == level) {
+            index = size - 1;
+        } else {
+            index = Arrays.binarySearch(keys, 0, size, key(level.price));
+        }
+        System.arraycopy(keys, index + 1, keys, index, size - index - 1);
+        System.arraycopy(levels, index + 1, levels, index, size - index - 1);
+        levels[--size] = null;
+    }
+
+    private long key(long price) {
+        return bids ? price : -price;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <E extends Entry> Level<E>[] newLevels(int capacity) {
+        return (Level<E>[]) new Level[capacity];
+    }
+
+    /**
+     * Something resting at a price, linked into the queue of its level
+     */
+    abstract static class Entry {
+
+        long remaining;
+        Level<?> level;
+        Entry previous;
+        Entry next;
+
+        Entry(long remaining) {
+            this.remaining = remaining;
+        }
+
+        /**
+         * @return the fixed-point price the entry rests at
+         */
+        public abstract long getPrice();
+    }
+
+    /**
+     * The entries at one price, oldest first
+     */
+    static final class Level<E extends Entry> {
+
+        private final long price;
+        private Entry head;
+        private Entry tail;
+        private long quantity;
+        private int count;
+
+        private Level(long price) {
+            this.price = price;
+        }
+
+        long getPrice() {
+            return price;
+        }
+
+        /**
+         * @return the oldest entry
+         */
+        @SuppressWarnings("unchecked")
+        E getHead() {
+            return (E) head;
+        }
+
+        /**
+         * @return the fixed-point amount of all entries
+         */
+        long getQuantity() {
+            return quantity;
+        }
+
+        int getCount() {
+            return count;
+        }
+
+        private void add(Entry entry) {
+            entry.level = this;
+            entry.previous = tail;
+            entry.next = null;
+            if (tail == null) {
+                head = entry;
+            } else {
+                tail.next = entry;
+            }
+            tail = entry;
+            quantity += entry.remaining;
+            count++;
+        }
+
+        private void remove(Entry entry) {
+            if (entry.previous == null) {
+                head = entry.next;
+            } else {
+                entry.previous.next = entry.next;
+            }
+            if (entry.next == null) {
+                tail = entry.previous;
+            } else {
+                entry.next.previous = entry.previous;
+            }
+            quantity -= entry.remaining;
+            count--;
+            entry.level = null;
+            entry.previous = null;
+            entry.next = null;
+        }
+    }
+}
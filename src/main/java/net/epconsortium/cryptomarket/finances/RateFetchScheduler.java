@@ -0,0 +1,134 @@
+package net.epconsortium.cryptomarket.finances;
+
+import net.epconsortium.cryptomarket.CryptoMarket;
+import net.epconsortium.cryptomarket.util.Configuration;
+import net.epconsortium.cryptomarket.util.TokenBucket;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Set;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Runs the requests to the exchange rates provider in parallel, up to the configured number of concurrent
+ * requests, and without exceeding the provider's per minute and per day quotas
+ *
+ * @author roinujnosde
+ */
+public class RateFetchScheduler {
+
+    private final Logger logger;
+    private final ExecutorService executor;
+    private final TokenBucket minuteQuota;
+    private final TokenBucket dailyQuota;
+
+    public RateFetchScheduler(@NotNull CryptoMarket plugin) {
+        this(plugin.getLogger(), new Configuration(plugin));
+    }
+
+    private RateFetchScheduler(Logger logger, Configuration config) {
+        this(logger, config.getConcurrentRequests(), config.getRequestsPerMinute(), config.getRequestsPerDay());
+    }
+
+    /**
+     * @param logger logs the failed fetches
+     * @param concurrentRequests how many coins are fetched at the same time
+     * @param requestsPerMinute per minute quota
+     * @param requestsPerDay daily quota
+     */
+    RateFetchScheduler(@NotNull Logger logger, int concurrentRequests, int requestsPerMinute, int requestsPerDay) {
+        this.logger = logger;
+        minuteQuota = new TokenBucket(requestsPerMinute, 1, TimeUnit.MINUTES);
+        dailyQuota = new TokenBucket(requestsPerDay, 1, TimeUnit.DAYS);
+        AtomicInteger threads = new AtomicInteger();
+        executor = Executors.newFixedThreadPool(concurrentRequests, runnable -> {
+            Thread thread = new Thread(runnable, "CryptoMarket Rates Fetcher #" + threads.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Fetches the coins in parallel
+     *
+     * @param coins the coins
+     * @param fetch the fetch of one coin
+     * @return a future completed with the coins that failed
+     */
+    public CompletableFuture<Set<String>> fetchAll(@NotNull Collection<String> coins, @NotNull CoinFetch fetch) {
+        Set<String> failed = ConcurrentHashMap.newKeySet();
+        CompletableFuture<?>[] futures = new CompletableFuture[coins.size()];
+        int i = 0;
+        for (String coin : coins) {
+            futures[i++] = CompletableFuture.runAsync(() -> {
+                try {
+                    if (!fetch.fetch(coin)) {
+                        failed.add(coin);
+                    }
+                } catch (IOException | RuntimeException ex) {
+                    logger.log(Level.SEVERE, "Error updating " + coin, ex);
+                    failed.add(coin);
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    failed.add(coin);
+                }
+            }, executor);
+        }
+        return CompletableFuture.allOf(futures).handle((v, ex) -> failed);
+    }
+
+    /**
+     * Runs a task on the fetchers' threads
+     *
+     * @param task the task
+     * @return a future completed when the task finishes
+     */
+    public CompletableFuture<Void> run(@NotNull Runnable task) {
+        return CompletableFuture.runAsync(task, executor);
+    }
+
+    /**
+     * Takes a permit to send one request, waiting for the per minute quota if necessary.
+     * Must be called by the fetches right before sending each request
+     *
+     * @return false if the daily quota is exhausted
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public boolean acquire() throws InterruptedException {
+        if (!dailyQuota.tryAcquire()) {
+            CryptoMarket.debug("The daily request quota is exhausted");
+            return false;
+        }
+        try {
+            minuteQuota.acquire();
+        } catch (InterruptedException ex) {
+            dailyQuota.release();
+            throw ex;
+        }
+        return true;
+    }
+
+    /**
+     * Stops the running fetches
+     */
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    public interface CoinFetch {
+
+        /**
+         * Fetches the data of the coin
+         *
+         * @param coin coin
+         * @return true if success
+         * @throws IOException if an error occurred on the request
+         * @throws InterruptedException if interrupted
+         */
+        boolean fetch(String coin) throws IOException, InterruptedException;
+    }
+}
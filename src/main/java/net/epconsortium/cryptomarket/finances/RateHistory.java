@@ -0,0 +1,324 @@
+package net.epconsortium.cryptomarket.finances;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.time.LocalDate;
+import java.util.Arrays;
+
+/**
+ * Immutable snapshot of the daily exchange rates of the coins.
+ * Each coin, identified by its {@link CoinRegistry} id, has one column of fixed-point values (8 decimal places) indexed by epoch-day, so a day lookup is a
+ * plain array access and there are no boxed objects per day. Snapshots are never modified after they are built,
+ * so they can be read from any thread without locks; changes are made on a {@link Builder} that only copies the
+ * columns it touches.
+ *
+ * @author roinujnosde
+ */
+public final class RateHistory {
+
+    public static final int SCALE = 8;
+    public static final long MISSING = Long.MIN_VALUE;
+    private static final int MIN_CAPACITY = 32;
+
+    private final long[][] columns;
+    private final long firstDay;
+    private final int capacity;
+    private final long version;
+
+    /**
+     * Creates an empty history
+     */
+    public RateHistory() {
+        this(new long[0][], 0, 0, 0);
+    }
+
+    private RateHistory(long[][] columns, long firstDay, int capacity, long version) {
+        this.columns = columns;
+        this.firstDay = firstDay;
+        this.capacity = capacity;
+        this.version = version;
+    }
+
+    /**
+     * Returns the version of this snapshot. Every published snapshot has a bigger version than the previous one
+     *
+     * @return the version
+     */
+    public long getVersion() {
+        return version;
+    }
+
+    /**
+     * Returns the fixed-point value of the coin on the day
+     *
+     * @param coin coin id
+     * @param epochDay day
+     * @return the value or {@link #MISSING}
+     */
+    public long get(int coin, long epochDay) {
+        long[] column = coin >= 0 && coin < columns.length ? columns[coin] : null;
+        if (column == null || !contains(epochDay)) {
+            return MISSING;
+        }
+        return column[(int) (epochDay - firstDay)];
+    }
+
+    /**
+     * Checks if there is the value of any coin on the day
+     *
+     * @param epochDay day
+     * @return true if there is
+     */
+    public boolean hasDay(long epochDay) {
+        if (!contains(epochDay)) {
+            return false;
+        }
+        int index = (int) (epochDay - firstDay);
+        for (long[] column : columns) {
+            if (column != null && column[index] != MISSING) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns the fixed-point values of the coin between the dates, inclusive.
+     * Days without data are filled with {@link #MISSING}
+     *
+     * @param coin coin id
+     * @param from first day
+     * @param to last day
+     * @return the values, one per day
+     * @throws IllegalArgumentException if from is after to
+     */
+    public long[] getRange(int coin, @NotNull LocalDate from, @NotNull LocalDate to) {
+        long start = from.toEpochDay();
+        long end = to.toEpochDay();
+        if (start > end) {
+            throw new IllegalArgumentException("from cannot be after to");
+        }
+        long[] range = newColumn((int) (end - start + 1));
+        long[] column = coin >= 0 && coin < columns.length ? columns[coin] : null;
+        if (column == null) {
+            return range;
+        }
+        long copyStart = Math.max(start, firstDay);
+        long copyEnd = Math.min(end, firstDay + capacity - 1);
+        if (copyStart <= copyEnd) {
+            System.arraycopy(column, (int) (copyStart - firstDay), range, (int) (copyStart - start),
+                    (int) (copyEnd - copyStart + 1));
+        }
+        return range;
+    }
+
+    /**
+     * Creates a builder initialized with the values of this snapshot
+     *
+     * @return the builder
+     */
+    public @NotNull Builder toBuilder() {
+        return new Builder(this);
+    }
+
+    /**
+     * Converts a value to the fixed-point representation
+     *
+     * @param value value
+     * @return the fixed-point value
+     * @throws ArithmeticException if the value does not fit
+     */
+    public static long toFixedPoint(@NotNull BigDecimal value) {
+        return value.setScale(SCALE, RoundingMode.HALF_UP).unscaledValue().longValueExact();
+    }
+
+    /**
+     * Parses a plain decimal number straight to the fixed-point representation, rounding it like
+     * {@link #toFixedPoint(BigDecimal)}
+     *
+     * @param text the number
+     * @return the fixed-point value
+     * @throws NumberFormatException if the text is not a number
+     * @throws ArithmeticException if the value does not fit
+     */
+    public static long parseFixedPoint(@NotNull String text) {
+        int length = text.length();
+        int i = 0;
+        boolean negative = false;
+        if (length > 0 && (text.charAt(0) == '-' || text.charAt(0) == '+')) {
+            negative = text.charAt(0) == '-';
+            i++;
+        }
+        long integer = 0;
+        long fraction = 0;
+        int fractionDigits = 0;
+        boolean dot = false;
+        boolean digits = false;
+        boolean roundUp = false;
+        for (; i < length; i++) {
+            char c = text.charAt(i);
+            if (c == '.' && !dot) {
+                dot = true;
+                continue;
+            }
+            if (c < '0' || c > '9') {
+                // exponents and other unusual notations
+                return toFixedPoint(new BigDecimal(text));
+            }
+            digits = true;
+            int digit = c - '0';
+            if (!dot) {
+                integer = Math.addExact(Math.multiplyExact(integer, 10), digit);
+            } else if (fractionDigits < SCALE) {
+                fraction = fraction * 10 + digit;
+                fractionDigits++;
+            } else if (fractionDigits == SCALE) {
+                roundUp = digit >= 5;
+                fractionDigits++;
+            }
+        }
+        if (!digits) {
+            throw new NumberFormatException("not a number: " + text);
+        }
+        for (; fractionDigits < SCALE; fractionDigits++) {
+            fraction *= 10;
+        }
+        long value = Math.addExact(Math.multiplyExact(integer, 100_000_000L), fraction + (roundUp ? 1 : 0));
+        return negative ? -value : value;
+    }
+
+    /**
+     * Converts a fixed-point value back to BigDecimal
+     *
+     * @param value the fixed-point value
+     * @return the value or null if it is {@link #MISSING}
+     */
+    public static @Nullable BigDecimal toBigDecimal(long value) {
+        if (value == MISSING) {
+            return null;
+        }
+        return BigDecimal.valueOf(value, SCALE);
+    }
+
+    private boolean contains(long epochDay) {
+        return epochDay >= firstDay && epochDay < firstDay + capacity;
+    }
+
+    private static long[] newColumn(int size) {
+        long[] column = new long[size];
+        Arrays.fill(column, MISSING);
+        return column;
+    }
+
+    /**
+     * Builds the next snapshot of a history. The columns are shared with the base snapshot until they are changed
+     */
+    public static final class Builder {
+
+        private long[][] columns;
+        private boolean[] copied;
+        private final long version;
+        private long firstDay;
+        private int capacity;
+
+        private Builder(RateHistory base) {
+            columns = base.columns.clone();
+            copied = new boolean[columns.length];
+            firstDay = base.firstDay;
+            capacity = base.capacity;
+            version = base.version + 1;
+        }
+
+        /**
+         * Sets the coin value on the date
+         *
+         * @param coin coin id
+         * @param date date
+         * @param value value
+         * @return this builder
+         * @throws ArithmeticException if the value does not fit in the fixed-point representation
+         */
+        public Builder put(int coin, @NotNull LocalDate date, @NotNull BigDecimal value) {
+            return put(coin, date.toEpochDay(), toFixedPoint(value));
+        }
+
+        /**
+         * Sets the fixed-point coin value on the day
+         *
+         * @param coin coin id
+         * @param epochDay day
+         * @param value fixed-point value
+         * @return this builder
+         * @throws IndexOutOfBoundsException if the coin id is negative
+         */
+        public Builder put(int coin, long epochDay, long value) {
+            if (coin < 0) {
+                throw new IndexOutOfBoundsException("invalid coin id: " + coin);
+            }
+            ensureCapacity(epochDay);
+            if (coin >= columns.length) {
+                columns = Arrays.copyOf(columns, coin + 1);
+                copied = Arrays.copyOf(copied, coin + 1);
+            }
+            long[] column = columns[coin];
+            if (column == null) {
+                column = newColumn(capacity);
+                columns[coin] = column;
+                copied[coin] = true;
+            } else if (!copied[coin]) {
+                column = column.clone();
+                columns[coin] = column;
+                copied[coin] = true;
+            }
+            column[(int) (epochDay - firstDay)] = value;
+            return this;
+        }
+
+        /**
+         * Builds the snapshot. This builder must not be used afterwards
+         *
+         * @return the snapshot
+         */
+        public RateHistory build() {
+            return new RateHistory(columns, firstDay, capacity, version);
+        }
+
+        private void ensureCapacity(long epochDay) {
+            if (capacity == 0) {
+                firstDay = epochDay - MIN_CAPACITY / 2;
+                resize(firstDay, MIN_CAPACITY);
+                return;
+            }
+            if (epochDay >= firstDay && epochDay < firstDay + capacity) {
+                return;
+            }
+            long newFirst = Math.min(firstDay, epochDay);
+            long newLast = Math.max(firstDay + capacity - 1, epochDay);
+            long span = newLast - newFirst + 1;
+            // leaves headroom on the side that grew, history usually grows to the past and the present to the future
+            long headroom = Math.max(span / 2, MIN_CAPACITY);
+            if (epochDay < firstDay) {
+                newFirst -= headroom;
+            }
+            resize(newFirst, Math.toIntExact(span + headroom));
+        }
+
+        private void resize(long newFirst, int newCapacity) {
+            for (int i = 0; i < columns.length; i++) {
+                long[] old = columns[i];
+                if (old == null) {
+                    continue;
+                }
+                long[] column = newColumn(newCapacity);
+                System.arraycopy(old, 0, column, (int) (firstDay - newFirst), capacity);
+                columns[i] = column;
+                copied[i] = true;
+            }
+            firstDay = newFirst;
+            capacity = newCapacity;
+        }
+    }
+}
@@ -0,0 +1,121 @@
+package net.epconsortium.cryptomarket.finances;
+
+import net.epconsortium.cryptomarket.CryptoMarket;
+import net.epconsortium.cryptomarket.finances.provider.ReplayProvider;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+
+/**
+ * Publishes every tick of a {@link ReplayProvider} as an update of the current rates, at the speed of the replay.
+ * The updates go through the same path as the fetched ones, so thousands of ticks per second can be used to soak
+ * test and benchmark everything that runs on a rate update. If the publishing cannot keep up, the ticks more than
+ * one second behind are dropped
+ *
+ * @author roinujnosde
+ */
+final class ReplayDriver {
+
+    private static final long PERIOD_MICROS = 1000;
+
+    private final CryptoMarket plugin;
+    private final ReplayProvider provider;
+    private final CoinRegistry registry;
+    private final TickPublisher publisher;
+    private final long maxLag;
+    private ScheduledExecutorService executor;
+    /**
+     * The next tick to publish, only used by the driver's thread
+     */
+    private long next = -1;
+    private long published;
+    private long dropped;
+    private long totalPublishNanos;
+
+    /**
+     * @param plugin plugin
+     * @param provider the replay
+     * @param publisher publishes the rates of a tick
+     */
+    ReplayDriver(@NotNull CryptoMarket plugin, @NotNull ReplayProvider provider, @NotNull TickPublisher publisher) {
+        this.plugin = plugin;
+        this.provider = provider;
+        this.publisher = publisher;
+        registry = plugin.getCoinRegistry();
+        maxLag = Math.max(1, (long) provider.getTicksPerSecond());
+    }
+
+    /**
+     * Starts publishing the ticks, does nothing if already started
+     */
+    synchronized void start() {
+        if (executor != null) {
+            return;
+        }
+        executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "CryptoMarket Replay");
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.scheduleAtFixedRate(this::run, 0, PERIOD_MICROS, TimeUnit.MICROSECONDS);
+        CryptoMarket.debug("Replaying " + provider.getTicksPerSecond() + " ticks per second");
+    }
+
+    /**
+     * Stops publishing the ticks and waits for the current one
+     */
+    synchronized void stop() {
+        if (executor == null) {
+            return;
+        }
+        executor.shutdownNow();
+        try {
+            executor.awaitTermination(1, TimeUnit.SECONDS);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        CryptoMarket.debug(String.format("Replayed %d ticks, dropped %d, %d ns per tick", published, dropped,
+                published == 0 ? 0 : totalPublishNanos / published));
+    }
+
+    private void run() {
+        long target = provider.getCurrentTick();
+        if (next < 0) {
+            next = target;
+        } else if (target - next > maxLag) {
+            dropped += target - next;
+            next = target;
+        }
+        long[] values = new long[registry.size()];
+        try {
+            for (; next <= target && !Thread.currentThread().isInterrupted(); next++) {
+                for (int id = 0; id < values.length; id++) {
+                    values[id] = provider.getRate(registry.getSymbol(id), next);
+                }
+                long start = System.nanoTime();
+                publisher.publish(values);
+                totalPublishNanos += System.nanoTime() - start;
+                published++;
+            }
+        } catch (IOException | RuntimeException ex) {
+            // thrown out of run() it would silently cancel the replay
+            plugin.getLogger().log(Level.SEVERE, "Error replaying the exchange rates, stopping the replay", ex);
+            executor.shutdown();
+        }
+    }
+
+    @FunctionalInterface
+    interface TickPublisher {
+
+        /**
+         * Publishes the current rates
+         *
+         * @param values the fixed-point rates indexed by coin id, {@link RateHistory#MISSING} if the coin has none
+         */
+        void publish(long[] values);
+    }
+}
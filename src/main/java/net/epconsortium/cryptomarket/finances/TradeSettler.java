@@ -0,0 +1,119 @@
+package net.epconsortium.cryptomarket.finances;
+
+import net.epconsortium.cryptomarket.database.dao.Balance;
+import net.epconsortium.cryptomarket.database.dao.Investor;
+import net.epconsortium.cryptomarket.database.dao.InvestorLocks;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+/**
+ * Settles the trades of the {@link MarketEngine} and keeps the holdings and the leaderboard up to date with every
+ * balance change, holding the investor's lock
+ *
+ * @author roinujnosde
+ */
+final class TradeSettler implements MarketEngine.Settler {
+
+    private final InvestorLocks locks;
+    private final CoinRegistry registry;
+    private final Holdings holdings;
+    private final Leaderboard leaderboard;
+    private final Supplier<ExchangeRate> rate;
+    private final Consumer<Investor> save;
+    /**
+     * How many investors the leaderboard keeps, 0 if it has all of them
+     */
+    private volatile int rankingSize = 0;
+
+    /**
+     * @param locks the investor locks
+     * @param registry the coins
+     * @param holdings the holdings to update
+     * @param leaderboard the leaderboard to update
+     * @param rate supplies the current exchange rate
+     * @param save queues an investor to be saved
+     */
+    TradeSettler(@NotNull InvestorLocks locks, @NotNull CoinRegistry registry, @NotNull Holdings holdings,
+                 @NotNull Leaderboard leaderboard, @NotNull Supplier<ExchangeRate> rate,
+                 @NotNull Consumer<Investor> save) {
+        this.locks = locks;
+        this.registry = registry;
+        this.holdings = holdings;
+        this.leaderboard = leaderboard;
+        this.rate = rate;
+        this.save = save;
+    }
+
+    /**
+     * Applies a trade to the balance, called on the market engine thread. The balance is checked again, it may
+     * have changed since the trade was submitted
+     *
+     * @param trade trade
+     * @return true if the balance was changed
+     */
+    @Override
+    public boolean settle(@NotNull MarketEngine.Trade trade) {
+        Investor investor = trade.getInvestor();
+        Balance balance = trade.getBalance();
+        long amount = trade.getAmount();
+        try (InvestorLocks.Held ignored = lock(investor)) {
+            if (trade.getNegotiation() == Negotiation.PURCHASE) {
+                balance.increase(amount, trade.getValue());
+                onBalanceChanged(investor, trade.getCoin(), amount);
+            } else {
+                if (balance.getFixedPointValue() < amount) {
+                    return false;
+                }
+                balance.decrease(amount, trade.getValue());
+                onBalanceChanged(investor, trade.getCoin(), -amount);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Locks the investor, see {@link InvestorLocks}
+     *
+     * @param investor investor
+     * @return the held lock
+     */
+    @NotNull InvestorLocks.Held lock(@NotNull Investor investor) {
+        return locks.lock(investor.getUniqueId());
+    }
+
+    /**
+     * Updates the holdings, moves the investor to the position of their new patrimony and queues them to be saved.
+     * Must be called holding the investor's lock
+     *
+     * @param investor investor
+     * @param coin the coin that changed
+     * @param delta fixed-point change of the balance
+     */
+    void onBalanceChanged(@NotNull Investor investor, @NotNull String coin, long delta) {
+        holdings.add(investor, registry.getId(coin), delta);
+        leaderboard.update(investor, rate.get());
+        trim();
+        save.accept(investor);
+    }
+
+    /**
+     * Removes the investors beyond the ranking size from the leaderboard, if it has a size
+     */
+    void trim() {
+        int size = rankingSize;
+        if (size > 0) {
+            leaderboard.trim(size);
+        }
+    }
+
+    /**
+     * Sets how many investors the leaderboard keeps
+     *
+     * @param size the size, 0 to keep all of them
+     */
+    void setRankingSize(int size) {
+        rankingSize = size;
+    }
+}
@@ -0,0 +1,91 @@
+package net.epconsortium.cryptomarket.finances;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.UUID;
+
+/**
+ * An automatic sell of a coin when its exchange rate crosses a price: a stop-loss fires when the rate falls to the
+ * price or below, a take-profit when it rises to the price or above.
+ * The price is the fixed-point value, in the server coin, of one whole cryptocoin and the amount is fixed-point
+ * cryptocoins, see {@link Money}. Nothing is held while the trigger waits, the balance is checked when it fires
+ *
+ * @author roinujnosde
+ */
+public final class Trigger extends PriceLevels.Entry {
+
+    private final long id;
+    private final UUID owner;
+    private final String coin;
+    private final Type type;
+    private final long price;
+    private final long created;
+
+    /**
+     * @param id unique id
+     * @param owner unique id of the investor
+     * @param coin coin symbol
+     * @param type stop-loss or take-profit
+     * @param price fixed-point price of one cryptocoin
+     * @param amount fixed-point amount to sell
+     * @param created creation time, in milliseconds
+     */
+    public Trigger(long id, @NotNull UUID owner, @NotNull String coin, @NotNull Type type, long price, long amount,
+                   long created) {
+        super(amount);
+        this.id = id;
+        this.owner = owner;
+        this.coin = coin;
+        this.type = type;
+        this.price = price;
+        this.created = created;
+    }
+
+    public long getId() {
+        return id;
+    }
+
+    public @NotNull UUID getOwner() {
+        return owner;
+    }
+
+    public @NotNull String getCoin() {
+        return coin;
+    }
+
+    public @NotNull Type getType() {
+        return type;
+    }
+
+    /**
+     * @return the fixed-point price of one cryptocoin
+     */
+    @Override
+    public long getPrice() {
+        return price;
+    }
+
+    /**
+     * @return the fixed-point amount to sell
+     */
+    public long getAmount() {
+        return remaining;
+    }
+
+    /**
+     * @return the creation time, in milliseconds
+     */
+    public long getCreated() {
+        return created;
+    }
+
+    @Override
+    public String toString() {
+        return "Trigger{id=" + id + ", owner=" + owner + ", coin=" + coin + ", type=" + type + ", price=" + price
+                + ", amount=" + remaining + "}";
+    }
+
+    public enum Type {
+        STOP_LOSS, TAKE_PROFIT
+    }
+}
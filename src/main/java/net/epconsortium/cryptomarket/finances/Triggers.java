@@ -0,0 +1,337 @@
+package net.epconsortium.cryptomarket.finances;
+
+import net.epconsortium.cryptomarket.CryptoMarket;
+import net.epconsortium.cryptomarket.database.dao.OrderDao;
+import net.epconsortium.cryptomarket.util.Configuration;
+import net.epconsortium.cryptomarket.util.Formatter;
+import org.bukkit.Bukkit;
+import org.bukkit.entity.Player;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.math.BigDecimal;
+import java.text.MessageFormat;
+import java.time.LocalDate;
+import java.util.*;
+
+import static net.epconsortium.cryptomarket.CryptoMarket.debug;
+
+/**
+ * The stop-loss and take-profit {@link Trigger}s of the players, evaluated when the current exchange rates are
+ * updated.
+ * The triggers of each coin are kept in two {@link PriceLevels}: the stop-losses with the highest price as the
+ * best, the take-profits with the lowest. A new rate only pops the best levels while the rate crosses them, so the
+ * cost of an update is proportional to the triggers that fire, not to the triggers waiting. The fired triggers are
+ * sold through {@link Economy#sell} in the same tick, so the {@link MarketEngine} settles them in a batch. A fired
+ * trigger is only deleted when its sale succeeds, otherwise it waits again for the next update.
+ * Everything runs on the main thread
+ *
+ * @author roinujnosde
+ */
+public class Triggers {
+
+    private static final long ONE_COIN = Money.ofCrypto(BigDecimal.ONE);
+    private static Triggers instance;
+    private final CryptoMarket plugin;
+    private final Configuration config;
+    private final OrderDao dao;
+    private final Map<String, Book> books = new HashMap<>();
+    private final Map<UUID, List<Trigger>> byOwner = new HashMap<>();
+    private long nextId = 1;
+    private boolean loaded;
+    private int waiting;
+
+    private long updates;
+    private long fired;
+    private long totalEvaluationNanos;
+
+    private Triggers(@NotNull CryptoMarket plugin) {
+        this.plugin = plugin;
+        config = new Configuration(plugin);
+        dao = plugin.getOrderDao();
+        for (String coin : config.getCoins()) {
+            books.put(coin, new Book());
+        }
+    }
+
+    public static Triggers getInstance(@NotNull CryptoMarket plugin) {
+        if (instance == null) {
+            instance = new Triggers(plugin);
+        }
+        return instance;
+    }
+
+    /**
+     * Reads the waiting triggers from the database. Triggers are only accepted and evaluated after it completes.
+     * Triggers of coins that are not configured anymore are deleted
+     */
+    public void load() {
+        dao.loadTriggers().whenComplete((triggers, error) -> Bukkit.getScheduler().runTask(plugin, () -> {
+            if (error != null) {
+                CryptoMarket.warn("Error loading the triggers, they are disabled:");
+                error.printStackTrace();
+                return;
+            }
+            for (Trigger trigger : triggers) {
+                nextId = Math.max(nextId, trigger.getId() + 1);
+                Book book = books.get(trigger.getCoin());
+                if (book == null) {
+                    CryptoMarket.warn("Deleting trigger #" + trigger.getId() + ", " + trigger.getCoin()
+                            + " is not configured");
+                    dao.deleteTrigger(trigger.getId());
+                    continue;
+                }
+                add(book, trigger);
+            }
+            loaded = true;
+            debug("Loaded " + triggers.size() + " triggers");
+        }));
+    }
+
+    /**
+     * @return true if the triggers were loaded and new ones are accepted
+     */
+    public boolean isLoaded() {
+        return loaded;
+    }
+
+    /**
+     * Creates a trigger
+     *
+     * @param owner unique id of the investor
+     * @param coin coin
+     * @param type stop-loss or take-profit
+     * @param amount fixed-point amount to sell
+     * @param price fixed-point price of one cryptocoin
+     * @return the trigger
+     * @throws IllegalStateException if the triggers are not loaded or the coin is not configured
+     * @throws IllegalArgumentException if the amount or the price are not positive
+     */
+    public @NotNull Trigger create(@NotNull UUID owner, @NotNull String coin, @NotNull Trigger.Type type,
+                                   long amount, long price) {
+        Book book = books.get(coin);
+        if (!loaded || book == null) {
+            throw new IllegalStateException("the triggers of " + coin + " are not available");
+        }
+        if (amount <= 0 || price <= 0) {
+            throw new IllegalArgumentException("amount and price must be positive");
+        }
+        Trigger trigger = new Trigger(nextId++, owner, coin, type, price, amount, System.currentTimeMillis());
+        add(book, trigger);
+        dao.save(trigger);
+        debug("Created " + trigger);
+        return trigger;
+    }
+
+    /**
+     * Deletes a waiting trigger
+     *
+     * @param owner unique id of the owner
+     * @param id the trigger's id
+     * @return the deleted trigger or null if the owner has no such trigger
+     */
+    public @Nullable Trigger cancel(@NotNull UUID owner, long id) {
+        for (Trigger trigger : getTriggers(owner)) {
+            if (trigger.getId() == id) {
+                books.get(trigger.getCoin()).of(trigger.getType()).remove(trigger);
+                remove(trigger);
+                dao.deleteTrigger(trigger.getId());
+                return trigger;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns the waiting triggers of the investor, oldest first
+     *
+     * @param owner unique id of the owner
+     * @return the triggers
+     */
+    public @NotNull List<Trigger> getTriggers(@NotNull UUID owner) {
+        List<Trigger> triggers = byOwner.get(owner);
+        return triggers == null ? Collections.emptyList() : Collections.unmodifiableList(triggers);
+    }
+
+    /**
+     * Fires the triggers crossed by today's exchange rates, must be called on the main thread when the current
+     * rates are updated
+     */
+    public void onExchangeRateUpdate() {
+        ExchangeRate rate = plugin.getExchangeRates().getExchangeRate(LocalDate.now());
+        if (!loaded || rate == null) {
+            return;
+        }
+        long start = System.nanoTime();
+        CoinRegistry registry = plugin.getCoinRegistry();
+        List<Trigger> crossed = new ArrayList<>();
+        List<Long> prices = new ArrayList<>();
+        for (Map.Entry<String, Book> entry : books.entrySet()) {
+            long value = rate.getFixedPointValue(registry.getId(entry.getKey()));
+            if (value == RateHistory.MISSING) {
+                continue;
+            }
+            long price = Money.convert(value, ONE_COIN);
+            int before = crossed.size();
+            entry.getValue().collect(price, crossed);
+            for (int i = before; i < crossed.size(); i++) {
+                prices.add(price);
+            }
+        }
+        updates++;
+        fired += crossed.size();
+        totalEvaluationNanos += System.nanoTime() - start;
+        if (crossed.isEmpty()) {
+            return;
+        }
+        debug("Firing " + crossed.size() + " triggers");
+        for (int i = 0; i < crossed.size(); i++) {
+            Trigger trigger = crossed.get(i);
+            remove(trigger);
+            fire(trigger, prices.get(i));
+        }
+    }
+
+    /**
+     * Returns a snapshot of the trigger metrics
+     *
+     * @return the statistics
+     */
+    public @NotNull Statistics getStatistics() {
+        return new Statistics(waiting, updates, fired, totalEvaluationNanos);
+    }
+
+    /**
+     * Sells the amount of a trigger that was taken out of its book. The trigger is deleted if the sale succeeds,
+     * otherwise it is put back
+     */
+    private void fire(Trigger trigger, long price) {
+        String coin = trigger.getCoin();
+        BigDecimal amount = Money.toCrypto(trigger.getAmount());
+        plugin.getInvestorDao().withInvestor(trigger.getOwner(),
+                investor -> plugin.getEconomy().sell(coin, investor, amount, success -> {
+                    if (success) {
+                        dao.deleteTrigger(trigger.getId());
+                    } else {
+                        CryptoMarket.warn("The sale of trigger #" + trigger.getId() + " of " + trigger.getOwner()
+                                + " failed, it is waiting again");
+                        add(books.get(coin), trigger);
+                    }
+                    Player player = Bukkit.getPlayer(trigger.getOwner());
+                    if (player == null) {
+                        return;
+                    }
+                    String id = String.valueOf(trigger.getId());
+                    if (success) {
+                        player.sendMessage(MessageFormat.format(config.getMessageTriggerFired(), id,
+                                Formatter.formatCryptocoin(amount), coin,
+                                Formatter.formatServerCurrency(Money.toCurrency(price))));
+                    } else {
+                        player.sendMessage(MessageFormat.format(config.getMessageTriggerFailed(), id));
+                    }
+                }),
+                () -> {
+                    CryptoMarket.warn("Could not fire trigger #" + trigger.getId() + " of " + trigger.getOwner()
+                            + ", it is waiting again");
+                    add(books.get(coin), trigger);
+                });
+    }
+
+    private void add(Book book, Trigger trigger) {
+        book.of(trigger.getType()).add(trigger);
+        byOwner.computeIfAbsent(trigger.getOwner(), uuid -> new ArrayList<>()).add(trigger);
+        waiting++;
+    }
+
+    /**
+     * Removes a trigger that is not in its book anymore from its owner's list, it is kept in the database
+     */
+    private void remove(Trigger trigger) {
+        List<Trigger> triggers = byOwner.get(trigger.getOwner());
+        if (triggers != null) {
+            triggers.remove(trigger);
+            if (triggers.isEmpty()) {
+                byOwner.remove(trigger.getOwner());
+            }
+        }
+        waiting--;
+    }
+
+    /**
+     * The triggers of one coin
+     */
+    private static final class Book {
+
+        /**
+         * Fire when the rate is at or below the price, the highest price first
+         */
+        private final PriceLevels<Trigger> stopLosses = new PriceLevels<>(true);
+        /**
+         * Fire when the rate is at or above the price, the lowest price first
+         */
+        private final PriceLevels<Trigger> takeProfits = new PriceLevels<>(false);
+
+        private PriceLevels<Trigger> of(Trigger.Type type) {
+            return type == Trigger.Type.STOP_LOSS ? stopLosses : takeProfits;
+        }
+
+        /**
+         * Removes the triggers crossed by the price, oldest first within each price
+         *
+         * @param price fixed-point price of one cryptocoin
+         * @param crossed receives the removed triggers
+         */
+        private void collect(long price, List<Trigger> crossed) {
+            drain(stopLosses, price, crossed);
+            drain(takeProfits, price, crossed);
+        }
+
+        private static void drain(PriceLevels<Trigger> levels, long price, List<Trigger> crossed) {
+            while (levels.crosses(price)) {
+                Trigger trigger = levels.best().getHead();
+                levels.remove(trigger);
+                crossed.add(trigger);
+            }
+        }
+    }
+
+    /**
+     * Snapshot of the trigger metrics. Times are in nanoseconds
+     */
+    public static final class Statistics {
+
+        private final int waiting;
+        private final long updates;
+        private final long fired;
+        private final long totalEvaluationNanos;
+
+        private Statistics(int waiting, long updates, long fired, long totalEvaluationNanos) {
+            this.waiting = waiting;
+            this.updates = updates;
+            this.fired = fired;
+            this.totalEvaluationNanos = totalEvaluationNanos;
+        }
+
+        public int getWaiting() {
+            return waiting;
+        }
+
+        /**
+         * @return rate updates evaluated
+         */
+        public long getUpdates() {
+            return updates;
+        }
+
+        public long getFired() {
+            return fired;
+        }
+
+        /**
+         * @return average time to find the crossed triggers of a rate update
+         */
+        public long getAverageEvaluationNanos() {
+            return updates == 0 ? 0 : totalEvaluationNanos / updates;
+        }
+    }
+}
@@ -0,0 +1,227 @@
+package net.epconsortium.cryptomarket.finances.provider;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import net.epconsortium.cryptomarket.CryptoMarket;
+import net.epconsortium.cryptomarket.finances.RateHistory;
+import net.epconsortium.cryptomarket.util.Configuration;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.math.BigDecimal;
+import java.net.HttpURLConnection;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.time.DateTimeException;
+import java.time.LocalDate;
+import java.util.function.LongPredicate;
+
+/**
+ * Provides the exchange rates from the Alpha Vantage API.
+ * The responses are streamed and only the values used by the plugin are read from them
+ *
+ * @author roinujnosde
+ */
+public class AlphaVantageProvider implements RateProvider {
+
+    private static final String USER_AGENT = "Mozilla/5.0";
+    private static final String REALTIME_KEY = "Realtime Currency Exchange Rate";
+    private static final String RATE_KEY = "5. Exchange Rate";
+    private static final String DAILY_SERIES_KEY = "Time Series (Digital Currency Daily)";
+    private final Configuration config;
+
+    public AlphaVantageProvider(@NotNull CryptoMarket plugin) {
+        config = new Configuration(plugin);
+    }
+
+    @Override
+    public @Nullable BigDecimal getCurrentRate(@NotNull String coin) throws IOException {
+        HttpURLConnection connection = openHttpConnection(getExchangeRateUrl(coin));
+        if (!isSuccessful(connection)) {
+            return null;
+        }
+        try (JsonReader reader = openJsonReader(connection)) {
+            BigDecimal rate = null;
+            reader.beginObject();
+            while (reader.hasNext()) {
+                String name = reader.nextName();
+                if (REALTIME_KEY.equals(name) && reader.peek() == JsonToken.BEGIN_OBJECT) {
+                    reader.beginObject();
+                    while (reader.hasNext()) {
+                        if (RATE_KEY.equals(reader.nextName())) {
+                            rate = new BigDecimal(reader.nextString());
+                        } else {
+                            reader.skipValue();
+                        }
+                    }
+                    reader.endObject();
+                } else {
+                    debugMessage(name, reader);
+                }
+            }
+            reader.endObject();
+            return rate;
+        } catch (NumberFormatException | IllegalStateException ex) {
+            // IllegalStateException is thrown by the reader when the response has an unexpected shape
+            throw new IOException("Invalid current rate of " + coin, ex);
+        }
+    }
+
+    @Override
+    public boolean getDailyRates(@NotNull String coin, @NotNull LongPredicate skip,
+                                 @NotNull DailyRateConsumer consumer) throws IOException {
+        HttpURLConnection connection = openHttpConnection(getCurrencyDailyUrl(coin));
+        if (!isSuccessful(connection)) {
+            return false;
+        }
+        String closeKey = "4a. close (" + config.getPhysicalCurrency() + ")";
+        try (JsonReader reader = openJsonReader(connection)) {
+            return readDailyRates(reader, closeKey, skip, consumer);
+        } catch (NumberFormatException | ArithmeticException | DateTimeException | IllegalStateException ex) {
+            throw new IOException("Invalid daily rates of " + coin, ex);
+        }
+    }
+
+    /**
+     * Reads a DIGITAL_CURRENCY_DAILY response
+     *
+     * @param reader the response
+     * @param closeKey the name of the close value in the physical currency
+     * @param skip tests the epoch-days that do not need to be read
+     * @param consumer receives the epoch-day and the fixed-point close
+     * @return false if the response has no time series
+     * @throws IOException if an error occurred reading the response
+     * @throws IllegalStateException if the response has an unexpected shape
+     */
+    static boolean readDailyRates(@NotNull JsonReader reader, @NotNull String closeKey, @NotNull LongPredicate skip,
+                                  @NotNull DailyRateConsumer consumer) throws IOException {
+        boolean found = false;
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (!DAILY_SERIES_KEY.equals(name) || reader.peek() != JsonToken.BEGIN_OBJECT) {
+                debugMessage(name, reader);
+                continue;
+            }
+            found = true;
+            reader.beginObject();
+            while (reader.hasNext()) {
+                long epochDay = parseEpochDay(reader.nextName());
+                if (skip.test(epochDay)) {
+                    reader.skipValue();
+                    continue;
+                }
+                long close = RateHistory.MISSING;
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    if (closeKey.equals(reader.nextName())) {
+                        close = RateHistory.parseFixedPoint(reader.nextString());
+                    } else {
+                        reader.skipValue();
+                    }
+                }
+                reader.endObject();
+                if (close != RateHistory.MISSING) {
+                    consumer.accept(epochDay, close);
+                }
+            }
+            reader.endObject();
+        }
+        reader.endObject();
+        return found;
+    }
+
+    private boolean isSuccessful(HttpURLConnection connection) throws IOException {
+        int responseCode = connection.getResponseCode();
+        return responseCode >= 200 && responseCode <= 299;
+    }
+
+    /**
+     * Opens a streaming reader of the connection response, so the response is never fully loaded in memory
+     *
+     * @param connection connection
+     * @return the reader
+     * @throws IOException if an error occurred opening the response
+     */
+    private JsonReader openJsonReader(HttpURLConnection connection) throws IOException {
+        return new JsonReader(new InputStreamReader(connection.getInputStream(), StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Logs the top level messages of the response, like the API limit notes, and skips anything else
+     */
+    private static void debugMessage(String name, JsonReader reader) throws IOException {
+        if (reader.peek() == JsonToken.STRING) {
+            CryptoMarket.debug(name + ": " + reader.nextString());
+        } else {
+            reader.skipValue();
+        }
+    }
+
+    /**
+     * Parses a yyyy-MM-dd date to epoch-day without going through a formatter
+     *
+     * @param date the date
+     * @return the epoch-day
+     * @throws DateTimeException if the date is invalid
+     */
+    private static long parseEpochDay(String date) {
+        if (date.length() != 10 || date.charAt(4) != '-' || date.charAt(7) != '-') {
+            throw new DateTimeException("Invalid date: " + date);
+        }
+        return LocalDate.of(parseDigits(date, 0, 4), parseDigits(date, 5, 7), parseDigits(date, 8, 10))
+                .toEpochDay();
+    }
+
+    private static int parseDigits(String text, int from, int to) {
+        int value = 0;
+        for (int i = from; i < to; i++) {
+            char c = text.charAt(i);
+            if (c < '0' || c > '9') {
+                throw new DateTimeException("Invalid date: " + text);
+            }
+            value = value * 10 + (c - '0');
+        }
+        return value;
+    }
+
+    /**
+     * Opens and returns a HTTP connection
+     *
+     * @param url url
+     * @return HTTP connection
+     * @throws IOException if an error happened on the connection
+     */
+    private HttpURLConnection openHttpConnection(URL url) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+
+        connection.setRequestMethod("GET");
+        connection.setRequestProperty("User-Agent", USER_AGENT);
+        return connection;
+    }
+
+    /**
+     * Returns the URL to the ExchangeRate function
+     *
+     * @param coin coin
+     * @return the URL
+     */
+    private URL getExchangeRateUrl(String coin) throws MalformedURLException {
+        return new URL("https://www.alphavantage.co/query?function=CURRENCY_EXCHANGE_RATE&from_currency=" + coin
+                + "&to_currency=" + config.getPhysicalCurrency() + "&apikey=" + config.getApiKey());
+    }
+
+    /**
+     * Returns the URL to the CurrencyDaily function
+     *
+     * @param coin coin
+     * @return the URL
+     */
+    private URL getCurrencyDailyUrl(String coin) throws MalformedURLException {
+        return new URL("https://www.alphavantage.co/query?function=DIGITAL_CURRENCY_DAILY&symbol=" + coin + "&market="
+                + config.getPhysicalCurrency() + "&apikey=" + config.getApiKey());
+    }
+}
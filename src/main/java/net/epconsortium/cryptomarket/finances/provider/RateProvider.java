@@ -0,0 +1,89 @@
+package net.epconsortium.cryptomarket.finances.provider;
+
+import net.epconsortium.cryptomarket.finances.RateHistory;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.LongPredicate;
+
+/**
+ * Source of the exchange rates of the cryptocoins, converted to the physical currency
+ *
+ * @author roinujnosde
+ */
+public interface RateProvider {
+
+    /**
+     * Returns the current exchange rate of the coin
+     *
+     * @param coin coin
+     * @return the rate, or null if the provider returned no data
+     * @throws IOException if an error occurred on the request
+     */
+    @Nullable BigDecimal getCurrentRate(@NotNull String coin) throws IOException;
+
+    /**
+     * Streams the close rate of the coin on each day available to the consumer
+     *
+     * @param coin coin
+     * @param skip tests the epoch-days that do not need to be read, e.g. because they are already known
+     * @param consumer receives the epoch-day and the fixed-point value, see {@link RateHistory#SCALE}
+     * @return false if the provider returned no data
+     * @throws IOException if an error occurred on the request
+     */
+    boolean getDailyRates(@NotNull String coin, @NotNull LongPredicate skip, @NotNull DailyRateConsumer consumer)
+            throws IOException;
+
+    /**
+     * Returns the current exchange rate of the coins. Coins without data are not present in the map
+     *
+     * @param coins coins
+     * @return the rates
+     * @throws IOException if an error occurred on the request
+     */
+    default @NotNull Map<String, BigDecimal> getCurrentRates(@NotNull Collection<String> coins) throws IOException {
+        Map<String, BigDecimal> rates = new HashMap<>();
+        for (String coin : coins) {
+            BigDecimal rate = getCurrentRate(coin);
+            if (rate != null) {
+                rates.put(coin, rate);
+            }
+        }
+        return rates;
+    }
+
+    /**
+     * Checks if {@link #getCurrentRates(Collection)} fetches all coins at once instead of one by one
+     *
+     * @return true if it does
+     */
+    default boolean supportsBatch() {
+        return false;
+    }
+
+    /**
+     * Checks if this provider is a remote service. Requests to remote services obey the API limits and their
+     * responses are cached
+     *
+     * @return true if remote
+     */
+    default boolean isRemote() {
+        return true;
+    }
+
+    interface DailyRateConsumer {
+
+        /**
+         * Receives the close rate of a day
+         *
+         * @param epochDay day
+         * @param value fixed-point value
+         */
+        void accept(long epochDay, long value);
+    }
+}
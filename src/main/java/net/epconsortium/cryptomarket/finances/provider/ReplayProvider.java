@@ -0,0 +1,166 @@
+package net.epconsortium.cryptomarket.finances.provider;
+
+import com.google.gson.stream.JsonReader;
+import net.epconsortium.cryptomarket.finances.RateHistory;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.*;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.time.LocalDate;
+import java.time.format.DateTimeParseException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.LongPredicate;
+
+/**
+ * Replays exchange rates from local files, useful to test the plugin offline.
+ * <p>
+ * Each coin is read from {@code <coin>.csv}, with {@code date,value} lines, or from {@code <coin>.json}, with an
+ * object of {@code "date": value} entries. The current rate walks through the series at the configured speed, in
+ * ticks (series entries) per second, and starts over when it reaches the end. Every tick can also be published as
+ * a rate update, see {@link #getCurrentTick()} and {@link #getRate(String, long)}.
+ *
+ * @author roinujnosde
+ */
+public class ReplayProvider implements RateProvider {
+
+    private final File folder;
+    private final double ticksPerSecond;
+    private final long start = System.nanoTime();
+    private final Map<String, Series> series = new ConcurrentHashMap<>();
+
+    /**
+     * @param folder folder of the files
+     * @param ticksPerSecond speed of the replay
+     * @throws IllegalArgumentException if ticksPerSecond is not positive
+     */
+    public ReplayProvider(@NotNull File folder, double ticksPerSecond) {
+        if (ticksPerSecond <= 0) {
+            throw new IllegalArgumentException("ticksPerSecond must be positive");
+        }
+        this.folder = folder;
+        this.ticksPerSecond = ticksPerSecond;
+    }
+
+    @Override
+    public @Nullable BigDecimal getCurrentRate(@NotNull String coin) throws IOException {
+        long value = getRate(coin, getCurrentTick());
+        return value == RateHistory.MISSING ? null : RateHistory.toBigDecimal(value);
+    }
+
+    /**
+     * @return the tick the replay is at, counted from when it was created
+     */
+    public long getCurrentTick() {
+        return (long) ((System.nanoTime() - start) / 1_000_000_000D * ticksPerSecond);
+    }
+
+    public double getTicksPerSecond() {
+        return ticksPerSecond;
+    }
+
+    /**
+     * Returns the rate of the coin at the tick, starting over when the tick is past the end of the series
+     *
+     * @param coin coin
+     * @param tick tick
+     * @return the fixed-point rate or {@link RateHistory#MISSING} if there is no file for the coin
+     * @throws IOException if an error occurred reading the file
+     */
+    public long getRate(@NotNull String coin, long tick) throws IOException {
+        Series s = getSeries(coin);
+        if (s.values.length == 0) {
+            return RateHistory.MISSING;
+        }
+        return s.values[(int) (tick % s.values.length)];
+    }
+
+    @Override
+    public boolean getDailyRates(@NotNull String coin, @NotNull LongPredicate skip,
+                                 @NotNull DailyRateConsumer consumer) throws IOException {
+        Series s = getSeries(coin);
+        if (s.values.length == 0) {
+            return false;
+        }
+        for (int i = 0; i < s.days.length; i++) {
+            if (!skip.test(s.days[i])) {
+                consumer.accept(s.days[i], s.values[i]);
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public boolean supportsBatch() {
+        return true;
+    }
+
+    @Override
+    public boolean isRemote() {
+        return false;
+    }
+
+    private Series getSeries(String coin) throws IOException {
+        try {
+            return series.computeIfAbsent(coin, c -> {
+                try {
+                    return load(c);
+                } catch (IOException ex) {
+                    throw new UncheckedIOException(ex);
+                }
+            });
+        } catch (UncheckedIOException ex) {
+            throw ex.getCause();
+        }
+    }
+
+    private Series load(String coin) throws IOException {
+        TreeMap<Long, Long> rates = new TreeMap<>();
+        File csv = new File(folder, coin.toLowerCase(Locale.ROOT) + ".csv");
+        File json = new File(folder, coin.toLowerCase(Locale.ROOT) + ".json");
+        if (csv.exists()) {
+            for (String line : Files.readAllLines(csv.toPath(), StandardCharsets.UTF_8)) {
+                String[] columns = line.split(",");
+                if (columns.length < 2) {
+                    continue;
+                }
+                try {
+                    rates.put(LocalDate.parse(columns[0].trim()).toEpochDay(),
+                            RateHistory.parseFixedPoint(columns[1].trim()));
+                } catch (DateTimeParseException | ArithmeticException | NumberFormatException ignored) {
+                    // header or malformed line
+                }
+            }
+        } else if (json.exists()) {
+            try (JsonReader reader = new JsonReader(new InputStreamReader(new FileInputStream(json),
+                    StandardCharsets.UTF_8))) {
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    rates.put(LocalDate.parse(reader.nextName()).toEpochDay(),
+                            RateHistory.parseFixedPoint(reader.nextString()));
+                }
+                reader.endObject();
+            }
+        }
+        Series s = new Series(rates.size());
+        int i = 0;
+        for (Map.Entry<Long, Long> entry : rates.entrySet()) {
+            s.days[i] = entry.getKey();
+            s.values[i++] = entry.getValue();
+        }
+        return s;
+    }
+
+    private static class Series {
+        private final long[] days;
+        private final long[] values;
+
+        private Series(int size) {
+            days = new long[size];
+            values = new long[size];
+        }
+    }
+}
@@ -2,9 +2,10 @@ package net.epconsortium.cryptomarket.listeners;
 
 import net.epconsortium.cryptomarket.CryptoMarket;
 import net.epconsortium.cryptomarket.database.dao.InvestorDao;
-import org.bukkit.Bukkit;
 import org.bukkit.event.EventHandler;
+import org.bukkit.event.EventPriority;
 import org.bukkit.event.Listener;
+import org.bukkit.event.player.AsyncPlayerPreLoginEvent;
 import org.bukkit.event.player.PlayerJoinEvent;
 import org.bukkit.event.player.PlayerQuitEvent;
 import org.jetbrains.annotations.NotNull;
@@ -19,9 +20,18 @@ public class PlayerListeners implements Listener {
         investorDao = plugin.getInvestorDao();
     }
 
+    @EventHandler(priority = EventPriority.MONITOR)
+    public void onPreLogin(AsyncPlayerPreLoginEvent event) {
+        if (event.getLoginResult() == AsyncPlayerPreLoginEvent.Result.ALLOWED) {
+            investorDao.preloadInvestor(event.getUniqueId(), event.getName());
+        } else {
+            investorDao.discardPreloaded(event.getUniqueId());
+        }
+    }
+
     @EventHandler
     public void onJoin(PlayerJoinEvent event) {
-        Bukkit.getScheduler().runTaskAsynchronously(plugin, () -> investorDao.loadInvestor(event.getPlayer()));
+        investorDao.loadInvestor(event.getPlayer());
     }
 
     @EventHandler
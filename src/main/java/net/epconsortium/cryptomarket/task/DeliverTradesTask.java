@@ -0,0 +1,36 @@
+package net.epconsortium.cryptomarket.task;
+
+import net.epconsortium.cryptomarket.CryptoMarket;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Task that runs the callbacks of the trades settled by the market engine
+ *
+ * @author roinujnosde
+ */
+public class DeliverTradesTask extends Task {
+
+    public DeliverTradesTask(CryptoMarket plugin) {
+        super(plugin);
+    }
+
+    @Override
+    public @NotNull Runnable getRunnable() {
+        return () -> plugin.getEconomy().deliverTrades();
+    }
+
+    @Override
+    public boolean isAsync() {
+        return false;
+    }
+
+    @Override
+    public long getDelay() {
+        return 1;
+    }
+
+    @Override
+    public long getPeriod() {
+        return 1;
+    }
+}
@@ -0,0 +1,38 @@
+package net.epconsortium.cryptomarket.task;
+
+import net.epconsortium.cryptomarket.CryptoMarket;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Task that closes the idle database connections and reports the leaked ones
+ *
+ * @author roinujnosde
+ */
+public class EvictIdleConnectionsTask extends Task {
+
+    private static final long PERIOD = 30 * 20;
+
+    public EvictIdleConnectionsTask(CryptoMarket plugin) {
+        super(plugin);
+    }
+
+    @Override
+    public @NotNull Runnable getRunnable() {
+        return () -> plugin.getConnectionFactory().evictIdleConnections();
+    }
+
+    @Override
+    public boolean isAsync() {
+        return true;
+    }
+
+    @Override
+    public long getDelay() {
+        return PERIOD;
+    }
+
+    @Override
+    public long getPeriod() {
+        return PERIOD;
+    }
+}
@@ -0,0 +1,36 @@
+package net.epconsortium.cryptomarket.task;
+
+import net.epconsortium.cryptomarket.CryptoMarket;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Task that writes the pending exchange rates to the cache file
+ *
+ * @author roinujnosde
+ */
+public class FlushRatesCacheTask extends Task {
+
+    public FlushRatesCacheTask(CryptoMarket plugin) {
+        super(plugin);
+    }
+
+    @Override
+    public @NotNull Runnable getRunnable() {
+        return () -> plugin.getExchangeRates().flushCache();
+    }
+
+    @Override
+    public boolean isAsync() {
+        return true;
+    }
+
+    @Override
+    public long getDelay() {
+        return configuration.getIntervalFlushingCacheInTicks();
+    }
+
+    @Override
+    public long getPeriod() {
+        return configuration.getIntervalFlushingCacheInTicks();
+    }
+}
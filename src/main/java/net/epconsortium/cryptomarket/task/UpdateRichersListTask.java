@@ -2,9 +2,13 @@ package net.epconsortium.cryptomarket.task;
 
 import net.epconsortium.cryptomarket.CryptoMarket;
 import net.epconsortium.cryptomarket.database.dao.Investor;
+import net.epconsortium.cryptomarket.database.dao.Ranking;
 import net.epconsortium.cryptomarket.finances.Economy;
+import net.epconsortium.cryptomarket.finances.ExchangeRate;
+import net.epconsortium.cryptomarket.finances.Holdings;
 import org.jetbrains.annotations.NotNull;
 
+import java.time.LocalDate;
 import java.util.List;
 
 public class UpdateRichersListTask extends Task {
@@ -16,12 +20,27 @@ public class UpdateRichersListTask extends Task {
     @Override
     public @NotNull Runnable getRunnable() {
         return () -> {
-            List<Investor> investors = plugin.getInvestorDao().getInvestors();
-            if (investors == null) {
-                return;
-            }
             Economy economy = plugin.getEconomy();
-            economy.setInvestors(investors);
+            String mode = configuration.getRichersUpdateMode();
+            ExchangeRate rate = plugin.getExchangeRates().getExchangeRate(LocalDate.now());
+            Holdings.Refresh refresh = economy.beginRankingRefresh();
+            if ("full".equals(mode) || rate == null) {
+                List<Investor> investors = plugin.getInvestorDao().getInvestors(refresh);
+                if (investors == null) {
+                    economy.abortRankingRefresh(refresh);
+                    return;
+                }
+                economy.setInvestors(refresh, investors);
+            } else {
+                int size = configuration.getRichersListSize();
+                Ranking ranking = plugin.getInvestorDao().getRanking(rate, size, "database".equals(mode),
+                        refresh);
+                if (ranking == null) {
+                    economy.abortRankingRefresh(refresh);
+                    return;
+                }
+                economy.setRanking(refresh, ranking, size);
+            }
             economy.setRichersLastUpdate(System.currentTimeMillis());
         };
     }
@@ -1,7 +1,7 @@
 package net.epconsortium.cryptomarket.ui.frames;
 
 import com.cryptomorin.xseries.XMaterial;
-import net.epconsortium.cryptomarket.finances.ExchangeRate;
+import net.epconsortium.cryptomarket.finances.RateHistory;
 import net.epconsortium.cryptomarket.ui.*;
 import net.epconsortium.cryptomarket.ui.ComponentImpl.Builder;
 import net.epconsortium.cryptomarket.util.Formatter;
@@ -103,6 +103,12 @@ public class CalendarFrame extends Frame {
         Month month = period.getMonth();
         int slot = 18;
         int days = month.length(period.isLeapYear());
+        List<String> coins = plugin.getCoinRegistry().getCoins();
+        RateHistory history = plugin.getExchangeRates().getHistory();
+        long[][] values = new long[coins.size()][];
+        for (int id = 0; id < coins.size(); id++) {
+            values[id] = history.getRange(id, period.atDay(1), period.atEndOfMonth());
+        }
 
         for (int day = 1; day <= days; day++) {
             LocalDate date = LocalDate.of(period.getYear(), month, day);
@@ -111,11 +117,7 @@ public class CalendarFrame extends Frame {
             if (date.isAfter(LocalDate.now())) {
                 lore = Collections.singletonList(configuration.getCalendarMenuNoExchangeRate());
             } else {
-                ExchangeRate er = plugin.getExchangeRates().getExchangeRate(date);
-                if (er == null) {
-                    er = new ExchangeRate();
-                }
-                lore = getDayItemLore(er);
+                lore = getDayItemLore(coins, values, day - 1);
             }
 
             Component component = new Builder(XMaterial.GRAY_STAINED_GLASS_PANE).withAmount(day).withSlot(slot)
@@ -130,16 +132,16 @@ public class CalendarFrame extends Frame {
         return MessageFormat.format(configuration.getCalendarMenuDayItemName(), day);
     }
 
-    private List<String> getDayItemLore(ExchangeRate rate) {
+    private List<String> getDayItemLore(List<String> coins, long[][] values, int dayIndex) {
         List<String> lore = configuration.getLoreOfTheDayItem();
         //Configurando a linha de valores das moedas
         List<String> coinsLine = new ArrayList<>();
-        List<String> coins = configuration.getCoins();
 
-        for (String coin : coins) {
-            BigDecimal coinValue = rate.getCoinValue(coin);
+        for (int i = 0; i < coins.size(); i++) {
+            String coin = coins.get(i);
+            BigDecimal coinValue = RateHistory.toBigDecimal(values[i][dayIndex]);
             String format;
-            if (coinValue.equals(new BigDecimal(-1))) {
+            if (coinValue == null) {
                 format = MessageFormat.format(configuration.getCalendarMenuCoinLine(), coin,
                         configuration.getItemDayError());
             } else {
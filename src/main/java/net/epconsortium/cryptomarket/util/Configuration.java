@@ -1,18 +1,16 @@
 package net.epconsortium.cryptomarket.util;
 
 import net.epconsortium.cryptomarket.CryptoMarket;
+import net.epconsortium.cryptomarket.finances.CoinRegistry;
 import org.bukkit.ChatColor;
 import org.bukkit.configuration.file.FileConfiguration;
 
-import java.io.BufferedReader;
-import java.io.IOException;
-import java.io.InputStreamReader;
+import java.io.File;
 import java.util.*;
 
 public class Configuration {
 
     private final CryptoMarket plugin;
-    private static final Set<String> COINS = new HashSet<>();
 
     public Configuration(CryptoMarket plugin) {
         this.plugin = Objects.requireNonNull(plugin);
@@ -102,13 +100,49 @@ public class Configuration {
         return getConfig().getString("mysql.password", "");
     }
 
+    /**
+     * Returns the maximum number of open database connections
+     *
+     * @return the size
+     */
+    public int getDatabasePoolMaximumSize() {
+        return Math.max(1, getConfig().getInt("database-pool.maximum-size", 8));
+    }
+
+    /**
+     * Returns how long to wait for a free database connection in milliseconds
+     *
+     * @return the timeout
+     */
+    public long getDatabasePoolConnectionTimeoutInMillis() {
+        return Math.max(1, getConfig().getLong("database-pool.connection-timeout", 10)) * 1000;
+    }
+
+    /**
+     * Returns how long an unused database connection is kept open in milliseconds
+     *
+     * @return the timeout
+     */
+    public long getDatabasePoolIdleTimeoutInMillis() {
+        return Math.max(1, getConfig().getLong("database-pool.idle-timeout", 600)) * 1000;
+    }
+
+    /**
+     * Returns how long a database connection can be in use before it is reported as leaked, in milliseconds
+     *
+     * @return the threshold, 0 if disabled
+     */
+    public long getDatabasePoolLeakDetectionThresholdInMillis() {
+        return Math.max(0, getConfig().getLong("database-pool.leak-detection-threshold", 30)) * 1000;
+    }
+
     /**
      * Returns the interval to update the Exchange Rates in minutes
      *
      * @return the interval
      */
     public int getIntervalExchangeRatesUpdateInMinutes() {
-        final int maxRequests = 25;
+        final int maxRequests = getRequestsPerDay();
         final int dayInMinutes = 1440;
         double requests = getCoins().size();
 
@@ -123,6 +157,70 @@ public class Configuration {
         return (int) (interval);
     }
 
+    /**
+     * Returns the name of the provider of the exchange rates
+     *
+     * @return the provider name, in lower case
+     */
+    public String getRateProvider() {
+        return getConfig().getString("rate-provider", "alphavantage").toLowerCase();
+    }
+
+    /**
+     * Returns the folder of the files replayed by the replay provider
+     *
+     * @return the folder
+     */
+    public File getReplayFolder() {
+        return new File(plugin.getDataFolder(), getConfig().getString("replay.folder", "replay"));
+    }
+
+    /**
+     * Returns the speed of the replay provider
+     *
+     * @return the ticks per second
+     */
+    public double getReplayTicksPerSecond() {
+        double ticks = getConfig().getDouble("replay.ticks-per-second", 1);
+        return ticks > 0 ? ticks : 1;
+    }
+
+    /**
+     * Checks if every tick of the replay provider is published as a rate update, at its speed
+     *
+     * @return true if driven
+     */
+    public boolean isReplayDriven() {
+        return getConfig().getBoolean("replay.drive", false);
+    }
+
+    /**
+     * Returns how many requests the API accepts per minute
+     *
+     * @return the limit
+     */
+    public int getRequestsPerMinute() {
+        return Math.max(1, getConfig().getInt("api-limits.requests-per-minute", 5));
+    }
+
+    /**
+     * Returns how many requests the API accepts per day
+     *
+     * @return the limit
+     */
+    public int getRequestsPerDay() {
+        return Math.max(1, getConfig().getInt("api-limits.requests-per-day", 25));
+    }
+
+    /**
+     * Returns how many requests can be sent to the API at the same time
+     *
+     * @return the limit
+     */
+    public int getConcurrentRequests() {
+        return Math.max(1, getConfig().getInt("api-limits.concurrent-requests", 4));
+    }
+
     /**
      * Returns the interval to save the investors' data in server ticks
      *
@@ -133,6 +231,51 @@ public class Configuration {
         return getConfig().getLong("saving-interval", 10) * 60 * 20;
     }
 
+    /**
+     * Returns the maximum time a changed investor waits to be written to the database, in milliseconds
+     *
+     * @return the interval
+     */
+    public long getWriteBehindFlushIntervalInMillis() {
+        return Math.max(1, getConfig().getLong("write-behind.flush-interval", 5)) * 1000;
+    }
+
+    /**
+     * Returns how many changed investors trigger a write to the database
+     *
+     * @return the batch size
+     */
+    public int getWriteBehindBatchSize() {
+        return Math.max(1, getConfig().getInt("write-behind.batch-size", 250));
+    }
+
+    /**
+     * Returns how many offline investors are kept in memory
+     *
+     * @return the size
+     */
+    public int getOfflineCacheMaximumSize() {
+        return Math.max(0, getConfig().getInt("offline-cache.maximum-size", 1000));
+    }
+
+    /**
+     * Returns how long an offline investor is kept in memory after the last access, in milliseconds
+     *
+     * @return the time
+     */
+    public long getOfflineCacheExpireAfterInMillis() {
+        return Math.max(1, getConfig().getLong("offline-cache.expire-after", 600)) * 1000;
+    }
+
+    /**
+     * Returns the interval to write the pending exchange rates to the cache file in server ticks
+     *
+     * @return the interval
+     */
+    public long getIntervalFlushingCacheInTicks() {
+        return Math.max(1, getConfig().getLong("cache-flush-interval", 60)) * 20;
+    }
+
     /**
      * Returns the richers update interval in ticks
      *
@@ -142,6 +285,58 @@ public class Configuration {
         return getConfig().getLong("richers-update-interval", 15) * 60 * 20;
     }
 
+    /**
+     * Returns how the richers list is updated: full, streaming or database
+     *
+     * @return the mode
+     */
+    public String getRichersUpdateMode() {
+        String mode = getConfig().getString("richers-update-mode", "full").toLowerCase(Locale.ROOT);
+        switch (mode) {
+            case "streaming":
+            case "database":
+                return mode;
+            default:
+                return "full";
+        }
+    }
+
+    /**
+     * Returns how many investors the richers list keeps when it is not updated in the full mode
+     *
+     * @return the size
+     */
+    public int getRichersListSize() {
+        return Math.max(1, getConfig().getInt("richers-list-size", 100));
+    }
+
+    /**
+     * Returns how many resting orders a player can have
+     *
+     * @return the maximum
+     */
+    public int getOrderBookMaxOrdersPerPlayer() {
+        return Math.max(1, getConfig().getInt("order-book.max-orders-per-player", 20));
+    }
+
+    /**
+     * Returns how many price levels of each side the book command shows
+     *
+     * @return the depth
+     */
+    public int getOrderBookDepth() {
+        return Math.max(1, getConfig().getInt("order-book.depth", 5));
+    }
+
+    /**
+     * Returns how many waiting triggers a player can have
+     *
+     * @return the maximum
+     */
+    public int getTriggersMaxPerPlayer() {
+        return Math.max(1, getConfig().getInt("triggers.max-per-player", 20));
+    }
+
     /**
      * Returns the physical currency to compare against the cryptocoins
      *
@@ -158,16 +353,7 @@ public class Configuration {
      * @return the coins
      */
     public List<String> getCoins() {
-        List<String> coins = getConfig().getStringList("coins");
-        if (coins != null) {
-            coins.removeIf(m -> !isValid(m));
-        } else {
-            coins = new ArrayList<>();
-        }
-        if (coins.isEmpty()) {
-            coins.add("BTC");
-        }
-        return coins;
+        return plugin.getCoinRegistry().getCoins();
     }
 
     /**
@@ -177,28 +363,7 @@ public class Configuration {
      * @return true if valid
      */
     public boolean isValid(String coin) {
-        Objects.requireNonNull(coin);
-
-        BufferedReader reader = new BufferedReader(new InputStreamReader(
-                plugin.getResource("digital_currency_list.csv")));
-        if (COINS.isEmpty()) {
-            try {
-                boolean first = true;
-                while (reader.ready()) {
-                    String line = reader.readLine();
-                    String[] strings = line.split(",");
-                    if (first) {
-                        first = false;
-                        continue;
-                    }
-                    COINS.add(strings[0]);
-                }
-            } catch (IOException ex) {
-                CryptoMarket.warn("Error reading the currency list file");
-                ex.printStackTrace();
-            }
-        }
-        return COINS.contains(coin);
+        return CoinRegistry.isListed(plugin, coin);
     }
 
     /**
@@ -341,6 +506,364 @@ public class Configuration {
                 "Your new {0} balance is: {1}");
     }
 
+    /**
+     * Returns the order placed message
+     *
+     * @return the message
+     */
+    public String getMessageOrderPlaced() {
+        return getColoredString("messages.order-placed", "Your order #{0} was placed!");
+    }
+
+    /**
+     * Returns the order filled message
+     *
+     * @return the message
+     */
+    public String getMessageOrderFilled() {
+        return getColoredString("messages.order-filled", "Your order #{0} was filled: {1} {2} at {3}");
+    }
+
+    /**
+     * Returns the order cancelled message
+     *
+     * @return the message
+     */
+    public String getMessageOrderCancelled() {
+        return getColoredString("messages.order-cancelled", "Your order #{0} was cancelled!");
+    }
+
+    /**
+     * Returns the order not found error message
+     *
+     * @return the message
+     */
+    public String getMessageOrderNotFound() {
+        return getColoredString("messages.error-order-not-found", "You don't have this order!");
+    }
+
+    /**
+     * Returns the order insufficient balance error message
+     *
+     * @return the message
+     */
+    public String getMessageOrderInsufficientBalance() {
+        return getColoredString("messages.error-order-insufficient-balance", "You don't have enough balance to place this order!");
+    }
+
+    /**
+     * Returns the orders limit error message
+     *
+     * @return the message
+     */
+    public String getMessageOrderLimit() {
+        return getColoredString("messages.error-order-limit", "You can''t have more than {0} orders!");
+    }
+
+    /**
+     * Returns the orders unavailable error message
+     *
+     * @return the message
+     */
+    public String getMessageOrdersUnavailable() {
+        return getColoredString("messages.error-orders-unavailable", "The orders are not available, try again later!");
+    }
+
+    /**
+     * Returns the header of the orders list message
+     *
+     * @return the message
+     */
+    public String getMessageOrderList() {
+        return getColoredString("messages.order-list", "Your orders:");
+    }
+
+    /**
+     * Returns the orders list entry message
+     *
+     * @return the message
+     */
+    public String getMessageOrderListEntry() {
+        return getColoredString("messages.order-list-entry", "#{0} {1} {2} {3} at {4}, of {5}");
+    }
+
+    /**
+     * Returns the header of the order book message
+     *
+     * @return the message
+     */
+    public String getMessageOrderBook() {
+        return getColoredString("messages.order-book", "{0} order book:");
+    }
+
+    /**
+     * Returns the bid level of the order book message
+     *
+     * @return the message
+     */
+    public String getMessageOrderBookBid() {
+        return getColoredString("messages.order-book-bid", "Buying {1} at {0} ({2} orders)");
+    }
+
+    /**
+     * Returns the ask level of the order book message
+     *
+     * @return the message
+     */
+    public String getMessageOrderBookAsk() {
+        return getColoredString("messages.order-book-ask", "Selling {1} at {0} ({2} orders)");
+    }
+
+    /**
+     * Returns the trigger created message
+     *
+     * @return the message
+     */
+    public String getMessageTriggerCreated() {
+        return getColoredString("messages.trigger-created", "Your trigger #{0} was created!");
+    }
+
+    /**
+     * Returns the trigger fired message
+     *
+     * @return the message
+     */
+    public String getMessageTriggerFired() {
+        return getColoredString("messages.trigger-fired", "Your trigger #{0} sold {1} {2} at {3}");
+    }
+
+    /**
+     * Returns the trigger failed message
+     *
+     * @return the message
+     */
+    public String getMessageTriggerFailed() {
+        return getColoredString("messages.trigger-failed",
+                "Your trigger #{0} fired, but the sale failed! It will fire again on the next update");
+    }
+
+    /**
+     * Returns the trigger cancelled message
+     *
+     * @return the message
+     */
+    public String getMessageTriggerCancelled() {
+        return getColoredString("messages.trigger-cancelled", "Your trigger #{0} was cancelled!");
+    }
+
+    /**
+     * Returns the trigger not found error message
+     *
+     * @return the message
+     */
+    public String getMessageTriggerNotFound() {
+        return getColoredString("messages.error-trigger-not-found", "You don't have this trigger!");
+    }
+
+    /**
+     * Returns the trigger insufficient balance error message
+     *
+     * @return the message
+     */
+    public String getMessageTriggerInsufficientBalance() {
+        return getColoredString("messages.error-trigger-insufficient-balance", "You don't have enough balance for this trigger!");
+    }
+
+    /**
+     * Returns the triggers limit error message
+     *
+     * @return the message
+     */
+    public String getMessageTriggerLimit() {
+        return getColoredString("messages.error-trigger-limit", "You can''t have more than {0} triggers!");
+    }
+
+    /**
+     * Returns the triggers unavailable error message
+     *
+     * @return the message
+     */
+    public String getMessageTriggersUnavailable() {
+        return getColoredString("messages.error-triggers-unavailable", "The triggers are not available, try again later!");
+    }
+
+    /**
+     * Returns the header of the triggers list message
+     *
+     * @return the message
+     */
+    public String getMessageTriggerList() {
+        return getColoredString("messages.trigger-list", "Your triggers:");
+    }
+
+    /**
+     * Returns the triggers list entry message
+     *
+     * @return the message
+     */
+    public String getMessageTriggerListEntry() {
+        return getColoredString("messages.trigger-list-entry", "#{0} {1}: sell {2} {3} at {4}");
+    }
+
+    /**
+     * Returns the header of the database statistics message
+     *
+     * @return the message
+     */
+    public String getMessageStatsDatabase() {
+        return getColoredString("messages.stats-database", "CryptoMarket - Database");
+    }
+
+    /**
+     * Returns the connection pool statistics message
+     *
+     * @return the message
+     */
+    public String getMessageStatsConnections() {
+        return getColoredString("messages.stats-connections",
+                "Connections: {0} in use, {1} idle, {2} max, {3} waiting");
+    }
+
+    /**
+     * Returns the connection borrowing statistics message
+     *
+     * @return the message
+     */
+    public String getMessageStatsBorrowed() {
+        return getColoredString("messages.stats-borrowed", "Borrowed: {0} times, average wait {1}ms, max wait {2}ms");
+    }
+
+    /**
+     * Returns the connection usage statistics message
+     *
+     * @return the message
+     */
+    public String getMessageStatsUsage() {
+        return getColoredString("messages.stats-usage", "Average usage: {0}ms");
+    }
+
+    /**
+     * Returns the connection lifecycle statistics message
+     *
+     * @return the message
+     */
+    public String getMessageStatsConnectionsLifecycle() {
+        return getColoredString("messages.stats-connections-lifecycle",
+                "Opened: {0}, evicted: {1}, timeouts: {2}, leaks: {3}");
+    }
+
+    /**
+     * Returns the write-behind queue statistics message
+     *
+     * @return the message
+     */
+    public String getMessageStatsQueue() {
+        return getColoredString("messages.stats-queue", "Write queue: {0} pending, {1} queued, {2} coalesced");
+    }
+
+    /**
+     * Returns the write-behind flush statistics message
+     *
+     * @return the message
+     */
+    public String getMessageStatsFlushes() {
+        return getColoredString("messages.stats-flushes", "Flushes: {0}, average {1}ms, failures: {2}");
+    }
+
+    /**
+     * Returns the write-behind throughput statistics message
+     *
+     * @return the message
+     */
+    public String getMessageStatsWritten() {
+        return getColoredString("messages.stats-written", "Written: {0} investors, {1} balances, {2} investors/s");
+    }
+
+    /**
+     * Returns the header of the investor statistics message
+     *
+     * @return the message
+     */
+    public String getMessageStatsInvestors() {
+        return getColoredString("messages.stats-investors", "CryptoMarket - Investors");
+    }
+
+    /**
+     * Returns the investor preloading statistics message
+     *
+     * @return the message
+     */
+    public String getMessageStatsPreloaded() {
+        return getColoredString("messages.stats-preloaded",
+                "Preloaded: {0} hits, {1} misses, {2} expired, {3} waiting");
+    }
+
+    /**
+     * Returns the investor loading time statistics message
+     *
+     * @return the message
+     */
+    public String getMessageStatsReady() {
+        return getColoredString("messages.stats-ready", "Ready after join: average {0}ms, max {1}ms");
+    }
+
+    /**
+     * Returns the offline investor cache statistics message
+     *
+     * @return the message
+     */
+    public String getMessageStatsOfflineCache() {
+        return getColoredString("messages.stats-offline-cache",
+                "Offline cache: {0}/{1}, {2} hits, {3} misses, {4} evictions");
+    }
+
+    /**
+     * Returns the investor lock statistics message
+     *
+     * @return the message
+     */
+    public String getMessageStatsLocks() {
+        return getColoredString("messages.stats-locks",
+                "Investor locks: {0} acquired, {1} contended, average wait {2}ms, max wait {3}ms");
+    }
+
+    /**
+     * Returns the header of the market statistics message
+     *
+     * @return the message
+     */
+    public String getMessageStatsMarket() {
+        return getColoredString("messages.stats-market", "CryptoMarket - Market");
+    }
+
+    /**
+     * Returns the market engine trade statistics message
+     *
+     * @return the message
+     */
+    public String getMessageStatsTrades() {
+        return getColoredString("messages.stats-trades", "Trades: {0} settled, {1} failed, {2} pending, {3} rejected");
+    }
+
+    /**
+     * Returns the market engine batch statistics message
+     *
+     * @return the message
+     */
+    public String getMessageStatsBatches() {
+        return getColoredString("messages.stats-batches", "Batches: {0}, average size {1}, {2} trades/s");
+    }
+
+    /**
+     * Returns the trigger statistics message
+     *
+     * @return the message
+     */
+    public String getMessageStatsTriggers() {
+        return getColoredString("messages.stats-triggers",
+                "Triggers: {0} waiting, {1} fired in {2} rate updates, average evaluation {3}ms");
+    }
+
     /**
      * Returns the player not found error message
      *
@@ -608,6 +1131,15 @@ public class Configuration {
                 "Successful negotiation!");
     }
 
+    /**
+     * Returns the message sent while the negotiation is being processed
+     *
+     * @return the message
+     */
+    public String getMessageProcessingNegotiation() {
+        return getColoredString("negotiation-chat.processing", "Processing...");
+    }
+
     /**
      * Returns the how to leave the chat warning message
      *
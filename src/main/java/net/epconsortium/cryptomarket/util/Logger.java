@@ -8,22 +8,33 @@ import java.io.PrintWriter;
 import java.math.BigDecimal;
 import java.time.LocalDate;
 import java.time.LocalTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.Objects;
 import net.epconsortium.cryptomarket.CryptoMarket;
+import net.epconsortium.cryptomarket.finances.MarketEngine;
+import net.epconsortium.cryptomarket.finances.Money;
 import net.epconsortium.cryptomarket.finances.Negotiation;
 import net.epconsortium.cryptomarket.database.dao.Investor;
 import org.bukkit.scheduler.BukkitRunnable;
+import org.jetbrains.annotations.NotNull;
 
 /**
  * This class logs the negotiations to a file
+ * As the ledger of the {@link MarketEngine}, the trades of a batch are written with a single append
  *
  * @author roinujnosde
  */
-public class Logger {
+public class Logger implements MarketEngine.Ledger {
 
     private final CryptoMarket plugin;
     private final File file;
     private final File logsFolder;
+    /**
+     * Lines recorded by the market engine thread, waiting for the flush
+     */
+    private final List<String> pending = new ArrayList<>();
 
     public Logger(CryptoMarket plugin) {
         this.plugin = Objects.requireNonNull(plugin);
@@ -41,29 +52,53 @@ public class Logger {
      * @param vaultValue
      */
     public void log(Investor investor, Negotiation negotiation, BigDecimal cryptoValue, String coin, double vaultValue) {
+        String line = format(investor, negotiation, cryptoValue, coin, vaultValue,
+                investor.getBalance(coin).getValue());
         new BukkitRunnable() {
             @Override
             public void run() {
-                try {
-                    if (!logsFolder.exists() && !logsFolder.mkdir()) {
-                        throw new IOException("Error creating the logs folder!");
-                    }
-                    file.createNewFile();
-                    try (PrintWriter writer = new PrintWriter(new OutputStreamWriter(
-                            new FileOutputStream(file, true)))) {
-                        writer.printf("%s-> investor: %s type: %s cryptocoin: %s %f "
-                                + "servercoin: %f new balance: %f",
-                                LocalTime.now(), investor.getPlayer().getName(),
-                                negotiation, coin, cryptoValue, vaultValue,
-                                investor.getBalance(coin).getValue());
-                        writer.println();
-                        writer.flush();
-                    }
-                } catch (IOException ex) {
-                    CryptoMarket.warn("Error logging a negotiation to file!");
-                    ex.printStackTrace();
-                }
+                write(Collections.singletonList(line));
             }
         }.runTaskAsynchronously(plugin);
     }
+
+    @Override
+    public void record(@NotNull MarketEngine.Trade trade) {
+        pending.add(format(trade.getInvestor(), trade.getNegotiation(), Money.toCrypto(trade.getAmount()),
+                trade.getCoin(), Money.currencyToDouble(trade.getValue()), trade.getBalance().getValue()));
+    }
+
+    @Override
+    public void flush() {
+        if (!pending.isEmpty()) {
+            write(pending);
+            pending.clear();
+        }
+    }
+
+    private String format(Investor investor, Negotiation negotiation, BigDecimal cryptoValue, String coin,
+                          double vaultValue, BigDecimal newBalance) {
+        return String.format("%s-> investor: %s type: %s cryptocoin: %s %f servercoin: %f new balance: %f",
+                LocalTime.now(), investor.getPlayer().getName(), negotiation, coin, cryptoValue, vaultValue,
+                newBalance);
+    }
+
+    private synchronized void write(List<String> lines) {
+        try {
+            if (!logsFolder.exists() && !logsFolder.mkdir()) {
+                throw new IOException("Error creating the logs folder!");
+            }
+            file.createNewFile();
+            try (PrintWriter writer = new PrintWriter(new OutputStreamWriter(
+                    new FileOutputStream(file, true)))) {
+                for (String line : lines) {
+                    writer.println(line);
+                }
+                writer.flush();
+            }
+        } catch (IOException ex) {
+            CryptoMarket.warn("Error logging a negotiation to file!");
+            ex.printStackTrace();
+        }
+    }
 }
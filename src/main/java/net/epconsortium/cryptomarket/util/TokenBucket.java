@@ -0,0 +1,81 @@
+package net.epconsortium.cryptomarket.util;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Rate limiter that allows bursts of up to capacity permits and refills them continuously over the period
+ *
+ * @author roinujnosde
+ */
+public class TokenBucket {
+
+    private final double capacity;
+    private final double tokensPerNano;
+    private double tokens;
+    private long lastRefill;
+
+    /**
+     * Creates a full bucket
+     *
+     * @param capacity permits available per period
+     * @param period period
+     * @param unit unit of the period
+     * @throws IllegalArgumentException if capacity or period are not positive
+     */
+    public TokenBucket(int capacity, long period, TimeUnit unit) {
+        if (capacity <= 0 || period <= 0) {
+            throw new IllegalArgumentException("capacity and period must be positive");
+        }
+        this.capacity = capacity;
+        this.tokensPerNano = capacity / (double) unit.toNanos(period);
+        this.tokens = capacity;
+        this.lastRefill = System.nanoTime();
+    }
+
+    /**
+     * Takes a permit if one is available
+     *
+     * @return true if the permit was taken
+     */
+    public synchronized boolean tryAcquire() {
+        refill();
+        if (tokens >= 1) {
+            tokens--;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Takes a permit, waiting until one is available
+     *
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public void acquire() throws InterruptedException {
+        while (true) {
+            long wait;
+            synchronized (this) {
+                refill();
+                if (tokens >= 1) {
+                    tokens--;
+                    return;
+                }
+                wait = (long) Math.ceil((1 - tokens) / tokensPerNano);
+            }
+            TimeUnit.NANOSECONDS.sleep(wait);
+        }
+    }
+
+    /**
+     * Gives back a permit that was taken but not used
+     */
+    public synchronized void release() {
+        tokens = Math.min(capacity, tokens + 1);
+    }
+
+    private void refill() {
+        long now = System.nanoTime();
+        tokens = Math.min(capacity, tokens + (now - lastRefill) * tokensPerNano);
+        lastRefill = now;
+    }
+}
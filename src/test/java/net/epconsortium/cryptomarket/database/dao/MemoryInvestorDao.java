@@ -0,0 +1,65 @@
+package net.epconsortium.cryptomarket.database.dao;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Collection;
+import java.util.Map;
+
+/**
+ * The saving side of the {@link InvestorDao} without a database: the same locks and {@link WriteBehindQueue}, with
+ * a writer that only marks the balances as saved
+ *
+ * @author roinujnosde
+ */
+public final class MemoryInvestorDao {
+
+    private final InvestorLocks locks = new InvestorLocks();
+    private final WriteBehindQueue queue;
+
+    /**
+     * @param batchSize pending investors that trigger a flush
+     * @param flushIntervalMillis maximum time an investor waits in the queue
+     */
+    public MemoryInvestorDao(int batchSize, long flushIntervalMillis) {
+        queue = new WriteBehindQueue(this::write, batchSize, flushIntervalMillis);
+    }
+
+    /**
+     * @see InvestorDao#getLocks()
+     */
+    public @NotNull InvestorLocks getLocks() {
+        return locks;
+    }
+
+    /**
+     * @see InvestorDao#save(Investor)
+     */
+    public void save(@NotNull Investor investor) {
+        if (investor.isDirty()) {
+            queue.enqueue(investor);
+        }
+    }
+
+    /**
+     * Writes the pending investors and stops the writer
+     */
+    public void shutdown() {
+        queue.shutdown();
+    }
+
+    private int write(@NotNull Collection<Investor> investors) {
+        int written = 0;
+        for (Investor investor : investors) {
+            try (InvestorLocks.Held ignored = locks.lock(investor.getUniqueId())) {
+                for (Map.Entry<String, Balance> entry : investor.getBalances().entrySet()) {
+                    Balance balance = entry.getValue();
+                    if (balance.isDirty()) {
+                        balance.markSaved(balance.getVersion());
+                        written++;
+                    }
+                }
+            }
+        }
+        return written;
+    }
+}
@@ -0,0 +1,59 @@
+package net.epconsortium.cryptomarket.database.dao;
+
+import net.epconsortium.cryptomarket.finances.CoinRegistry;
+import org.bukkit.OfflinePlayer;
+import org.jetbrains.annotations.NotNull;
+
+import java.lang.reflect.Proxy;
+import java.util.HashMap;
+import java.util.UUID;
+
+/**
+ * Creates investors outside of a server, for the tests and benchmarks
+ *
+ * @author roinujnosde
+ */
+public final class TestInvestors {
+
+    private TestInvestors() {
+    }
+
+    /**
+     * Creates an investor without balances
+     *
+     * @param uuid the player's unique id
+     * @param registry the coins
+     * @return the investor
+     */
+    public static @NotNull Investor create(@NotNull UUID uuid, @NotNull CoinRegistry registry) {
+        return new Investor(player(uuid), new HashMap<>(), registry);
+    }
+
+    /**
+     * Creates an offline player that only knows its unique id and name
+     *
+     * @param uuid the unique id
+     * @return the player
+     */
+    public static @NotNull OfflinePlayer player(@NotNull UUID uuid) {
+        return (OfflinePlayer) Proxy.newProxyInstance(TestInvestors.class.getClassLoader(),
+                new Class<?>[]{OfflinePlayer.class}, (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "getUniqueId":
+                            return uuid;
+                        case "getName":
+                        case "toString":
+                            return uuid.toString().substring(0, 8);
+                        case "hashCode":
+                            return uuid.hashCode();
+                        case "equals":
+                            return proxy == args[0];
+                        case "isOnline":
+                        case "hasPlayedBefore":
+                            return true;
+                        default:
+                            throw new UnsupportedOperationException(method.getName());
+                    }
+                });
+    }
+}
@@ -0,0 +1,119 @@
+package net.epconsortium.cryptomarket.finances;
+
+import net.epconsortium.cryptomarket.database.dao.Balance;
+import net.epconsortium.cryptomarket.database.dao.Investor;
+import net.epconsortium.cryptomarket.database.dao.TestInvestors;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Changes the balances while a refresh reads them the way the {@code InvestorDao} does: each investor under its
+ * lock, here its monitor, which the trades hold too
+ *
+ * @author roinujnosde
+ */
+class HoldingsTest {
+
+    private static final int INVESTORS = 1000;
+    private static final long INITIAL = 100_000;
+
+    private final CoinRegistry registry = new CoinRegistry(Arrays.asList("BTC", "ETH"));
+    private final Holdings holdings = new Holdings(registry.size());
+    private final List<Investor> investors = new ArrayList<>();
+
+    @BeforeEach
+    void setUp() {
+        for (int i = 0; i < INVESTORS; i++) {
+            Investor investor = TestInvestors.create(UUID.randomUUID(), registry);
+            for (int coin = 0; coin < registry.size(); coin++) {
+                change(investor, coin, INITIAL);
+            }
+            investors.add(investor);
+        }
+    }
+
+    @Test
+    void changesBeforeAndAfterTheReadAreCountedOnce() {
+        Investor read = investors.get(0);
+        Investor unread = investors.get(1);
+        Holdings.Refresh refresh = holdings.beginRefresh();
+        change(read, 0, 50);
+        change(unread, 0, 70);
+        read(refresh, read);
+        change(read, 0, -20);
+        for (Investor investor : investors.subList(1, INVESTORS)) {
+            read(refresh, investor);
+        }
+        change(unread, 1, 30);
+        holdings.reset(refresh);
+
+        assertEquals(INITIAL * INVESTORS + 50 + 70 - 20, holdings.get(0));
+        assertEquals(INITIAL * INVESTORS + 30, holdings.get(1));
+    }
+
+    @Test
+    void tradesDuringARefreshKeepTheTotalsExact() throws InterruptedException {
+        AtomicBoolean trading = new AtomicBoolean(true);
+        Thread trader = new Thread(() -> {
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            while (trading.get()) {
+                Investor investor = investors.get(random.nextInt(INVESTORS));
+                change(investor, random.nextInt(registry.size()), random.nextLong(-100, 101));
+            }
+        });
+        trader.start();
+        try {
+            for (int i = 0; i < 20; i++) {
+                Holdings.Refresh refresh = holdings.beginRefresh();
+                for (Investor investor : investors) {
+                    read(refresh, investor);
+                }
+                holdings.reset(refresh);
+            }
+        } finally {
+            trading.set(false);
+            trader.join();
+        }
+
+        for (int coin = 0; coin < registry.size(); coin++) {
+            long expected = 0;
+            for (Investor investor : investors) {
+                expected += investor.getBalance(coin).getFixedPointValue();
+            }
+            assertEquals(expected, holdings.get(coin), registry.getSymbol(coin));
+        }
+    }
+
+    private void change(Investor investor, int coin, long delta) {
+        synchronized (investor) {
+            Balance balance = investor.getBalance(coin);
+            if (delta > 0) {
+                balance.increase(delta, 1);
+            } else if (delta < 0 && balance.getFixedPointValue() >= -delta) {
+                balance.decrease(-delta, 1);
+            } else {
+                return;
+            }
+            holdings.add(investor, coin, delta);
+        }
+    }
+
+    private void read(Holdings.Refresh refresh, Investor investor) {
+        synchronized (investor) {
+            refresh.read(investor.getUniqueId());
+            for (Map.Entry<String, Balance> entry : investor.getBalances().entrySet()) {
+                refresh.count(registry.getId(entry.getKey()), entry.getValue().getFixedPointValue());
+            }
+        }
+    }
+}
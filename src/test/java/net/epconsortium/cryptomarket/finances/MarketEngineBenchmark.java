@@ -0,0 +1,155 @@
+package net.epconsortium.cryptomarket.finances;
+
+import net.epconsortium.cryptomarket.database.dao.Investor;
+import net.epconsortium.cryptomarket.database.dao.MemoryInvestorDao;
+import net.epconsortium.cryptomarket.database.dao.TestInvestors;
+import org.jetbrains.annotations.NotNull;
+import org.openjdk.jmh.annotations.*;
+
+import java.math.BigDecimal;
+import java.time.LocalDate;
+import java.util.Collections;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of the {@link MarketEngine}, from the submission of the trades on the main thread to the delivery of
+ * their callbacks. The trades are settled by the {@link TradeSettler} of {@link Economy}, with its locks, holdings
+ * and leaderboard, and the investors are saved by a {@link MemoryInvestorDao}. The Vault side of each trade goes to a {@link MemoryVault} as {@link Economy} does: the price of
+ * a purchase is withdrawn before it is submitted and given back if it fails, a sale is paid when it settles.
+ * The benchmark thread plays the main thread. Run with {@code mvn -P benchmark test -Dbenchmark=MarketEngine}
+ *
+ * @author roinujnosde
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MarketEngineBenchmark {
+
+    /**
+     * Trades submitted per invocation, they must fit in the ring buffer
+     */
+    private static final int BATCH = 1024;
+    private static final String COIN = "BTC";
+    private static final long AMOUNT = Money.ofCrypto(new BigDecimal("0.001"));
+    private static final long VALUE = Money.ofCurrency(new BigDecimal("25.00"));
+    private static final double VAULT_VALUE = Money.currencyToDouble(VALUE);
+    private static final BigDecimal PRICE = new BigDecimal("25000");
+
+    @Param({"1", "1000", "100000"})
+    public int investorCount;
+
+    private MemoryInvestorDao dao;
+    private MarketEngine engine;
+    private MemoryVault vault;
+    private Investor[] investors;
+    private int next;
+    private long delivered;
+
+    /**
+     * Trades that failed in each iteration, reported next to the throughput
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Failures {
+
+        public long failed;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            failed = 0;
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        CoinRegistry registry = new CoinRegistry(Collections.singletonList(COIN));
+        vault = new MemoryVault();
+        investors = new Investor[investorCount];
+        for (int i = 0; i < investors.length; i++) {
+            investors[i] = TestInvestors.create(UUID.randomUUID(), registry);
+            vault.depositPlayer(investors[i].getPlayer(), 1_000_000_000D);
+        }
+        long today = LocalDate.now().toEpochDay();
+        RateHistory history = new RateHistory().toBuilder()
+                .put(registry.getId(COIN), today, RateHistory.toFixedPoint(PRICE)).build();
+        ExchangeRate rate = new ExchangeRate(history, today, registry);
+        dao = new MemoryInvestorDao(500, 5_000);
+        TradeSettler settler = new TradeSettler(dao.getLocks(), registry, new Holdings(registry.size()),
+                new Leaderboard(), () -> rate, dao::save);
+        engine = new MarketEngine(settler, new MarketEngine.Ledger() {
+            @Override
+            public void record(@NotNull MarketEngine.Trade trade) {
+            }
+
+            @Override
+            public void flush() {
+            }
+        });
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        engine.shutdown();
+        dao.shutdown();
+    }
+
+    /**
+     * Buys and then sells the same amount, so the balances stay small
+     *
+     * @param failures counts the failed trades
+     * @return the trades delivered so far
+     */
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public long buyAndSell(Failures failures) {
+        long target = delivered + BATCH;
+        for (int i = 0; i < BATCH; i += 2) {
+            Investor investor = investors[next];
+            next = (next + 1) % investors.length;
+            buy(investor, failures);
+            sell(investor, failures);
+        }
+        while (delivered < target) {
+            engine.deliver();
+            Thread.yield();
+        }
+        return delivered;
+    }
+
+    private void buy(Investor investor, Failures failures) {
+        vault.withdrawPlayer(investor.getPlayer(), VAULT_VALUE);
+        boolean submitted = engine.submit(Negotiation.PURCHASE, investor, COIN, investor.getBalance(COIN), AMOUNT,
+                VALUE, success -> {
+                    if (!success) {
+                        vault.depositPlayer(investor.getPlayer(), VAULT_VALUE);
+                        failures.failed++;
+                    }
+                    delivered++;
+                });
+        if (!submitted) {
+            vault.depositPlayer(investor.getPlayer(), VAULT_VALUE);
+            failures.failed++;
+            delivered++;
+        }
+    }
+
+    private void sell(Investor investor, Failures failures) {
+        boolean submitted = engine.submit(Negotiation.SELL, investor, COIN, investor.getBalance(COIN), AMOUNT,
+                VALUE, success -> {
+                    if (success) {
+                        vault.depositPlayer(investor.getPlayer(), VAULT_VALUE);
+                    } else {
+                        failures.failed++;
+                    }
+                    delivered++;
+                });
+        if (!submitted) {
+            failures.failed++;
+            delivered++;
+        }
+    }
+}
@@ -0,0 +1,35 @@
+package net.epconsortium.cryptomarket.finances;
+
+import org.bukkit.OfflinePlayer;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * In-memory stand-in for the Vault economy, with the calls the plugin makes around a trade. Like Vault, it must
+ * only be used by the main thread
+ *
+ * @author roinujnosde
+ */
+final class MemoryVault {
+
+    private final Map<UUID, Double> balances = new HashMap<>();
+
+    boolean has(@NotNull OfflinePlayer player, double amount) {
+        return getBalance(player) >= amount;
+    }
+
+    double getBalance(@NotNull OfflinePlayer player) {
+        return balances.getOrDefault(player.getUniqueId(), 0D);
+    }
+
+    void withdrawPlayer(@NotNull OfflinePlayer player, double amount) {
+        balances.merge(player.getUniqueId(), -amount, Double::sum);
+    }
+
+    void depositPlayer(@NotNull OfflinePlayer player, double amount) {
+        balances.merge(player.getUniqueId(), amount, Double::sum);
+    }
+}
@@ -0,0 +1,154 @@
+package net.epconsortium.cryptomarket.finances;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of inserting, cancelling and matching orders on an {@link OrderBook} that has many resting orders, spread
+ * over a thousand price levels on each side. Each invocation runs a batch of operations and the book is brought
+ * back to its size between invocations, outside of the measurement.
+ * Run with {@code mvn -P benchmark test -Dbenchmark=OrderBook}
+ *
+ * @author roinujnosde
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class OrderBookBenchmark {
+
+    private static final int BATCH = 10_000;
+    private static final long ONE_COIN = 100_000_000L;
+    private static final long BEST_BID = 9_999;
+    private static final long BEST_ASK = 10_001;
+    private static final int LEVELS = 1_000;
+    private static final UUID OWNER = UUID.randomUUID();
+
+    /**
+     * A book with resting orders of one cryptocoin each, and a source of new orders
+     */
+    @State(Scope.Thread)
+    public abstract static class Book {
+
+        @Param({"1000", "100000"})
+        public int resting;
+
+        OrderBook book;
+        Random random;
+        long nextId = 1;
+        long fills;
+        Order[] batch = new Order[BATCH];
+
+        @Setup(Level.Trial)
+        public void fill() {
+            book = new OrderBook((taker, maker, price, amount) -> fills++);
+            random = new Random(42);
+            for (int i = 0; i < resting; i++) {
+                book.place(resting(i % 2 == 0));
+            }
+        }
+
+        /**
+         * @return an order that does not cross the book
+         */
+        Order resting(boolean bid) {
+            long price = bid ? BEST_BID - random.nextInt(LEVELS) : BEST_ASK + random.nextInt(LEVELS);
+            return order(bid, price, ONE_COIN);
+        }
+
+        Order order(boolean bid, long price, long amount) {
+            return new Order(nextId++, OWNER, "BTC", bid ? Negotiation.PURCHASE : Negotiation.SELL, price, amount,
+                    amount, 0, 0);
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class InsertState extends Book {
+
+        @Setup(Level.Invocation)
+        public void prepare() {
+            for (int i = 0; i < BATCH; i++) {
+                batch[i] = resting(i % 2 == 0);
+            }
+        }
+
+        @TearDown(Level.Invocation)
+        public void restore() {
+            for (Order order : batch) {
+                book.cancel(order.getId());
+            }
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class CancelState extends Book {
+
+        @Setup(Level.Invocation)
+        public void prepare() {
+            for (int i = 0; i < BATCH; i++) {
+                batch[i] = resting(i % 2 == 0);
+                book.place(batch[i]);
+            }
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class MatchState extends Book {
+
+        @Setup(Level.Invocation)
+        public void prepare() {
+            for (int i = 0; i < BATCH; i++) {
+                boolean bid = i % 2 == 0;
+                // crosses the whole opposite side, but only fills its best order
+                batch[i] = order(bid, bid ? BEST_ASK + LEVELS : BEST_BID - LEVELS, ONE_COIN);
+            }
+        }
+
+        @TearDown(Level.Invocation)
+        public void restore() {
+            for (int i = 0; i < BATCH; i++) {
+                book.place(resting(i % 2 != 0));
+            }
+        }
+    }
+
+    /**
+     * Places orders that rest, at random levels
+     */
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public int insert(InsertState state) {
+        for (Order order : state.batch) {
+            state.book.place(order);
+        }
+        return state.book.size();
+    }
+
+    /**
+     * Cancels resting orders, at random levels
+     */
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public int cancel(CancelState state) {
+        for (Order order : state.batch) {
+            state.book.cancel(order.getId());
+        }
+        return state.book.size();
+    }
+
+    /**
+     * Places orders that fill the best resting order of the opposite side
+     */
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public long match(MatchState state) {
+        for (Order order : state.batch) {
+            state.book.place(order);
+        }
+        return state.fills;
+    }
+}
@@ -0,0 +1,186 @@
+package net.epconsortium.cryptomarket.finances;
+
+import com.sun.net.httpserver.HttpServer;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Fetches the coins from a local HTTP server that answers after a fixed latency, so the refresh time only depends
+ * on how many requests the scheduler runs at the same time
+ *
+ * @author roinujnosde
+ */
+class RateFetchSchedulerTest {
+
+    private static final int COINS = 16;
+    private static final long LATENCY_MILLIS = 50;
+    /**
+     * Time a refresh may take beyond the latency of its rounds: once to start the scheduler and open the first
+     * connection, and then for each round of requests
+     */
+    private static final long STARTUP_TOLERANCE_MILLIS = 250;
+    private static final long ROUND_TOLERANCE_MILLIS = 15;
+    private static final byte[] RESPONSE = "{}".getBytes(StandardCharsets.UTF_8);
+
+    private final Logger logger = Logger.getLogger(RateFetchSchedulerTest.class.getName());
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final AtomicInteger maxInFlight = new AtomicInteger();
+    private final AtomicInteger requests = new AtomicInteger();
+    private ExecutorService serverExecutor;
+    private HttpServer server;
+    private URL url;
+
+    @BeforeAll
+    static void disableNagle() {
+        // otherwise the delayed ACKs add about 40 ms to every request, read once when the first server starts
+        System.setProperty("sun.net.httpserver.nodelay", "true");
+    }
+
+    @BeforeEach
+    void startServer() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/query", exchange -> {
+            int current = inFlight.incrementAndGet();
+            maxInFlight.accumulateAndGet(current, Math::max);
+            requests.incrementAndGet();
+            try {
+                try {
+                    Thread.sleep(LATENCY_MILLIS);
+                } finally {
+                    // before answering, the client may send its next request as soon as it reads the response
+                    inFlight.decrementAndGet();
+                }
+                exchange.sendResponseHeaders(200, RESPONSE.length);
+                try (OutputStream body = exchange.getResponseBody()) {
+                    body.write(RESPONSE);
+                }
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            } finally {
+                exchange.close();
+            }
+        });
+        serverExecutor = Executors.newCachedThreadPool();
+        server.setExecutor(serverExecutor);
+        server.start();
+        url = new URL("http://127.0.0.1:" + server.getAddress().getPort() + "/query");
+        logger.setLevel(Level.OFF);
+    }
+
+    @AfterEach
+    void stopServer() {
+        server.stop(0);
+        serverExecutor.shutdownNow();
+    }
+
+    @Test
+    void refreshTimeScalesWithTheConcurrencyLimit() throws Exception {
+        for (int limit : new int[]{1, 2, 4, 8, COINS}) {
+            long elapsed = refresh(limit);
+            long rounds = (COINS + limit - 1) / limit;
+            long expected = rounds * LATENCY_MILLIS;
+            long tolerance = STARTUP_TOLERANCE_MILLIS + rounds * ROUND_TOLERANCE_MILLIS;
+
+            assertTrue(maxInFlight.get() <= limit, "more requests in flight than the limit");
+            assertTrue(elapsed >= expected, "limit " + limit + ": finished in " + elapsed
+                    + " ms, faster than the " + expected + " ms the latency allows");
+            assertTrue(elapsed <= expected + tolerance, "limit " + limit + ": took " + elapsed
+                    + " ms, expected " + expected + " ms plus up to " + tolerance + " ms");
+        }
+    }
+
+    @Test
+    void runtimeExceptionsMarkTheCoinAsFailed() throws Exception {
+        RateFetchScheduler scheduler = new RateFetchScheduler(logger, 4, 10_000, 100_000);
+        try {
+            Set<String> failed = scheduler.fetchAll(coins(), coin -> {
+                if (coin.equals("COIN3")) {
+                    throw new IllegalStateException("unexpected response");
+                }
+                return get(scheduler);
+            }).get(10, TimeUnit.SECONDS);
+
+            assertEquals(Collections.singleton("COIN3"), failed);
+        } finally {
+            scheduler.shutdown();
+        }
+    }
+
+    @Test
+    void exhaustedDailyQuotaFailsTheRemainingCoins() throws Exception {
+        RateFetchScheduler scheduler = new RateFetchScheduler(logger, 4, 10_000, COINS / 2);
+        try {
+            Set<String> failed = scheduler.fetchAll(coins(), coin -> get(scheduler)).get(10, TimeUnit.SECONDS);
+
+            assertEquals(COINS / 2, failed.size());
+            assertEquals(COINS / 2, requests.get());
+        } finally {
+            scheduler.shutdown();
+        }
+    }
+
+    /**
+     * Fetches all coins with the limit
+     *
+     * @return the elapsed time in milliseconds
+     */
+    private long refresh(int limit) throws Exception {
+        maxInFlight.set(0);
+        RateFetchScheduler scheduler = new RateFetchScheduler(logger, limit, 10_000, 100_000);
+        try {
+            long start = System.nanoTime();
+            Set<String> failed = scheduler.fetchAll(coins(), coin -> get(scheduler)).get(30, TimeUnit.SECONDS);
+            long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+            assertTrue(failed.isEmpty(), "failed coins: " + failed);
+            return elapsed;
+        } finally {
+            scheduler.shutdown();
+        }
+    }
+
+    private boolean get(RateFetchScheduler scheduler) throws IOException, InterruptedException {
+        if (!scheduler.acquire()) {
+            return false;
+        }
+        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        try (InputStream in = connection.getInputStream()) {
+            while (in.read() != -1) {
+                // drains the response
+            }
+            return connection.getResponseCode() == 200;
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    private static List<String> coins() {
+        List<String> coins = new ArrayList<>();
+        for (int i = 0; i < COINS; i++) {
+            coins.add("COIN" + i);
+        }
+        return coins;
+    }
+}
@@ -0,0 +1,115 @@
+package net.epconsortium.cryptomarket.finances.provider;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.stream.JsonReader;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDate;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of reading a DIGITAL_CURRENCY_DAILY response of {@link AlphaVantageProvider}, synthesized with the same
+ * fields as the API's. {@code stream} reads every day, {@code streamKnownDays} skips all of them but the last, as a
+ * refresh with the history already cached does, and {@code tree} is the former parse into a {@link JsonObject}.
+ * Run with {@code mvn -P benchmark test -Dbenchmark=DailyRates}
+ *
+ * @author roinujnosde
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DailyRatesBenchmark {
+
+    private static final String CURRENCY = "USD";
+    private static final String CLOSE_KEY = "4a. close (" + CURRENCY + ")";
+    private static final String[] FIELDS = {"1a. open", "1b. open", "2a. high", "2b. high", "3a. low", "3b. low",
+            "4a. close", "4b. close"};
+
+    @Param({"1000", "4000"})
+    public int days;
+
+    private byte[] response;
+    private long lastDay;
+    private long sum;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        Random random = new Random(42);
+        LocalDate last = LocalDate.of(2024, 1, 1);
+        lastDay = last.toEpochDay();
+        StringBuilder json = new StringBuilder("{\"Meta Data\":{\"1. Information\":\"Daily Prices and Volumes for"
+                + " Digital Currency\",\"2. Digital Currency Code\":\"BTC\",\"3. Digital Currency Name\":\"Bitcoin\","
+                + "\"4. Market Code\":\"" + CURRENCY + "\",\"5. Market Name\":\"United States Dollar\","
+                + "\"6. Last Refreshed\":\"" + last + " 00:00:00\",\"7. Time Zone\":\"UTC\"},"
+                + "\"Time Series (Digital Currency Daily)\":{");
+        for (int i = 0; i < days; i++) {
+            if (i > 0) {
+                json.append(',');
+            }
+            json.append('"').append(last.minusDays(i)).append("\":{");
+            for (String field : FIELDS) {
+                json.append('"').append(field).append(" (").append(CURRENCY).append(")\":\"")
+                        .append(price(random)).append("\",");
+            }
+            json.append("\"5. volume\":\"").append(price(random)).append("\",\"6. market cap (USD)\":\"")
+                    .append(price(random)).append("\"}");
+        }
+        response = json.append("}}").toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Benchmark
+    public long stream() throws IOException {
+        sum = 0;
+        try (JsonReader reader = new JsonReader(open())) {
+            AlphaVantageProvider.readDailyRates(reader, CLOSE_KEY, day -> false, (day, value) -> sum += value);
+        }
+        return sum;
+    }
+
+    @Benchmark
+    public long streamKnownDays() throws IOException {
+        sum = 0;
+        try (JsonReader reader = new JsonReader(open())) {
+            AlphaVantageProvider.readDailyRates(reader, CLOSE_KEY, day -> day < lastDay,
+                    (day, value) -> sum += value);
+        }
+        return sum;
+    }
+
+    @Benchmark
+    public Map<LocalDate, BigDecimal> tree() throws IOException {
+        try (Reader reader = open()) {
+            JsonObject json = new Gson().fromJson(reader, JsonObject.class);
+            JsonObject series = json.getAsJsonObject("Time Series (Digital Currency Daily)");
+            Map<LocalDate, BigDecimal> rates = new HashMap<>();
+            for (Map.Entry<String, JsonElement> entry : series.entrySet()) {
+                rates.put(LocalDate.parse(entry.getKey()), entry.getValue().getAsJsonObject().get(CLOSE_KEY)
+                        .getAsBigDecimal());
+            }
+            return rates;
+        }
+    }
+
+    private Reader open() {
+        return new InputStreamReader(new ByteArrayInputStream(response), StandardCharsets.UTF_8);
+    }
+
+    private static String price(Random random) {
+        return String.format(Locale.ROOT, "%.8f", 1000 + random.nextDouble() * 60_000);
+    }
+}